@@ -0,0 +1,162 @@
+package labredes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Árvore Merkle (SHA-256) sobre blocos de TAMANHO_FOLHA bytes de um arquivo.
+ * O nível 0 são as folhas; cada nó acima é o hash dos dois filhos, e um filho
+ * sem irmão sobe sem alteração. Folhas e nós internos usam prefixos
+ * diferentes (0x00 e 0x01) para um não poder se passar pelo outro.
+ *
+ * Comparando a árvore local com a do remetente a partir da raiz, o receptor
+ * encontra os blocos divergentes pedindo só os hashes dos ramos que diferem.
+ */
+public class ArvoreMerkle {
+    public static final int TAMANHO_FOLHA = 64 * 1024;
+    public static final int TAMANHO_HASH = 32;
+
+    private final byte[][][] niveis;
+
+    public ArvoreMerkle(byte[][] folhas) {
+        List<byte[][]> lista = new ArrayList<>();
+        lista.add(folhas);
+        byte[][] atual = folhas;
+        MessageDigest digest = novoDigest();
+        while (atual.length > 1) {
+            byte[][] acima = new byte[(atual.length + 1) / 2][];
+            for (int i = 0; i < acima.length; i++) {
+                acima[i] = combinar(digest, atual, 2 * i);
+            }
+            lista.add(acima);
+            atual = acima;
+        }
+        this.niveis = lista.toArray(new byte[0][][]);
+    }
+
+    /** Monta a árvore lendo o arquivo inteiro. */
+    public static ArvoreMerkle deArquivo(File arquivo) throws IOException {
+        Acumulador acumulador = new Acumulador();
+        try (InputStream in = new FileInputStream(arquivo)) {
+            byte[] buffer = new byte[8192];
+            int lido;
+            while ((lido = in.read(buffer)) != -1) {
+                acumulador.atualizar(buffer, 0, lido);
+            }
+        }
+        return new ArvoreMerkle(acumulador.concluir());
+    }
+
+    /** Hash de folha de um trecho do arquivo (para recalcular blocos reparados). */
+    public static byte[] hashFolha(byte[] dados, int offset, int tamanho) {
+        MessageDigest digest = novoDigest();
+        digest.update((byte) 0x00);
+        digest.update(dados, offset, tamanho);
+        return digest.digest();
+    }
+
+    public byte[] getRaiz() {
+        return niveis[niveis.length - 1][0];
+    }
+
+    /** Quantidade de níveis; a raiz está no nível getAltura() - 1. */
+    public int getAltura() {
+        return niveis.length;
+    }
+
+    public int tamanhoNivel(int nivel) {
+        return niveis[nivel].length;
+    }
+
+    public byte[] getNo(int nivel, int indice) {
+        return niveis[nivel][indice];
+    }
+
+    /** Troca o hash de uma folha e recalcula o caminho até a raiz. */
+    public void substituirFolha(int indice, byte[] hash) {
+        niveis[0][indice] = hash;
+        MessageDigest digest = novoDigest();
+        for (int nivel = 1; nivel < niveis.length; nivel++) {
+            indice /= 2;
+            niveis[nivel][indice] = combinar(digest, niveis[nivel - 1], 2 * indice);
+        }
+    }
+
+    private static byte[] combinar(MessageDigest digest, byte[][] nivel, int esquerda) {
+        if (esquerda + 1 >= nivel.length) return nivel[esquerda];
+        digest.update((byte) 0x01);
+        digest.update(nivel[esquerda]);
+        digest.update(nivel[esquerda + 1]);
+        return digest.digest();
+    }
+
+    private static MessageDigest novoDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Calcula as folhas à medida que os bytes do arquivo passam em ordem,
+     * sem precisar do arquivo inteiro de uma vez.
+     */
+    public static class Acumulador {
+        private final MessageDigest digest = novoDigest();
+        private final List<byte[]> folhas = new ArrayList<>();
+        private int bytesNaFolha = 0;
+
+        public Acumulador() {
+            digest.update((byte) 0x00);
+        }
+
+        public void atualizar(byte[] dados, int offset, int tamanho) {
+            while (tamanho > 0) {
+                int parte = Math.min(tamanho, TAMANHO_FOLHA - bytesNaFolha);
+                digest.update(dados, offset, parte);
+                avancar(parte);
+                offset += parte;
+                tamanho -= parte;
+            }
+        }
+
+        /** Consome os bytes restantes do buffer. */
+        public void atualizar(ByteBuffer dados) {
+            while (dados.hasRemaining()) {
+                int parte = Math.min(dados.remaining(), TAMANHO_FOLHA - bytesNaFolha);
+                ByteBuffer trecho = dados.duplicate();
+                trecho.limit(trecho.position() + parte);
+                digest.update(trecho);
+                dados.position(dados.position() + parte);
+                avancar(parte);
+            }
+        }
+
+        /** Fecha a última folha (parcial) e devolve todas; um arquivo vazio tem uma folha. */
+        public byte[][] concluir() {
+            if (bytesNaFolha > 0 || folhas.isEmpty()) {
+                folhas.add(digest.digest());
+                bytesNaFolha = 0;
+                digest.update((byte) 0x00);
+            }
+            return folhas.toArray(new byte[0][]);
+        }
+
+        private void avancar(int bytes) {
+            bytesNaFolha += bytes;
+            if (bytesNaFolha == TAMANHO_FOLHA) {
+                folhas.add(digest.digest());
+                bytesNaFolha = 0;
+                digest.update((byte) 0x00);
+            }
+        }
+    }
+}
@@ -0,0 +1,1180 @@
+package labredes;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks executados à parte do nó, em loopback.
+ *
+ * Uso: java labredes.Benchmark janela [tamanhoMB] [rttMs]
+ *      java labredes.Benchmark alocacao [pacotes]
+ *      java labredes.Benchmark disco [tamanhoMB]
+ *      java labredes.Benchmark chunk [tamanhoMB] [janelaKB]
+ *      java labredes.Benchmark fec [tamanhoMB] [rttMs]
+ *      java labredes.Benchmark distribuicao [tamanhoMB] [rttMs]
+ *      java labredes.Benchmark recepcao [remetentes] [pacotes]
+ *      java labredes.Benchmark nos [maximoNos] [tamanhoKB]
+ *      java labredes.Benchmark enlace [tamanhosKB] [saida.json] [perfis]
+ *      java labredes.Benchmark controle
+ */
+public class Benchmark {
+    private static final int[] JANELAS = {1, 4, 16, 64, 256};
+    private static final int[] TAMANHOS_CHUNK = {1024, 1400, 8192, 61440};
+    private static final int[] PERDAS_PERCENTUAIS = {0, 1, 2, 5, 10};
+    private static final String[] MODOS_FEC = {"off", "16/1", "16/2", "auto"};
+    private static final int[] QUANTIDADES_DESTINOS = {1, 2, 4, 8};
+    private static final int[] TRABALHADORES_RECEPCAO = {2, 4};
+    private static final int JANELA_REMETENTE = 32;
+    private static final long CUSTO_REMETENTE_LENTO_NS = 200_000;
+    private static final int[] QUANTIDADES_NOS = {2, 4, 8, 16, 32};
+    private static final String PERFIS_ENLACE = "limpo,atraso,perda1,perda5,reordena,duplica,banda,wan";
+
+    public static void main(String[] args) throws Exception {
+        String modo = args.length >= 1 ? args[0] : "janela";
+        if (modo.equals("janela")) {
+            int tamanhoMB = args.length >= 2 ? Integer.parseInt(args[1]) : 8;
+            int rttMs = args.length >= 3 ? Integer.parseInt(args[2]) : 0;
+            benchmarkJanela(tamanhoMB, rttMs);
+        } else if (modo.equals("alocacao")) {
+            int pacotes = args.length >= 2 ? Integer.parseInt(args[1]) : 200_000;
+            benchmarkAlocacao(pacotes);
+        } else if (modo.equals("disco")) {
+            int tamanhoMB = args.length >= 2 ? Integer.parseInt(args[1]) : 64;
+            benchmarkDisco(tamanhoMB);
+        } else if (modo.equals("chunk")) {
+            int tamanhoMB = args.length >= 2 ? Integer.parseInt(args[1]) : 64;
+            int janelaKB = args.length >= 3 ? Integer.parseInt(args[2]) : 256;
+            benchmarkChunk(tamanhoMB, janelaKB);
+        } else if (modo.equals("fec")) {
+            int tamanhoMB = args.length >= 2 ? Integer.parseInt(args[1]) : 4;
+            int rttMs = args.length >= 3 ? Integer.parseInt(args[2]) : 20;
+            benchmarkFec(tamanhoMB, rttMs);
+        } else if (modo.equals("distribuicao")) {
+            int tamanhoMB = args.length >= 2 ? Integer.parseInt(args[1]) : 8;
+            int rttMs = args.length >= 3 ? Integer.parseInt(args[2]) : 5;
+            benchmarkDistribuicao(tamanhoMB, rttMs);
+        } else if (modo.equals("recepcao")) {
+            int remetentes = args.length >= 2 ? Integer.parseInt(args[1]) : 4;
+            int pacotes = args.length >= 3 ? Integer.parseInt(args[2]) : 20_000;
+            benchmarkRecepcao(remetentes, pacotes);
+        } else if (modo.equals("nos")) {
+            int maximoNos = args.length >= 2 ? Integer.parseInt(args[1]) : 16;
+            int tamanhoKB = args.length >= 3 ? Integer.parseInt(args[2]) : 1024;
+            benchmarkNos(maximoNos, tamanhoKB);
+        } else if (modo.equals("enlace")) {
+            int[] tamanhosKB = java.util.Arrays.stream((args.length >= 2 ? args[1] : "64,1024,8192").split(",")).mapToInt(Integer::parseInt).toArray();
+            File saida = new File(args.length >= 3 ? args[2] : "benchmark_enlace.json");
+            String[] perfis = (args.length >= 4 ? args[3] : PERFIS_ENLACE).split(",");
+            benchmarkEnlace(tamanhosKB, perfis, saida);
+        } else if (modo.equals("controle")) {
+            if (!verificarControleAimd()) System.exit(1);
+        } else {
+            System.out.println("Uso: java labredes.Benchmark janela [tamanhoMB] [rttMs]");
+            System.out.println("     java labredes.Benchmark alocacao [pacotes]");
+            System.out.println("     java labredes.Benchmark disco [tamanhoMB]");
+            System.out.println("     java labredes.Benchmark chunk [tamanhoMB] [janelaKB]");
+            System.out.println("     java labredes.Benchmark fec [tamanhoMB] [rttMs]");
+            System.out.println("     java labredes.Benchmark distribuicao [tamanhoMB] [rttMs]");
+            System.out.println("     java labredes.Benchmark recepcao [remetentes] [pacotes]");
+            System.out.println("     java labredes.Benchmark nos [maximoNos] [tamanhoKB]");
+            System.out.println("     java labredes.Benchmark enlace [tamanhosKB,...] [saida.json] [perfis,...]");
+            System.out.println("         perfis: " + PERFIS_ENLACE);
+            System.out.println("     java labredes.Benchmark controle");
+        }
+    }
+
+    /**
+     * Confere a reação do AIMD às perdas, sem rede: com a janela em 24, uma
+     * perda por SACK corta pela metade, outra na mesma rajada (dentro de um
+     * RTT) não corta de novo e um timeout depois disso volta à janela mínima.
+     */
+    private static boolean verificarControleAimd() {
+        EstimadorRtt rtt = new EstimadorRtt();
+        rtt.registrarAmostra(10_000_000L);
+        ControleAimd aimd = new ControleAimd(rtt);
+        long agora = System.nanoTime();
+        aimd.aoConfirmar(20, aimd.getJanela(), -1, agora);
+        boolean ok = conferirJanela("slow start", aimd, 24);
+        aimd.aoPerder(false, agora);
+        ok &= conferirJanela("perda por SACK", aimd, 12);
+        aimd.aoPerder(false, agora + 1_000_000L);
+        ok &= conferirJanela("perda na mesma rajada", aimd, 12);
+        aimd.aoPerder(true, agora + 20_000_000L);
+        ok &= conferirJanela("timeout", aimd, 1);
+        System.out.println(ok ? "AIMD ok" : "AIMD com FALHA");
+        return ok;
+    }
+
+    private static boolean conferirJanela(String evento, ControleCongestionamento controle, int esperada) {
+        int janela = controle.getJanela();
+        System.out.printf("%-22s cwnd=%-3d esperado=%-3d %s%n", evento, janela, esperada, janela == esperada ? "ok" : "FALHA");
+        return janela == esperada;
+    }
+
+    /**
+     * Transfere tamanhoMB em CHUNKs de 1 KB pelo mesmo formato de mensagem do
+     * UDPNode, variando a janela de envio. O receptor atrasa cada ACK em rttMs
+     * para simular o tempo de ida e volta de um enlace real.
+     */
+    private static void benchmarkJanela(int tamanhoMB, int rttMs) throws Exception {
+        System.out.println("Transferência de " + tamanhoMB + " MB em loopback, RTT simulado " + rttMs + " ms");
+        System.out.println("janela(chunks)  tempo(ms)  MB/s");
+        for (int janela : JANELAS) {
+            long inicio = System.nanoTime();
+            transferir(tamanhoMB * 1024, janela, rttMs);
+            double segundos = (System.nanoTime() - inicio) / 1e9;
+            System.out.printf("%14d  %9d  %6.2f%n", janela, (long) (segundos * 1000), tamanhoMB / segundos);
+        }
+    }
+
+    private static void transferir(int totalChunks, int tamanhoJanela, int rttMs) throws Exception {
+        final int id = 1;
+        byte[] bloco = new byte[1024];
+        try (DatagramSocket receptor = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+             DatagramSocket remetente = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            receptor.setReceiveBufferSize(4 * 1024 * 1024);
+            remetente.setReceiveBufferSize(4 * 1024 * 1024);
+            ScheduledExecutorService atrasoAck = Executors.newSingleThreadScheduledExecutor();
+            JanelaEnvio janela = new JanelaEnvio(tamanhoJanela);
+            Map<Integer, byte[]> pendentes = new ConcurrentHashMap<>();
+            Map<Integer, Long> enviadoEm = new ConcurrentHashMap<>();
+
+            Thread threadReceptor = new Thread(() -> {
+                JanelaRecepcao recepcao = new JanelaRecepcao(256);
+                byte[] buffer = new byte[4096];
+                try {
+                    while (recepcao.getProximoEsperado() < totalChunks) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        receptor.receive(packet);
+                        String[] parts = new String(packet.getData(), 0, packet.getLength()).split(":", 5);
+                        int seq = Integer.parseInt(parts[2]);
+                        Base64.getDecoder().decode(parts[3]);
+                        int livre = recepcao.registrar(seq);
+                        byte[] ack = ("ACK:" + id + ":" + seq + ":bench:" + livre).getBytes();
+                        DatagramPacket packetAck = new DatagramPacket(ack, ack.length, packet.getSocketAddress());
+                        if (rttMs > 0) {
+                            atrasoAck.schedule(() -> enviar(receptor, packetAck), rttMs, TimeUnit.MILLISECONDS);
+                        } else {
+                            enviar(receptor, packetAck);
+                        }
+                    }
+                } catch (Exception e) {
+                    if (!receptor.isClosed()) e.printStackTrace();
+                }
+            });
+
+            Thread threadAcks = new Thread(() -> {
+                byte[] buffer = new byte[256];
+                try {
+                    while (true) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        remetente.receive(packet);
+                        String[] parts = new String(packet.getData(), 0, packet.getLength()).split(":", 5);
+                        int seq = Integer.parseInt(parts[2]);
+                        if (pendentes.remove(seq) != null) {
+                            janela.confirmar(seq, Integer.parseInt(parts[4]));
+                        }
+                    }
+                } catch (Exception e) {
+                    if (!remetente.isClosed()) e.printStackTrace();
+                }
+            });
+
+            // retransmissão simples, no mesmo espírito do monitorarAcks, para perdas no buffer do loopback
+            ScheduledExecutorService retransmissor = Executors.newSingleThreadScheduledExecutor();
+            retransmissor.scheduleAtFixedRate(() -> {
+                long agora = System.currentTimeMillis();
+                for (Map.Entry<Integer, byte[]> entry : pendentes.entrySet()) {
+                    if (agora - enviadoEm.getOrDefault(entry.getKey(), agora) >= 200 + 2L * rttMs) {
+                        enviadoEm.put(entry.getKey(), agora);
+                        byte[] dados = entry.getValue();
+                        enviar(remetente, new DatagramPacket(dados, dados.length, receptor.getLocalSocketAddress()));
+                    }
+                }
+            }, 50, 50, TimeUnit.MILLISECONDS);
+
+            threadReceptor.start();
+            threadAcks.start();
+            for (int seq = 0; seq < totalChunks; seq++) {
+                janela.aguardarEspaco();
+                String mensagem = "CHUNK:" + id + ":" + seq + ":" + Base64.getEncoder().encodeToString(bloco) + ":bench";
+                byte[] dados = mensagem.getBytes();
+                pendentes.put(seq, dados);
+                enviadoEm.put(seq, System.currentTimeMillis());
+                remetente.send(new DatagramPacket(dados, dados.length, receptor.getLocalSocketAddress()));
+            }
+            threadReceptor.join();
+            retransmissor.shutdownNow();
+            atrasoAck.shutdownNow();
+        }
+    }
+
+    /**
+     * Mede bytes alocados por datagrama na thread de recepção: o laço clássico
+     * (DatagramPacket + String + split + Base64, como no listen original) contra
+     * o ReceptorNio com quadros binários. Metade dos pacotes serve de aquecimento
+     * do JIT; a contagem usa o contador de alocação por thread da JVM.
+     */
+    private static void benchmarkAlocacao(int pacotes) throws Exception {
+        System.out.println("recepcao   pacotes  bytes/pacote  pacotes/s");
+        medirAlocacao("classico", pacotes);
+        medirAlocacao("nio", pacotes);
+    }
+
+    private static void medirAlocacao(String modo, int pacotes) throws Exception {
+        final int id = 1000; // fora do cache de Integer, como numa transferência real
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] medicao = new long[4]; // bytes e nanos no início e no fim da medição
+        int inicioMedicao = pacotes / 2;
+        try (DatagramChannel receptor = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             DatagramChannel remetente = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            receptor.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            JanelaEnvio janela = new JanelaEnvio(64);
+            JanelaRecepcao recepcao = new JanelaRecepcao(256);
+            ByteBuffer ack = ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + 4);
+
+            ReceptorNio.Tratador tratador = (datagrama, origem) -> {
+                int seq = Protocolo.seq(datagrama);
+                registrarMedicao(mx, seq, inicioMedicao, pacotes - 1, medicao);
+                int livre = recepcao.jaRecebido(seq) ? recepcao.espacoLivre() : recepcao.registrar(seq);
+                ack.clear();
+                Protocolo.escreverAck(ack, Protocolo.id(datagrama), seq, livre);
+                ack.flip();
+                try {
+                    receptor.send(ack, origem);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            };
+
+            Thread threadReceptor;
+            if (modo.equals("nio")) {
+                threadReceptor = new Thread(new ReceptorNio(receptor, new PoolBuffers(4, 65536), tratador));
+            } else {
+                DatagramSocket socket = receptor.socket();
+                Map<String, Long> idsRecebidos = new java.util.HashMap<>();
+                threadReceptor = new Thread(() -> {
+                    byte[] buffer = new byte[4096];
+                    try {
+                        while (recepcao.getProximoEsperado() < pacotes) {
+                            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                            socket.receive(packet);
+                            String[] parts = new String(packet.getData(), 0, packet.getLength()).split(":", 5);
+                            int seq = Integer.parseInt(parts[2]);
+                            registrarMedicao(mx, seq, inicioMedicao, pacotes - 1, medicao);
+                            Base64.getDecoder().decode(parts[3]);
+                            idsRecebidos.put("CHUNK-" + Integer.parseInt(parts[1]) + "-" + seq, System.currentTimeMillis());
+                            int livre = recepcao.registrar(seq);
+                            byte[] resposta = ("ACK:" + parts[1] + ":" + seq + ":bench:" + livre).getBytes();
+                            socket.send(new DatagramPacket(resposta, resposta.length, packet.getSocketAddress()));
+                        }
+                    } catch (Exception e) {
+                        if (!socket.isClosed()) e.printStackTrace();
+                    }
+                });
+            }
+
+            Thread threadAcks = new Thread(() -> {
+                ByteBuffer buf = ByteBuffer.allocate(256);
+                try {
+                    while (true) {
+                        buf.clear();
+                        remetente.receive(buf);
+                        buf.flip();
+                        int seq;
+                        int livre;
+                        if (Protocolo.ehQuadro(buf)) {
+                            seq = Protocolo.seq(buf);
+                            livre = Protocolo.janelaAck(buf);
+                        } else {
+                            String[] parts = new String(buf.array(), 0, buf.limit()).split(":", 5);
+                            seq = Integer.parseInt(parts[2]);
+                            livre = Integer.parseInt(parts[4]);
+                        }
+                        janela.confirmar(seq, livre);
+                    }
+                } catch (Exception e) {
+                    if (remetente.isOpen()) e.printStackTrace();
+                }
+            });
+            threadReceptor.start();
+            threadAcks.start();
+
+            byte[] bloco = new byte[1024];
+            ByteBuffer quadro = ByteBuffer.allocateDirect(4096);
+            SocketAddress destino = receptor.getLocalAddress();
+            for (int seq = 0; seq < pacotes; seq++) {
+                janela.aguardarEspaco();
+                quadro.clear();
+                if (modo.equals("nio")) {
+                    Protocolo.escreverChunk(quadro, id, seq, bloco, 0, bloco.length);
+                } else {
+                    quadro.put(("CHUNK:" + id + ":" + seq + ":" + Base64.getEncoder().encodeToString(bloco) + ":bench").getBytes());
+                }
+                quadro.flip();
+                remetente.send(quadro, destino);
+            }
+            long limite = System.currentTimeMillis() + 30_000;
+            while (medicao[3] == 0 && System.currentTimeMillis() < limite) Thread.sleep(10);
+            if (medicao[3] == 0) {
+                System.out.printf("%-8s  medição incompleta (último pacote perdido)%n", modo);
+                return;
+            }
+            long medidos = pacotes - 1 - inicioMedicao;
+            double segundos = (medicao[3] - medicao[1]) / 1e9;
+            System.out.printf("%-8s  %8d  %12.1f  %9.0f%n", modo, medidos, (double) (medicao[2] - medicao[0]) / medidos, medidos / segundos);
+        }
+    }
+
+    /**
+     * Vazão de gravação no receptor: o caminho original (RandomAccessFile
+     * aberto e fechado a cada CHUNK de 1 KB) contra o CacheCanais com lotes de
+     * 64 KB, com e sem prealocação. Um em cada 32 CHUNKs chega trocado com o
+     * seguinte, para os lotes também verem quebras de sequência.
+     */
+    private static void benchmarkDisco(int tamanhoMB) throws Exception {
+        int totalChunks = tamanhoMB * 1024;
+        int[] ordem = new int[totalChunks];
+        for (int i = 0; i < totalChunks; i++) ordem[i] = i;
+        for (int i = 31; i + 1 < totalChunks; i += 32) {
+            int t = ordem[i];
+            ordem[i] = ordem[i + 1];
+            ordem[i + 1] = t;
+        }
+        File arquivo = File.createTempFile("bench_disco", ".bin");
+        arquivo.deleteOnExit();
+        byte[] bloco = new byte[1024];
+        System.out.println("Gravação de " + tamanhoMB + " MB em CHUNKs de 1 KB em " + arquivo.getParent());
+        System.out.println("caminho              tempo(ms)  MB/s");
+        for (String caminho : new String[] {"por-chunk", "cache", "cache-prealocado"}) {
+            arquivo.delete();
+            long inicio = System.nanoTime();
+            if (caminho.equals("por-chunk")) {
+                for (int seq : ordem) {
+                    try (RandomAccessFile raf = new RandomAccessFile(arquivo, "rw")) {
+                        raf.getChannel().write(ByteBuffer.wrap(bloco), seq * 1024L);
+                    }
+                }
+            } else {
+                CacheCanais cache = new CacheCanais(16, 64 * 1024);
+                TransferenciaRecepcao.Chave chave = new TransferenciaRecepcao.Chave(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+                cache.criar(chave, arquivo, caminho.equals("cache-prealocado") ? totalChunks * 1024L : -1);
+                ByteBuffer dados = ByteBuffer.wrap(bloco);
+                for (int seq : ordem) {
+                    dados.clear();
+                    cache.gravar(chave, arquivo, seq * 1024L, dados);
+                }
+                cache.fechar(chave);
+            }
+            double segundos = (System.nanoTime() - inicio) / 1e9;
+            System.out.printf("%-19s  %9d  %6.2f%n", caminho, (long) (segundos * 1000), tamanhoMB / segundos);
+        }
+        arquivo.delete();
+    }
+
+    /**
+     * Transfere tamanhoMB em quadros binários com CHUNKs de cada tamanho de
+     * TAMANHOS_CHUNK, um ACK por CHUNK e a mesma quantidade de bytes em voo
+     * (janelaKB). Mostra quanto o custo por datagrama pesa com CHUNKs pequenos.
+     */
+    private static void benchmarkChunk(int tamanhoMB, int janelaKB) throws Exception {
+        System.out.println("Transferência de " + tamanhoMB + " MB em loopback, " + janelaKB + " KB em voo");
+        System.out.println("chunk(bytes)  datagramas  retransmissões  tempo(ms)  MB/s");
+        for (int tamanhoChunk : TAMANHOS_CHUNK) {
+            long total = tamanhoMB * 1024L * 1024L;
+            int totalChunks = (int) ((total + tamanhoChunk - 1) / tamanhoChunk);
+            int janela = Math.max(2, janelaKB * 1024 / tamanhoChunk);
+            long inicio = System.nanoTime();
+            int retransmissoes = transferirBinario(total, tamanhoChunk, janela);
+            double segundos = (System.nanoTime() - inicio) / 1e9;
+            System.out.printf("%12d  %10d  %14d  %9d  %6.2f%n", tamanhoChunk, totalChunks, retransmissoes, (long) (segundos * 1000), tamanhoMB / segundos);
+        }
+    }
+
+    private static int transferirBinario(long total, int tamanhoChunk, int tamanhoJanela) throws Exception {
+        final int id = 1;
+        int totalChunks = (int) ((total + tamanhoChunk - 1) / tamanhoChunk);
+        byte[] bloco = new byte[tamanhoChunk];
+        AtomicInteger retransmissoes = new AtomicInteger();
+        try (DatagramChannel receptor = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             DatagramChannel remetente = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            receptor.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            SocketAddress enderecoReceptor = receptor.getLocalAddress();
+            JanelaEnvio janela = new JanelaEnvio(tamanhoJanela);
+            Map<Integer, ByteBuffer> pendentes = new ConcurrentHashMap<>();
+            Map<Integer, Long> enviadoEm = new ConcurrentHashMap<>();
+
+            Thread threadReceptor = new Thread(() -> {
+                JanelaRecepcao recepcao = new JanelaRecepcao(Math.max(256, tamanhoJanela));
+                ByteBuffer quadro = ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + tamanhoChunk);
+                ByteBuffer ack = ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + 4);
+                try {
+                    while (recepcao.getProximoEsperado() < totalChunks) {
+                        quadro.clear();
+                        SocketAddress origem = receptor.receive(quadro);
+                        quadro.flip();
+                        int seq = Protocolo.seq(quadro);
+                        int livre = recepcao.registrar(seq);
+                        ack.clear();
+                        Protocolo.escreverAck(ack, id, seq, livre);
+                        ack.flip();
+                        receptor.send(ack, origem);
+                    }
+                } catch (Exception e) {
+                    if (receptor.isOpen()) e.printStackTrace();
+                }
+            });
+
+            Thread threadAcks = new Thread(() -> {
+                ByteBuffer quadro = ByteBuffer.allocateDirect(256);
+                try {
+                    while (true) {
+                        quadro.clear();
+                        remetente.receive(quadro);
+                        quadro.flip();
+                        int seq = Protocolo.seq(quadro);
+                        if (pendentes.remove(seq) != null) {
+                            janela.confirmar(seq, Protocolo.janelaAck(quadro));
+                        }
+                    }
+                } catch (Exception e) {
+                    if (remetente.isOpen()) e.printStackTrace();
+                }
+            });
+
+            ScheduledExecutorService retransmissor = Executors.newSingleThreadScheduledExecutor();
+            retransmissor.scheduleAtFixedRate(() -> {
+                long agora = System.currentTimeMillis();
+                for (Map.Entry<Integer, ByteBuffer> entry : pendentes.entrySet()) {
+                    if (agora - enviadoEm.getOrDefault(entry.getKey(), agora) >= 200) {
+                        enviadoEm.put(entry.getKey(), agora);
+                        retransmissoes.incrementAndGet();
+                        try {
+                            remetente.send(entry.getValue().duplicate(), enderecoReceptor);
+                        } catch (Exception e) {
+                            if (remetente.isOpen()) e.printStackTrace();
+                        }
+                    }
+                }
+            }, 50, 50, TimeUnit.MILLISECONDS);
+
+            threadReceptor.start();
+            threadAcks.start();
+            for (int seq = 0; seq < totalChunks; seq++) {
+                janela.aguardarEspaco();
+                int tamanho = (int) Math.min(tamanhoChunk, total - (long) seq * tamanhoChunk);
+                ByteBuffer quadro = Protocolo.alocar(tamanho);
+                Protocolo.escreverChunk(quadro, id, seq, bloco, 0, tamanho);
+                quadro.flip();
+                pendentes.put(seq, quadro);
+                enviadoEm.put(seq, System.currentTimeMillis());
+                remetente.send(quadro.duplicate(), enderecoReceptor);
+            }
+            threadReceptor.join();
+            retransmissor.shutdownNow();
+        }
+        return retransmissoes.get();
+    }
+
+    /**
+     * Tempo até o último CHUNK chegar com perda simulada de 0 a 10% dos
+     * datagramas do remetente (CHUNKs e PARIDADEs), sem FEC e com cada modo de
+     * MODOS_FEC. O receptor responde com SACK atrasado em rttMs; o remetente usa
+     * a retransmissão rápida da JanelaEnvio e timeout de 200 ms + 2 RTT, como o
+     * UDPNode. A perda usa semente fixa, então as linhas são comparáveis.
+     */
+    private static void benchmarkFec(int tamanhoMB, int rttMs) throws Exception {
+        System.out.println("Transferência de " + tamanhoMB + " MB em loopback, CHUNKs de 1 KB, RTT simulado " + rttMs + " ms");
+        transferirComPerda(tamanhoMB * 1024L * 1024L, 1024, 256, rttMs, 0.02, "16/2", new long[3]); // aquecimento do JIT
+        System.out.println("perda(%)   fec  tempo(ms)  retransmissões  paridades  recuperados");
+        for (int perda : PERDAS_PERCENTUAIS) {
+            for (String modo : MODOS_FEC) {
+                long[] contadores = new long[3];
+                long inicio = System.nanoTime();
+                transferirComPerda(tamanhoMB * 1024L * 1024L, 1024, 256, rttMs, perda / 100.0, modo, contadores);
+                long ms = (System.nanoTime() - inicio) / 1_000_000;
+                System.out.printf("%8d  %4s  %9d  %14d  %9d  %11d%n", perda, modo, ms, contadores[0], contadores[1], contadores[2]);
+            }
+        }
+    }
+
+    /** contadores recebe {retransmissões, paridades enviadas, CHUNKs recuperados pelo FEC}. */
+    private static void transferirComPerda(long total, int tamanhoChunk, int tamanhoJanela, int rttMs, double perda, String modoFec, long[] contadores) throws Exception {
+        final int id = 1;
+        int totalChunks = (int) ((total + tamanhoChunk - 1) / tamanhoChunk);
+        byte[] origemDados = new byte[(int) total];
+        new java.util.Random(1).nextBytes(origemDados);
+        byte[] destinoDados = new byte[(int) total];
+        AtomicInteger retransmissoes = new AtomicInteger();
+        Fec.Codificador fec = modoFec.equals("off") ? null
+                : modoFec.equals("auto") ? Fec.Codificador.automatico(tamanhoChunk)
+                : new Fec.Codificador(tamanhoChunk, Integer.parseInt(modoFec.split("/")[0]), Integer.parseInt(modoFec.split("/")[1]));
+        Fec.Decodificador decodificador = new Fec.Decodificador(total, tamanhoChunk);
+        try (DatagramChannel receptor = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+             DatagramChannel remetente = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            receptor.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            SocketAddress enderecoReceptor = receptor.getLocalAddress();
+            JanelaEnvio janela = new JanelaEnvio(tamanhoJanela);
+            Map<Integer, Long> pendentes = new ConcurrentHashMap<>(); // seq -> último envio (ms)
+            ScheduledExecutorService atrasoSack = Executors.newSingleThreadScheduledExecutor();
+
+            Thread threadReceptor = new Thread(() -> {
+                JanelaRecepcao recepcao = new JanelaRecepcao(Math.max(256, tamanhoJanela));
+                java.util.Random sorteio = new java.util.Random(42);
+                ByteBuffer quadro = ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + 3 + tamanhoChunk);
+                byte[] bitmap = new byte[Math.max(256, tamanhoJanela) / 8];
+                Fec.Leitura leitura = new Fec.Leitura() {
+                    @Override
+                    public boolean recebido(int seq) {
+                        return recepcao.jaRecebido(seq);
+                    }
+
+                    @Override
+                    public void ler(int seq, int tamanho, ByteBuffer destino) {
+                        destino.put(destinoDados, seq * tamanhoChunk, tamanho);
+                    }
+                };
+                try {
+                    while (recepcao.getProximoEsperado() < totalChunks) {
+                        quadro.clear();
+                        SocketAddress origem = receptor.receive(quadro);
+                        quadro.flip();
+                        if (sorteio.nextDouble() < perda) continue;
+                        Map<Integer, ByteBuffer> recuperados;
+                        if (Protocolo.tipo(quadro) == Protocolo.TIPO_PARIDADE) {
+                            recuperados = decodificador.receberParidade(Protocolo.seq(quadro), Protocolo.nParidade(quadro), Protocolo.kParidade(quadro),
+                                    Protocolo.indiceParidade(quadro), Protocolo.dadosParidade(quadro), leitura);
+                            if (recuperados.isEmpty()) continue;
+                        } else {
+                            int seq = Protocolo.seq(quadro);
+                            if (!recepcao.jaRecebido(seq)) {
+                                quadro.get(Protocolo.inicioPayload(quadro), destinoDados, seq * tamanhoChunk, Protocolo.comprimento(quadro));
+                                recepcao.registrar(seq);
+                            }
+                            recuperados = decodificador.aoReceber(seq, leitura);
+                        }
+                        if (recuperados != null) {
+                            for (Map.Entry<Integer, ByteBuffer> entrada : recuperados.entrySet()) {
+                                entrada.getValue().get(destinoDados, entrada.getKey() * tamanhoChunk, entrada.getValue().remaining());
+                                recepcao.registrar(entrada.getKey());
+                            }
+                        }
+                        int bytes = recepcao.prepararSack(bitmap, System.currentTimeMillis());
+                        ByteBuffer sack = Protocolo.alocar(4 + bytes);
+                        Protocolo.escreverSack(sack, id, recepcao.getProximoEsperado(), recepcao.espacoLivre(), bitmap, bytes);
+                        sack.flip();
+                        Runnable envio = () -> {
+                            try {
+                                receptor.send(sack, origem);
+                            } catch (Exception e) {
+                                if (receptor.isOpen()) e.printStackTrace();
+                            }
+                        };
+                        if (rttMs > 0) {
+                            atrasoSack.schedule(envio, rttMs, TimeUnit.MILLISECONDS);
+                        } else {
+                            envio.run();
+                        }
+                    }
+                } catch (Exception e) {
+                    if (receptor.isOpen()) e.printStackTrace();
+                }
+            });
+
+            Thread threadSacks = new Thread(() -> {
+                ByteBuffer quadro = ByteBuffer.allocateDirect(1024);
+                ByteBuffer reenvio = ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + tamanhoChunk);
+                try {
+                    while (true) {
+                        quadro.clear();
+                        remetente.receive(quadro);
+                        quadro.flip();
+                        int[] lacunas = janela.confirmarSack(Protocolo.seq(quadro), quadro, Protocolo.inicioBitmapSack(quadro), Protocolo.bytesBitmapSack(quadro), Protocolo.janelaSack(quadro));
+                        for (int seq : lacunas) {
+                            pendentes.put(seq, System.currentTimeMillis());
+                            retransmissoes.incrementAndGet();
+                            enviarChunkBench(remetente, reenvio, id, seq, origemDados, tamanhoChunk, enderecoReceptor);
+                        }
+                    }
+                } catch (Exception e) {
+                    if (remetente.isOpen()) e.printStackTrace();
+                }
+            });
+
+            ScheduledExecutorService retransmissor = Executors.newSingleThreadScheduledExecutor();
+            ByteBuffer reenvioTimeout = ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + tamanhoChunk);
+            retransmissor.scheduleAtFixedRate(() -> {
+                long agora = System.currentTimeMillis();
+                for (Map.Entry<Integer, Long> entry : pendentes.entrySet()) {
+                    int seq = entry.getKey();
+                    if (janela.confirmado(seq)) {
+                        pendentes.remove(seq);
+                    } else if (agora - entry.getValue() >= 200 + 2L * rttMs) {
+                        entry.setValue(agora);
+                        retransmissoes.incrementAndGet();
+                        try {
+                            enviarChunkBench(remetente, reenvioTimeout, id, seq, origemDados, tamanhoChunk, enderecoReceptor);
+                        } catch (Exception e) {
+                            if (remetente.isOpen()) e.printStackTrace();
+                        }
+                    }
+                }
+            }, 20, 20, TimeUnit.MILLISECONDS);
+
+            threadReceptor.start();
+            threadSacks.start();
+            ByteBuffer quadro = ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + 3 + tamanhoChunk);
+            if (fec != null) janela.setGrupoFec(fec.getK() > 0 ? fec.getN() + fec.getK() : 0);
+            for (int seq = 0; seq < totalChunks; seq++) {
+                janela.aguardarEspaco();
+                janela.registrarEnvio(seq, System.nanoTime());
+                pendentes.put(seq, System.currentTimeMillis());
+                enviarChunkBench(remetente, quadro, id, seq, origemDados, tamanhoChunk, enderecoReceptor);
+                if (fec == null) continue;
+                int tamanho = (int) Math.min(tamanhoChunk, total - (long) seq * tamanhoChunk);
+                if (fec.adicionar(seq, ByteBuffer.wrap(origemDados, seq * tamanhoChunk, tamanho), seq == totalChunks - 1)) {
+                    for (int j = 0; j < fec.getParidadesDoGrupo(); j++) {
+                        fec.escreverParidade(quadro, id, j);
+                        remetente.send(quadro, enderecoReceptor);
+                    }
+                    fec.proximoGrupo(janela.getPerdas());
+                    janela.setGrupoFec(fec.getK() > 0 ? fec.getN() + fec.getK() : 0);
+                }
+            }
+            threadReceptor.join();
+            retransmissor.shutdownNow();
+            atrasoSack.shutdownNow();
+        }
+        if (!java.util.Arrays.equals(origemDados, destinoDados)) System.out.println("[ERRO] conteúdo recebido difere do enviado (fec " + modoFec + ")");
+        contadores[0] = retransmissoes.get();
+        contadores[1] = fec != null ? fec.getParidadesEnviadas() : 0;
+        contadores[2] = decodificador.getRecuperados();
+    }
+
+    /**
+     * O mesmo arquivo para 1 a 8 receptores em loopback: "independentes" são N
+     * envios simultâneos, cada um lendo e montando os seus CHUNKs (o que N
+     * sendfile fazem), e "compartilhado" é um envio só que lê cada CHUNK uma
+     * vez e manda o mesmo buffer a todos, como o sendfile com vários destinos.
+     * Cada receptor confirma com ACK atrasado em rttMs.
+     */
+    private static void benchmarkDistribuicao(int tamanhoMB, int rttMs) throws Exception {
+        File arquivo = File.createTempFile("bench_distribuicao", ".bin");
+        arquivo.deleteOnExit();
+        byte[] bloco = new byte[1024 * 1024];
+        new java.util.Random(1).nextBytes(bloco);
+        try (RandomAccessFile raf = new RandomAccessFile(arquivo, "rw")) {
+            for (int i = 0; i < tamanhoMB; i++) raf.write(bloco);
+        }
+        System.out.println("Distribuição de " + tamanhoMB + " MB em CHUNKs de 1 KB, RTT simulado " + rttMs + " ms");
+        System.out.println("destinos  modo            tempo(ms)  lido(MB)");
+        distribuir(arquivo, 1, rttMs); // aquecimento do JIT
+        for (int destinos : QUANTIDADES_DESTINOS) {
+            long inicio = System.nanoTime();
+            java.util.concurrent.atomic.AtomicLong lidos = new java.util.concurrent.atomic.AtomicLong();
+            Thread[] envios = new Thread[destinos];
+            for (int i = 0; i < destinos; i++) {
+                envios[i] = new Thread(() -> {
+                    try {
+                        lidos.addAndGet(distribuir(arquivo, 1, rttMs));
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+                envios[i].start();
+            }
+            for (Thread envio : envios) envio.join();
+            System.out.printf("%8d  %-14s  %9d  %8.1f%n", destinos, "independentes", (System.nanoTime() - inicio) / 1_000_000, lidos.get() / 1048576.0);
+            inicio = System.nanoTime();
+            long lido = distribuir(arquivo, destinos, rttMs);
+            System.out.printf("%8d  %-14s  %9d  %8.1f%n", destinos, "compartilhado", (System.nanoTime() - inicio) / 1_000_000, lido / 1048576.0);
+        }
+        arquivo.delete();
+    }
+
+    /** Um remetente, destinos receptores; devolve quantos bytes foram lidos do arquivo (retransmissões incluídas). */
+    private static long distribuir(File arquivo, int destinos, int rttMs) throws Exception {
+        final int tamanhoChunk = 1024;
+        LeitorArquivo leitor = new LeitorArquivo(arquivo, tamanhoChunk);
+        int totalChunks = leitor.getTotalChunks();
+        java.util.concurrent.atomic.AtomicLong lidos = new java.util.concurrent.atomic.AtomicLong();
+        DatagramChannel[] receptores = new DatagramChannel[destinos];
+        JanelaEnvio[] janelas = new JanelaEnvio[destinos];
+        Map<SocketAddress, Integer> indices = new ConcurrentHashMap<>();
+        java.util.List<Map<Integer, Long>> pendentes = new java.util.ArrayList<>();
+        ScheduledExecutorService atrasoAck = Executors.newSingleThreadScheduledExecutor();
+        ScheduledExecutorService retransmissor = Executors.newSingleThreadScheduledExecutor();
+        Thread[] threadsReceptoras = new Thread[destinos];
+        try (DatagramChannel remetente = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            remetente.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            SocketAddress enderecoRemetente = remetente.getLocalAddress();
+            for (int i = 0; i < destinos; i++) {
+                receptores[i] = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                receptores[i].setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+                indices.put(receptores[i].getLocalAddress(), i);
+                janelas[i] = new JanelaEnvio(64);
+                pendentes.add(new ConcurrentHashMap<>());
+                DatagramChannel receptor = receptores[i];
+                threadsReceptoras[i] = new Thread(() -> {
+                    JanelaRecepcao recepcao = new JanelaRecepcao(256);
+                    ByteBuffer quadro = ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + tamanhoChunk);
+                    try {
+                        while (recepcao.getProximoEsperado() < totalChunks) {
+                            quadro.clear();
+                            receptor.receive(quadro);
+                            quadro.flip();
+                            int seq = Protocolo.seq(quadro);
+                            int livre = recepcao.registrar(seq);
+                            ByteBuffer ack = Protocolo.alocar(4);
+                            Protocolo.escreverAck(ack, Protocolo.id(quadro), seq, livre);
+                            ack.flip();
+                            atrasoAck.schedule(() -> {
+                                try {
+                                    receptor.send(ack, enderecoRemetente);
+                                } catch (Exception e) {
+                                    if (receptor.isOpen()) e.printStackTrace();
+                                }
+                            }, rttMs, TimeUnit.MILLISECONDS);
+                        }
+                    } catch (Exception e) {
+                        if (receptor.isOpen()) e.printStackTrace();
+                    }
+                });
+                threadsReceptoras[i].start();
+            }
+
+            Thread threadAcks = new Thread(() -> {
+                ByteBuffer quadro = ByteBuffer.allocateDirect(256);
+                try {
+                    while (true) {
+                        quadro.clear();
+                        SocketAddress origem = remetente.receive(quadro);
+                        quadro.flip();
+                        int i = indices.get(origem);
+                        int seq = Protocolo.seq(quadro);
+                        if (pendentes.get(i).remove(seq) != null) janelas[i].confirmar(seq, Protocolo.janelaAck(quadro));
+                    }
+                } catch (Exception e) {
+                    if (remetente.isOpen()) e.printStackTrace();
+                }
+            });
+            threadAcks.start();
+
+            ByteBuffer reenvio = ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + tamanhoChunk);
+            retransmissor.scheduleAtFixedRate(() -> {
+                long agora = System.currentTimeMillis();
+                for (int i = 0; i < destinos; i++) {
+                    for (Map.Entry<Integer, Long> entry : pendentes.get(i).entrySet()) {
+                        if (agora - entry.getValue() < 200 + 2L * rttMs) continue;
+                        entry.setValue(agora);
+                        try {
+                            reenvio.clear().position(Protocolo.TAMANHO_CABECALHO);
+                            int lido = leitor.ler(entry.getKey(), reenvio);
+                            lidos.addAndGet(lido);
+                            reenvio.position(0);
+                            Protocolo.escreverCabecalho(reenvio, Protocolo.TIPO_CHUNK, (byte) 0, i, entry.getKey(), lido);
+                            reenvio.limit(Protocolo.TAMANHO_CABECALHO + lido).position(0);
+                            remetente.send(reenvio, receptores[i].getLocalAddress());
+                        } catch (Exception e) {
+                            if (remetente.isOpen()) e.printStackTrace();
+                        }
+                    }
+                }
+            }, 50, 50, TimeUnit.MILLISECONDS);
+
+            // cada CHUNK é lido uma vez e o mesmo buffer vai a todos, trocando só o cabeçalho
+            ByteBuffer quadro = ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + tamanhoChunk);
+            for (int seq = 0; seq < totalChunks; seq++) {
+                quadro.clear().position(Protocolo.TAMANHO_CABECALHO);
+                int lido = leitor.ler(seq, quadro);
+                lidos.addAndGet(lido);
+                for (int i = 0; i < destinos; i++) {
+                    janelas[i].aguardarEspaco();
+                    pendentes.get(i).put(seq, System.currentTimeMillis());
+                    quadro.limit(Protocolo.TAMANHO_CABECALHO + lido).position(0);
+                    Protocolo.escreverCabecalho(quadro, Protocolo.TIPO_CHUNK, (byte) 0, i, seq, lido);
+                    quadro.position(0);
+                    remetente.send(quadro, receptores[i].getLocalAddress());
+                }
+            }
+            for (Thread thread : threadsReceptoras) thread.join();
+        } finally {
+            retransmissor.shutdownNow();
+            atrasoAck.shutdownNow();
+            for (DatagramChannel receptor : receptores) {
+                if (receptor != null) receptor.close();
+            }
+            leitor.fechar();
+        }
+        return lidos.get();
+    }
+
+    /**
+     * Vários remetentes ao mesmo tempo contra um receptor: o ReceptorNio
+     * tratando tudo na própria thread contra a PipelineRecepcao. Cada pacote
+     * custa um SHA-256 do payload e os do remetente 0 custam mais 200 µs,
+     * como uma escrita lenta em disco; cada remetente mantém até
+     * JANELA_REMETENTE pacotes sem ACK. Na recepção direta o remetente lento
+     * atrasa todos; na pipeline só quem cai na mesma fila que ele.
+     */
+    private static void benchmarkRecepcao(int remetentes, int pacotes) throws Exception {
+        System.out.println(remetentes + " remetentes x " + pacotes + " CHUNKs de 1 KB, " + Runtime.getRuntime().availableProcessors() + " núcleo(s)");
+        System.out.println("recepcao     demais(ms)  lento(ms)  pacotes/s  sem ACK");
+        medirRecepcao("direto", 0, remetentes, pacotes, false); // aquecimento do JIT
+        medirRecepcao("direto", 0, remetentes, pacotes, true);
+        for (int trabalhadores : TRABALHADORES_RECEPCAO) medirRecepcao("pipeline/" + trabalhadores, trabalhadores, remetentes, pacotes, true);
+    }
+
+    /** trabalhadores 0: recepção direta. */
+    private static void medirRecepcao(String modo, int trabalhadores, int remetentes, int pacotes, boolean imprimir) throws Exception {
+        DatagramChannel receptor = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        try {
+            receptor.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            ThreadLocal<java.security.MessageDigest> digests = ThreadLocal.withInitial(() -> {
+                try {
+                    return java.security.MessageDigest.getInstance("SHA-256");
+                } catch (java.security.NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            ThreadLocal<ByteBuffer> acks = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + 4));
+            ReceptorNio.Tratador tratador = (datagrama, origem) -> {
+                int id = Protocolo.id(datagrama);
+                int seq = Protocolo.seq(datagrama);
+                java.security.MessageDigest digest = digests.get();
+                digest.update(datagrama.duplicate().position(Protocolo.inicioPayload(datagrama)));
+                digest.digest();
+                if (id == 0) java.util.concurrent.locks.LockSupport.parkNanos(CUSTO_REMETENTE_LENTO_NS);
+                ByteBuffer ack = acks.get();
+                ack.clear();
+                Protocolo.escreverAck(ack, id, seq, JANELA_REMETENTE);
+                ack.flip();
+                try {
+                    receptor.send(ack, origem);
+                } catch (Exception e) {
+                    if (receptor.isOpen()) e.printStackTrace();
+                }
+            };
+            ReceptorNio leitor;
+            if (trabalhadores > 0) {
+                PipelineRecepcao pipeline = new PipelineRecepcao(tratador, trabalhadores, 64, 65536);
+                pipeline.iniciar();
+                leitor = new ReceptorNio(receptor, pipeline);
+            } else {
+                leitor = new ReceptorNio(receptor, new PoolBuffers(4, 65536), tratador);
+            }
+            Thread threadReceptor = new Thread(leitor);
+            threadReceptor.start();
+
+            long[] duracoes = new long[remetentes];
+            AtomicInteger confirmados = new AtomicInteger();
+            Thread[] envios = new Thread[remetentes];
+            long inicio = System.nanoTime();
+            for (int r = 0; r < remetentes; r++) {
+                final int id = r;
+                envios[r] = new Thread(() -> {
+                    try {
+                        duracoes[id] = enviarComJanela(id, pacotes, receptor.getLocalAddress(), confirmados) - inicio;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+                envios[r].start();
+            }
+            for (Thread envio : envios) envio.join();
+            long total = System.nanoTime() - inicio;
+            receptor.close(); // encerra o leitor
+            threadReceptor.join();
+            if (!imprimir) return;
+            long demais = 0;
+            for (int r = 1; r < remetentes; r++) demais = Math.max(demais, duracoes[r]);
+            System.out.printf("%-11s  %10d  %9d  %9.0f  %7d%n", modo, demais / 1_000_000, duracoes[0] / 1_000_000,
+                    confirmados.get() / (total / 1e9), (long) remetentes * pacotes - confirmados.get());
+        } finally {
+            receptor.close();
+        }
+    }
+
+    /** Envia pacotes CHUNKs com até JANELA_REMETENTE sem ACK; devolve o nanoTime do último ACK. */
+    private static long enviarComJanela(int id, int pacotes, SocketAddress destino, AtomicInteger confirmados) throws Exception {
+        try (DatagramChannel canal = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0))) {
+            java.util.concurrent.Semaphore janela = new java.util.concurrent.Semaphore(JANELA_REMETENTE);
+            java.util.concurrent.atomic.AtomicLong ultimoAck = new java.util.concurrent.atomic.AtomicLong();
+            AtomicInteger recebidos = new AtomicInteger();
+            Thread threadAcks = new Thread(() -> {
+                ByteBuffer buf = ByteBuffer.allocate(256);
+                try {
+                    while (recebidos.get() < pacotes) {
+                        buf.clear();
+                        canal.receive(buf);
+                        recebidos.incrementAndGet();
+                        confirmados.incrementAndGet();
+                        ultimoAck.set(System.nanoTime());
+                        janela.release();
+                    }
+                } catch (Exception e) {
+                    if (canal.isOpen()) e.printStackTrace();
+                }
+            });
+            threadAcks.start();
+            byte[] bloco = new byte[1024];
+            ByteBuffer quadro = ByteBuffer.allocateDirect(2048);
+            for (int seq = 0; seq < pacotes; seq++) {
+                // ACK perdido (fila cheia no receptor): a posição é liberada depois de 100 ms
+                janela.tryAcquire(100, TimeUnit.MILLISECONDS);
+                quadro.clear();
+                Protocolo.escreverChunk(quadro, id, seq, bloco, 0, bloco.length);
+                quadro.flip();
+                canal.send(quadro, destino);
+            }
+            threadAcks.join(2000);
+            return ultimoAck.get();
+        }
+    }
+
+    /**
+     * Sobe nós UDPNode completos na mesma JVM, cada um na sua porta do
+     * loopback, e mede: quanto tempo até todos conhecerem todos pelo
+     * HEARTBEAT e quanto leva cada nó enviar o arquivo ao seguinte (em anel,
+     * todos ao mesmo tempo) pelo sendfile de verdade.
+     */
+    private static void benchmarkNos(int maximoNos, int tamanhoKB) throws Exception {
+        File pasta = java.nio.file.Files.createTempDirectory("bench_nos").toFile();
+        File arquivo = new File(pasta, "bench.bin");
+        byte[] dados = new byte[tamanhoKB * 1024];
+        new java.util.Random(1).nextBytes(dados);
+        java.nio.file.Files.write(arquivo.toPath(), dados);
+        Log.Nivel nivelAnterior = Log.getNivel();
+        Log.setNivel(Log.Nivel.ERRO);
+        System.out.println("Nós em loopback, cada um enviando " + tamanhoKB + " KB ao seguinte");
+        // HEARTBEATs: enviados por todos os nós, respostas incluídas, até cada um conhecer todos
+        System.out.println("nós  descoberta(ms)  HEARTBEATs  envio(ms)  MB/s total  confirmados  threads");
+        try {
+            for (int nos : QUANTIDADES_NOS) {
+                if (nos <= maximoNos) medirNos(nos, pasta, arquivo);
+            }
+        } finally {
+            Log.setNivel(nivelAnterior);
+            apagar(pasta);
+        }
+    }
+
+    private static void medirNos(int quantidade, File pasta, File arquivo) throws Exception {
+        java.util.List<UDPNode> nos = new java.util.ArrayList<>();
+        java.util.List<InetSocketAddress> enderecos = new java.util.ArrayList<>();
+        try {
+            for (int i = 0; i < quantidade; i++) {
+                UDPNode no = new UDPNode("N" + i, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                no.setIdentificarLog(true);
+                no.setPastaArquivos(pasta);
+                no.setPastaRecebidos(new File(pasta, "recebidos_" + i));
+                no.setDestinosHeartbeat(java.util.List.of()); // os endereços só são conhecidos depois do bind
+                no.iniciar();
+                nos.add(no);
+                enderecos.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), no.getPorta()));
+            }
+            long inicio = System.nanoTime();
+            for (UDPNode no : nos) {
+                no.setDestinosHeartbeat(enderecos);
+                no.anunciar();
+            }
+            // cada nó também recebe o próprio HEARTBEAT
+            long prazo = System.currentTimeMillis() + 30_000;
+            while (!todosConhecidos(nos, quantidade) && System.currentTimeMillis() < prazo) Thread.sleep(1);
+            long descoberta = (System.nanoTime() - inicio) / 1_000_000;
+            long heartbeats = 0;
+            for (UDPNode no : nos) heartbeats += no.getMetricas().getPacotesEnviados().getOrDefault("HEARTBEAT", 0L);
+
+            inicio = System.nanoTime();
+            java.util.List<java.util.concurrent.CompletableFuture<Map<String, Boolean>>> envios = new java.util.ArrayList<>();
+            for (int i = 0; i < quantidade; i++) {
+                envios.add(nos.get(i).enviarArquivo("N" + ((i + 1) % quantidade), arquivo.getName()));
+            }
+            int confirmados = 0;
+            for (java.util.concurrent.CompletableFuture<Map<String, Boolean>> envio : envios) {
+                for (boolean confirmado : envio.get().values()) if (confirmado) confirmados++;
+            }
+            long envio = System.nanoTime() - inicio;
+            System.out.printf("%3d  %14d  %10d  %9d  %10.2f  %5d/%-5d  %7d%n", quantidade, descoberta, heartbeats, envio / 1_000_000,
+                    (double) quantidade * arquivo.length() / 1048576.0 / (envio / 1e9), confirmados, quantidade, Thread.activeCount());
+        } finally {
+            for (UDPNode no : nos) no.fechar();
+        }
+    }
+
+    private static boolean todosConhecidos(java.util.List<UDPNode> nos, int quantidade) {
+        for (UDPNode no : nos) {
+            if (no.getDispositivos().size() < quantidade) return false;
+        }
+        return true;
+    }
+
+    private static void apagar(File arquivo) {
+        File[] filhos = arquivo.listFiles();
+        if (filhos != null) {
+            for (File filho : filhos) apagar(filho);
+        }
+        arquivo.delete();
+    }
+
+    /**
+     * Transferências de ponta a ponta entre dois UDPNode ligados por um
+     * EnlaceSimulado, para cada perfil de defeitos e tamanho de arquivo. Mede
+     * goodput (bytes do arquivo por segundo até o ACK do END), retransmissões
+     * por timeout e por SACK e o custo das confirmações; além da tabela,
+     * grava os resultados em JSON para comparar entre versões.
+     */
+    private static void benchmarkEnlace(int[] tamanhosKB, String[] perfis, File saida) throws Exception {
+        Log.Nivel nivelAnterior = Log.getNivel();
+        Log.setNivel(Log.Nivel.ERRO);
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"benchmark\": \"enlace\",\n  \"data\": \"").append(java.time.Instant.now())
+                .append("\",\n  \"java\": \"").append(System.getProperty("java.version"))
+                .append("\",\n  \"nucleos\": ").append(Runtime.getRuntime().availableProcessors())
+                .append(",\n  \"resultados\": [");
+        System.out.println("perfil     tamanho(KB)  tempo(ms)    MB/s  retr.timeout  retr.sack  conf/dado  overhead  íntegro");
+        try {
+            medirEnlace("limpo", 1024, false); // aquecimento do JIT
+            boolean primeiro = true;
+            for (String perfil : perfis) {
+                for (int tamanhoKB : tamanhosKB) {
+                    String resultado = medirEnlace(perfil, tamanhoKB, true);
+                    json.append(primeiro ? "\n    " : ",\n    ").append(resultado);
+                    primeiro = false;
+                }
+            }
+        } finally {
+            Log.setNivel(nivelAnterior);
+        }
+        json.append("\n  ]\n}\n");
+        java.nio.file.Files.write(saida.toPath(), json.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        System.out.println("Resultados em " + saida.getPath());
+    }
+
+    /** Defeitos usados nos dois sentidos do enlace. */
+    private static EnlaceSimulado.Perfil perfilEnlace(String nome) {
+        switch (nome) {
+            case "limpo":
+                return new EnlaceSimulado.Perfil();
+            case "atraso":
+                return new EnlaceSimulado.Perfil().atraso(10, 2);
+            case "perda1":
+                return new EnlaceSimulado.Perfil().atraso(5, 0).perda(0.01);
+            case "perda5":
+                return new EnlaceSimulado.Perfil().atraso(5, 0).perda(0.05);
+            case "reordena":
+                return new EnlaceSimulado.Perfil().atraso(2, 0).reordenacao(0.05, 5);
+            case "duplica":
+                return new EnlaceSimulado.Perfil().atraso(2, 0).duplicacao(0.05);
+            case "banda":
+                return new EnlaceSimulado.Perfil().atraso(5, 0).banda(50_000_000L, 256 * 1024);
+            case "wan":
+                return new EnlaceSimulado.Perfil().atraso(20, 5).perda(0.01).reordenacao(0.01, 10).duplicacao(0.005).banda(20_000_000L, 128 * 1024);
+            default:
+                throw new IllegalArgumentException("Perfil de enlace desconhecido: " + nome);
+        }
+    }
+
+    /** Uma transferência; devolve o objeto JSON do resultado. */
+    private static String medirEnlace(String perfil, int tamanhoKB, boolean imprimir) throws Exception {
+        File pasta = java.nio.file.Files.createTempDirectory("bench_enlace").toFile();
+        byte[] dados = new byte[tamanhoKB * 1024];
+        new java.util.Random(tamanhoKB).nextBytes(dados);
+        File arquivo = new File(pasta, "enlace.bin");
+        java.nio.file.Files.write(arquivo.toPath(), dados);
+        UDPNode remetente = new UDPNode("A", new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        UDPNode receptor = new UDPNode("B", new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        EnlaceSimulado enlace = null;
+        try {
+            for (UDPNode no : new UDPNode[]{remetente, receptor}) {
+                no.setIdentificarLog(true);
+                no.setPastaArquivos(pasta);
+                no.setPastaRecebidos(new File(pasta, "recebidos_" + no.getNome()));
+                no.setDestinosHeartbeat(java.util.List.of());
+                no.iniciar();
+            }
+            enlace = new EnlaceSimulado(new InetSocketAddress(InetAddress.getLoopbackAddress(), remetente.getPorta()),
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), receptor.getPorta()),
+                    perfilEnlace(perfil), perfilEnlace(perfil), 42);
+            // os dois só se conhecem pelo endereço do enlace; HEARTBEATs perdidos são repetidos
+            long prazo = System.currentTimeMillis() + 10_000;
+            while (!(remetente.getDispositivos().contains("B") && receptor.getDispositivos().contains("A"))) {
+                if (System.currentTimeMillis() > prazo) throw new IllegalStateException("Nós não se descobriram pelo enlace " + perfil);
+                remetente.setDestinosHeartbeat(java.util.List.of(enlace.getEndereco()));
+                receptor.setDestinosHeartbeat(java.util.List.of(enlace.getEndereco()));
+                remetente.anunciar();
+                receptor.anunciar();
+                Thread.sleep(50);
+            }
+
+            long inicio = System.nanoTime();
+            Map<String, Boolean> confirmados = remetente.enviarArquivo("B", arquivo.getName()).get(300, TimeUnit.SECONDS);
+            long nanos = System.nanoTime() - inicio;
+            boolean concluido = Boolean.TRUE.equals(confirmados.get("B"));
+            File recebido = new File(pasta, "recebidos_B/" + arquivo.getName());
+            boolean integro = recebido.exists() && java.util.Arrays.equals(java.nio.file.Files.readAllBytes(recebido.toPath()), dados);
+
+            EnlaceSimulado.Sentido ida = enlace.getIda();
+            EnlaceSimulado.Sentido volta = enlace.getVolta();
+            double megabytesPorSegundo = dados.length / 1048576.0 / (nanos / 1e9);
+            double confirmacoesPorDado = (double) volta.getDatagramasConfirmacao() / Math.max(1, ida.getDatagramasDados());
+            double overhead = (double) volta.getBytesConfirmacao() / Math.max(1, ida.getBytesDados());
+            if (imprimir) System.out.printf("%-9s  %11d  %9d  %6.2f  %12d  %9d  %9.3f  %7.2f%%  %s%n", perfil, tamanhoKB, nanos / 1_000_000, megabytesPorSegundo,
+                    remetente.getMetricas().getRetransmissoesTimeout(), remetente.getMetricas().getRetransmissoesRapidas(), confirmacoesPorDado, 100 * overhead, integro ? "sim" : "NÃO");
+            return String.format(java.util.Locale.ROOT,
+                    "{\"perfil\": \"%s\", \"tamanhoBytes\": %d, \"concluido\": %b, \"integro\": %b, \"tempoMs\": %.3f, \"goodputMBps\": %.3f, "
+                            + "\"retransmissoesTimeout\": %d, \"retransmissoesSack\": %d, "
+                            + "\"datagramasDados\": %d, \"bytesDados\": %d, \"datagramasConfirmacao\": %d, \"bytesConfirmacao\": %d, "
+                            + "\"confirmacoesPorDado\": %.4f, \"overheadConfirmacao\": %.4f, "
+                            + "\"perdidos\": %d, \"descartadosFila\": %d, \"duplicados\": %d, \"reordenados\": %d}",
+                    perfil, (long) dados.length, concluido, integro, nanos / 1e6, megabytesPorSegundo,
+                    remetente.getMetricas().getRetransmissoesTimeout(), remetente.getMetricas().getRetransmissoesRapidas(),
+                    ida.getDatagramasDados(), ida.getBytesDados(), volta.getDatagramasConfirmacao(), volta.getBytesConfirmacao(),
+                    confirmacoesPorDado, overhead,
+                    ida.getPerdidos() + volta.getPerdidos(), ida.getDescartadosFila() + volta.getDescartadosFila(),
+                    ida.getDuplicados() + volta.getDuplicados(), ida.getReordenados() + volta.getReordenados());
+        } finally {
+            remetente.fechar();
+            receptor.fechar();
+            if (enlace != null) enlace.close();
+            apagar(pasta);
+        }
+    }
+
+    private static void enviarChunkBench(DatagramChannel canal, ByteBuffer quadro, int id, int seq, byte[] dados, int tamanhoChunk, SocketAddress destino) throws Exception {
+        int tamanho = (int) Math.min(tamanhoChunk, dados.length - (long) seq * tamanhoChunk);
+        quadro.clear();
+        Protocolo.escreverChunk(quadro, id, seq, dados, seq * tamanhoChunk, tamanho);
+        quadro.flip();
+        canal.send(quadro, destino);
+    }
+
+    private static void registrarMedicao(com.sun.management.ThreadMXBean mx, int seq, int inicio, int fim, long[] medicao) {
+        if (seq == inicio && medicao[0] == 0) {
+            medicao[1] = System.nanoTime();
+            medicao[0] = mx.getCurrentThreadAllocatedBytes();
+        } else if (seq == fim && medicao[2] == 0) {
+            medicao[2] = mx.getCurrentThreadAllocatedBytes();
+            medicao[3] = System.nanoTime();
+        }
+    }
+
+    private static void enviar(DatagramSocket socket, DatagramPacket packet) {
+        try {
+            socket.send(packet);
+        } catch (Exception e) {
+            if (!socket.isClosed()) e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package labredes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache LRU dos arquivos abertos pelas transferências recebidas. Cada
+ * transferência mantém um GravadorArquivo aberto enquanto recebe CHUNKs; o
+ * menos usado é fechado quando o cache enche, e as entradas saem no END ou
+ * por ociosidade (fecharOciosos). Uma transferência que volta depois de
+ * removida simplesmente reabre o arquivo.
+ */
+public class CacheCanais {
+    private final int capacidade;
+    private final int tamanhoLote;
+    private final Map<TransferenciaRecepcao.Chave, GravadorArquivo> abertos = new LinkedHashMap<>(16, 0.75f, true);
+
+    public CacheCanais(int capacidade, int tamanhoLote) {
+        this.capacidade = capacidade;
+        this.tamanhoLote = tamanhoLote;
+    }
+
+    /** Cria o arquivo de uma transferência nova (ver GravadorArquivo.criar) e o deixa aberto. */
+    public synchronized void criar(TransferenciaRecepcao.Chave chave, File arquivo, long tamanhoPrealocado) throws IOException {
+        fechar(chave);
+        GravadorArquivo gravador = GravadorArquivo.criar(arquivo, tamanhoPrealocado, tamanhoLote);
+        liberarEspaco();
+        abertos.put(chave, gravador);
+    }
+
+    public synchronized void gravar(TransferenciaRecepcao.Chave chave, File arquivo, long posicao, ByteBuffer dados) throws IOException {
+        obter(chave, arquivo).gravar(posicao, dados, System.currentTimeMillis());
+    }
+
+    /** Lê do arquivo da transferência (inclusive o que ainda está no lote) até encher destino. */
+    public synchronized void ler(TransferenciaRecepcao.Chave chave, File arquivo, long posicao, ByteBuffer destino) throws IOException {
+        obter(chave, arquivo).ler(posicao, destino);
+    }
+
+    /** Grava o lote pendente e força os dados ao disco, mantendo o arquivo aberto. */
+    public synchronized void sincronizar(TransferenciaRecepcao.Chave chave) throws IOException {
+        GravadorArquivo gravador = abertos.get(chave);
+        if (gravador != null) gravador.sincronizar();
+    }
+
+    /** Descarrega e fecha o arquivo da transferência, se estiver aberto. */
+    public synchronized void fechar(TransferenciaRecepcao.Chave chave) throws IOException {
+        GravadorArquivo gravador = abertos.remove(chave);
+        if (gravador != null) gravador.fechar();
+    }
+
+    /** Fecha os arquivos sem escrita há pelo menos ociosoMs; devolve quantos foram fechados. */
+    public synchronized int fecharOciosos(long agora, long ociosoMs) {
+        int fechados = 0;
+        Iterator<GravadorArquivo> it = abertos.values().iterator();
+        while (it.hasNext()) {
+            GravadorArquivo gravador = it.next();
+            if (agora - gravador.getUltimoUso() >= ociosoMs) {
+                it.remove();
+                fecharSemFalhar(gravador);
+                fechados++;
+            }
+        }
+        return fechados;
+    }
+
+    private GravadorArquivo obter(TransferenciaRecepcao.Chave chave, File arquivo) throws IOException {
+        GravadorArquivo gravador = abertos.get(chave);
+        if (gravador == null) {
+            gravador = GravadorArquivo.abrir(arquivo, tamanhoLote);
+            liberarEspaco();
+            abertos.put(chave, gravador);
+        }
+        return gravador;
+    }
+
+    public synchronized int getAbertos() {
+        return abertos.size();
+    }
+
+    private void liberarEspaco() {
+        Iterator<GravadorArquivo> it = abertos.values().iterator();
+        while (abertos.size() >= capacidade && it.hasNext()) {
+            GravadorArquivo menosUsado = it.next();
+            it.remove();
+            fecharSemFalhar(menosUsado);
+        }
+    }
+
+    private static void fecharSemFalhar(GravadorArquivo gravador) {
+        try {
+            gravador.fechar();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
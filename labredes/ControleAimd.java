@@ -0,0 +1,62 @@
+package labredes;
+
+/**
+ * AIMD no estilo do TCP Reno: slow start até o limiar, depois +1 CHUNK por
+ * janela confirmada; perda por SACK corta a janela pela metade e timeout volta
+ * a janela para um CHUNK. Várias perdas da mesma rajada (dentro de um RTT)
+ * contam como um único corte. A janela só cresce quando estava toda em uso.
+ */
+public class ControleAimd implements ControleCongestionamento {
+    private static final double JANELA_INICIAL = 4;
+    private static final double JANELA_MINIMA = 1;
+
+    private final EstimadorRtt rtt;
+    private double cwnd = JANELA_INICIAL;
+    private double limiar = Double.MAX_VALUE;
+    private long ultimoCorte = Long.MIN_VALUE / 2; // agoraNanos - ultimoCorte não pode estourar
+
+    public ControleAimd(EstimadorRtt rtt) {
+        this.rtt = rtt;
+    }
+
+    @Override
+    public synchronized void aoConfirmar(int chunks, int emVoo, long rttNanos, long agoraNanos) {
+        // limitado pela janela local ou pela anunciada: a rede não foi testada nesse tamanho
+        if (emVoo < (int) cwnd) return;
+        if (cwnd < limiar) {
+            cwnd = Math.min(cwnd + chunks, Math.max(limiar, JANELA_INICIAL));
+        } else {
+            cwnd += (double) chunks / cwnd;
+        }
+    }
+
+    @Override
+    public synchronized void aoPerder(boolean timeout, long agoraNanos) {
+        long srtt = rtt.getSrttNanos();
+        if (agoraNanos - ultimoCorte < (srtt > 0 ? srtt : rtt.getRtoNanos())) return;
+        ultimoCorte = agoraNanos;
+        limiar = Math.max(2, cwnd / 2);
+        cwnd = timeout ? JANELA_MINIMA : limiar;
+    }
+
+    @Override
+    public synchronized int getJanela() {
+        return (int) cwnd;
+    }
+
+    @Override
+    public long getIntervaloEnvioNanos() {
+        return 0;
+    }
+
+    @Override
+    public synchronized double getRitmoChunksPorSegundo() {
+        long srtt = rtt.getSrttNanos();
+        return srtt > 0 ? cwnd * 1e9 / srtt : 0;
+    }
+
+    @Override
+    public String getNome() {
+        return "aimd";
+    }
+}
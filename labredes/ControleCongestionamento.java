@@ -0,0 +1,44 @@
+package labredes;
+
+/**
+ * Controle de congestionamento de uma transferência. A JanelaEnvio informa
+ * os CHUNKs confirmados (com a amostra de RTT, quando houver) e as perdas
+ * detectadas; o controle devolve quantos CHUNKs podem estar em voo e, no
+ * modo com ritmo, o intervalo mínimo entre dois envios.
+ *
+ * Os métodos são chamados com o lock da JanelaEnvio; as leituras para os
+ * contadores podem vir de outra thread.
+ */
+public interface ControleCongestionamento {
+    /**
+     * CHUNKs confirmados agora; emVoo é quantos estavam em voo antes da
+     * confirmação e rttNanos é -1 quando não houve amostra válida.
+     */
+    void aoConfirmar(int chunks, int emVoo, long rttNanos, long agoraNanos);
+
+    /** Perda detectada por retransmissão rápida (SACK) ou por timeout. */
+    void aoPerder(boolean timeout, long agoraNanos);
+
+    /** Janela de congestionamento em CHUNKs. */
+    int getJanela();
+
+    /** Intervalo entre envios em nanossegundos, ou 0 para enviar sem ritmo. */
+    long getIntervaloEnvioNanos();
+
+    /** Taxa de envio estimada em CHUNKs por segundo (só informativo). */
+    double getRitmoChunksPorSegundo();
+
+    String getNome();
+
+    /** Cria o controle pelo nome usado no comando "congestionamento"; null para janela fixa. */
+    static ControleCongestionamento criar(String modo, EstimadorRtt rtt) {
+        switch (modo) {
+            case "aimd":
+                return new ControleAimd(rtt);
+            case "ritmo":
+                return new ControleRitmo(rtt);
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package labredes;
+
+/**
+ * Controle por ritmo no estilo do BBR: estima a banda do gargalo (máximo da
+ * taxa de entrega nas últimas rodadas) e o RTT mínimo, e envia espaçado na
+ * taxa estimada vezes um ganho. A janela fica em duas vezes o produto
+ * banda x atraso, só como teto para o que está em voo.
+ *
+ * Na partida o ganho é alto (2,89) até a banda parar de crescer 25% por três
+ * rodadas; depois o ganho alterna 1,25 / 0,75 / 1 para sondar mais banda e
+ * drenar a fila. Perda, ao contrário do BBR original, também reduz a banda
+ * estimada (15%, uma vez por rodada), para não insistir numa rede saturada.
+ */
+public class ControleRitmo implements ControleCongestionamento {
+    private static final double GANHO_PARTIDA = 2.89;
+    private static final double[] CICLO_GANHOS = {1.25, 0.75, 1, 1, 1, 1, 1, 1};
+    private static final int RODADAS_FILTRO_BANDA = 10;
+    private static final double RITMO_INICIAL = 1000; // CHUNKs por segundo, antes da primeira medição
+    // o receptor agrupa até 16 CHUNKs por SACK; uma janela menor que isso vira para-e-espera
+    private static final int JANELA_MINIMA = 32;
+    private static final long RODADA_MINIMA_NS = 1_000_000L;
+
+    private final EstimadorRtt rtt;
+    private final double[] amostrasBanda = new double[RODADAS_FILTRO_BANDA];
+    private int rodada = 0;
+    private double banda = 0; // CHUNKs por segundo
+    private long rttMinimo = Long.MAX_VALUE;
+    private long inicioRodada = -1;
+    private int entreguesNaRodada = 0;
+    private boolean partida = true;
+    private double bandaReferencia = 0;
+    private int rodadasSemCrescer = 0;
+    private int fase = 0;
+    private boolean perdaNaRodada = false;
+
+    public ControleRitmo(EstimadorRtt rtt) {
+        this.rtt = rtt;
+    }
+
+    @Override
+    public synchronized void aoConfirmar(int chunks, int emVoo, long rttNanos, long agoraNanos) {
+        if (rttNanos > 0 && rttNanos < rttMinimo) rttMinimo = rttNanos;
+        if (inicioRodada < 0) inicioRodada = agoraNanos;
+        entreguesNaRodada += chunks;
+        long duracao = agoraNanos - inicioRodada;
+        if (duracao < Math.max(RODADA_MINIMA_NS, rttMinimo == Long.MAX_VALUE ? 0 : rttMinimo)) return;
+
+        amostrasBanda[rodada % RODADAS_FILTRO_BANDA] = entreguesNaRodada * 1e9 / duracao;
+        rodada++;
+        double maximo = 0;
+        for (double amostra : amostrasBanda) maximo = Math.max(maximo, amostra);
+        banda = maximo;
+        inicioRodada = agoraNanos;
+        entreguesNaRodada = 0;
+        perdaNaRodada = false;
+
+        if (partida) {
+            if (banda >= bandaReferencia * 1.25) {
+                bandaReferencia = banda;
+                rodadasSemCrescer = 0;
+            } else if (++rodadasSemCrescer >= 3) {
+                partida = false;
+            }
+        } else {
+            fase = (fase + 1) % CICLO_GANHOS.length;
+        }
+    }
+
+    @Override
+    public synchronized void aoPerder(boolean timeout, long agoraNanos) {
+        if (perdaNaRodada || banda == 0) return;
+        perdaNaRodada = true;
+        partida = false;
+        for (int i = 0; i < amostrasBanda.length; i++) amostrasBanda[i] *= 0.85;
+        banda *= 0.85;
+    }
+
+    @Override
+    public synchronized int getJanela() {
+        long atraso = rttMinimo != Long.MAX_VALUE ? rttMinimo : rtt.getRtoNanos();
+        if (banda == 0) return Integer.MAX_VALUE; // sem medição ainda: o ritmo inicial limita
+        double bdp = banda * atraso / 1e9;
+        return (int) Math.max(JANELA_MINIMA, 2 * ganho() * bdp);
+    }
+
+    @Override
+    public synchronized long getIntervaloEnvioNanos() {
+        return (long) (1e9 / getRitmoChunksPorSegundo());
+    }
+
+    @Override
+    public synchronized double getRitmoChunksPorSegundo() {
+        return (banda > 0 ? banda : RITMO_INICIAL) * ganho();
+    }
+
+    @Override
+    public String getNome() {
+        return "ritmo";
+    }
+
+    private double ganho() {
+        return partida ? GANHO_PARTIDA : CICLO_GANHOS[fase];
+    }
+}
@@ -6,7 +6,14 @@ public class Device {
     private String name;
     private InetAddress ipAddress;
     private int port;
-    private long lastSeen; 
+    private volatile long lastSeen; // renovado pela thread que recebe o HEARTBEAT, lido pela manutenção
+    private volatile boolean protocoloBinario;
+    private volatile boolean retomavel;
+    private volatile boolean fec;
+    private volatile int tamanhoMaximoChunk = Protocolo.TAMANHO_CHUNK_PADRAO; // anunciado no HEARTBEAT
+    private volatile int datagramaSondado; // 0 até a primeira sonda
+    private volatile long intervaloHeartbeatMs = Protocolo.INTERVALO_HEARTBEAT_PADRAO_MS; // anunciado no HEARTBEAT
+    private volatile boolean anunciaIntervalo; // entende CAPACIDADE_INTERVALO nos HEARTBEATs dos outros
 
     public Device(String name, InetAddress ipAddress, int port) {
         this.name = name;
@@ -34,4 +41,60 @@ public class Device {
     public void updateLastSeen() {
         this.lastSeen = System.currentTimeMillis();
     }
+
+    public boolean isProtocoloBinario() {
+        return protocoloBinario;
+    }
+
+    public void setProtocoloBinario(boolean protocoloBinario) {
+        this.protocoloBinario = protocoloBinario;
+    }
+
+    public boolean isRetomavel() {
+        return retomavel;
+    }
+
+    public void setRetomavel(boolean retomavel) {
+        this.retomavel = retomavel;
+    }
+
+    public boolean isFec() {
+        return fec;
+    }
+
+    public void setFec(boolean fec) {
+        this.fec = fec;
+    }
+
+    public int getTamanhoMaximoChunk() {
+        return tamanhoMaximoChunk;
+    }
+
+    public void setTamanhoMaximoChunk(int tamanhoMaximoChunk) {
+        this.tamanhoMaximoChunk = tamanhoMaximoChunk;
+    }
+
+    public long getIntervaloHeartbeatMs() {
+        return intervaloHeartbeatMs;
+    }
+
+    public void setIntervaloHeartbeatMs(long intervaloHeartbeatMs) {
+        this.intervaloHeartbeatMs = intervaloHeartbeatMs;
+    }
+
+    public boolean isAnunciaIntervalo() {
+        return anunciaIntervalo;
+    }
+
+    public void setAnunciaIntervalo(boolean anunciaIntervalo) {
+        this.anunciaIntervalo = anunciaIntervalo;
+    }
+
+    public int getDatagramaSondado() {
+        return datagramaSondado;
+    }
+
+    public void setDatagramaSondado(int datagramaSondado) {
+        this.datagramaSondado = datagramaSondado;
+    }
 }
\ No newline at end of file
@@ -1,25 +1,95 @@
 package labredes;
 
+import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Registro dos dispositivos vistos por HEARTBEAT. A inclusão e a renovação
+ * são atômicas por nome (compute no mapa), então HEARTBEATs simultâneos do
+ * mesmo nó não o registram duas vezes.
+ *
+ * A expiração segue uma fila de prazos: cada dispositivo tem uma entrada
+ * com o instante em que venceria se não aparecesse mais, e a manutenção só
+ * olha as entradas já vencidas. Quem mandou HEARTBEAT nesse meio tempo volta
+ * para a fila com o prazo novo; assim renovar custa só a escrita de
+ * lastSeen e cada dispositivo passa pela fila uma vez por prazo, não a
+ * cada segundo.
+ */
 public class DeviceManager {
+    /** Prazo mínimo sem HEARTBEAT antes de considerar o dispositivo desconectado. */
+    public static final long EXPIRACAO_MINIMA_MS = 10_000;
+    /** HEARTBEATs seguidos que podem se perder antes de o dispositivo expirar. */
+    private static final int HEARTBEATS_POR_EXPIRACAO = 3;
+
     private Map<String, Device> devices = new ConcurrentHashMap<>();
+    private Map<InetSocketAddress, Device> devicesByAddress = new ConcurrentHashMap<>();
+    private final PriorityQueue<Prazo> prazos = new PriorityQueue<>(); // acesso sincronizado nela
 
-    public boolean addOrUpdateDevice(String name, Device device) {
-        if (devices.containsKey(name)) {
-            devices.get(name).updateLastSeen();
-            return false; // já existia
-        } else {
-            devices.put(name, device);
-            return true; // é novo!
+    private static final class Prazo implements Comparable<Prazo> {
+        private final long instante;
+        private final String nome;
+        private final Device device;
+
+        Prazo(long instante, String nome, Device device) {
+            this.instante = instante;
+            this.nome = nome;
+            this.device = device;
         }
+
+        @Override
+        public int compareTo(Prazo outro) {
+            return Long.compare(instante, outro.instante);
+        }
+    }
+
+    /**
+     * Registra o dispositivo ou renova o que já existe com esse nome e
+     * endereço. Um nome que reaparece em outro endereço (nó reiniciado em
+     * outra porta) substitui o registro antigo e conta como novo.
+     */
+    public boolean addOrUpdateDevice(String name, Device device) {
+        Device[] anterior = new Device[1];
+        Device atual = devices.compute(name, (nome, existente) -> {
+            if (existente != null && existente.getIpAddress().equals(device.getIpAddress()) && existente.getPort() == device.getPort()) {
+                existente.updateLastSeen();
+                return existente;
+            }
+            anterior[0] = existente;
+            return device;
+        });
+        if (atual != device) return false; // já existia
+        if (anterior[0] != null) devicesByAddress.remove(endereco(anterior[0]), anterior[0]);
+        devicesByAddress.put(endereco(device), device);
+        agendar(name, device, device.getLastSeen() + expiracao(device));
+        return true; // é novo!
     }
 
     public Device getDevice(String name) {
         return devices.get(name);
     }
 
+    /** Nomes dos dispositivos ativos, numa lista nova. */
+    public List<String> getDeviceNames() {
+        return new ArrayList<>(devices.keySet());
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    /** Se todos os dispositivos conhecidos leem o intervalo anunciado no HEARTBEAT. */
+    public boolean todosAnunciamIntervalo() {
+        for (Device device : devices.values()) {
+            if (!device.isAnunciaIntervalo()) return false;
+        }
+        return true;
+    }
+
+    public Device getDeviceByAddress(InetSocketAddress address) {
+        return devicesByAddress.get(address);
+    }
+
     public void listDevices(String deviceLocal) {
         System.out.println("Dispositivos ativos:");
         long agora = System.currentTimeMillis();
@@ -27,21 +97,51 @@ public class DeviceManager {
             long seconds = (agora - device.getLastSeen()) / 1000;
             String obs = "";
             if(deviceLocal.equals(device.getName()))
-                obs = "(Este Dispositivo)"; 
+                obs = "(Este Dispositivo)";
             System.out.println("- " + device.getName() + " (" + device.getIpAddress().getHostAddress() + ":" + device.getPort() + ") " + seconds + "s atrás" + obs );
         }
     }
 
+    /** Tempo sem HEARTBEAT que o dispositivo tolera, pelo intervalo que ele anunciou. */
+    public static long expiracao(Device device) {
+        return Math.max(EXPIRACAO_MINIMA_MS, HEARTBEATS_POR_EXPIRACAO * device.getIntervaloHeartbeatMs());
+    }
+
+    /** Remove os dispositivos cujo prazo venceu; só percorre as entradas vencidas da fila. */
     public void removeInactiveDevices() {
         long agora = System.currentTimeMillis();
-        Iterator<Map.Entry<String, Device>> it = devices.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, Device> entry = it.next();
-            Device device = entry.getValue();
-            if (agora - device.getLastSeen() > 10_000) { // 10 segundos
-                System.out.println("[Dispositivo desconectado] " + entry.getKey() + " (" + device.getIpAddress().getHostAddress() + ")");
-                it.remove();
+        while (true) {
+            Prazo prazo;
+            synchronized (prazos) {
+                prazo = prazos.peek();
+                if (prazo == null || prazo.instante > agora) return;
+                prazos.poll();
             }
+            Device device = prazo.device;
+            boolean[] removido = new boolean[1];
+            // conferir e remover dentro do compute: um HEARTBEAT que chega agora não se perde
+            Device atual = devices.computeIfPresent(prazo.nome, (nome, existente) -> {
+                if (existente != device || device.getLastSeen() + expiracao(device) > agora) return existente;
+                removido[0] = true;
+                return null;
+            });
+            if (removido[0]) {
+                devicesByAddress.remove(endereco(device), device);
+                Log.info("[Dispositivo desconectado] " + prazo.nome + " (" + device.getIpAddress().getHostAddress() + ")");
+            } else if (atual == device) {
+                // renovado depois de agendado; um registro substituído só deixa a entrada velha para trás
+                agendar(prazo.nome, device, device.getLastSeen() + expiracao(device));
+            }
+        }
+    }
+
+    private void agendar(String nome, Device device, long instante) {
+        synchronized (prazos) {
+            prazos.add(new Prazo(instante, nome, device));
         }
     }
-}
\ No newline at end of file
+
+    private static InetSocketAddress endereco(Device device) {
+        return new InetSocketAddress(device.getIpAddress(), device.getPort());
+    }
+}
@@ -0,0 +1,283 @@
+package labredes;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Enlace com defeitos entre dois nós no loopback, para medir o protocolo sem
+ * containers. Cada nó fala com o outro pelo endereço do enlace (é para ele
+ * que vão os HEARTBEATs): o que chega de um lado sai do outro depois de
+ * passar pela perda, duplicação, reordenação, atraso e limite de banda
+ * daquele sentido. O tráfego é contado por tipo antes dos defeitos, o que dá
+ * o custo das confirmações frente aos dados.
+ */
+public class EnlaceSimulado implements Closeable {
+    /** Defeitos de um sentido do enlace; probabilidades entre 0 e 1. */
+    public static final class Perfil {
+        private double perda;
+        private double duplicacao;
+        private double reordenacao;
+        private long atrasoNanos;
+        private long variacaoNanos;
+        private long atrasoReordenacaoNanos = 5_000_000L;
+        private long bytesPorSegundo; // 0: sem limite
+        private int filaBytes = 256 * 1024;
+
+        public Perfil perda(double probabilidade) {
+            perda = probabilidade;
+            return this;
+        }
+
+        /** A cópia sai logo depois do original. */
+        public Perfil duplicacao(double probabilidade) {
+            duplicacao = probabilidade;
+            return this;
+        }
+
+        /** O datagrama escolhido fica atrasoMs a mais e é ultrapassado pelos seguintes. */
+        public Perfil reordenacao(double probabilidade, long atrasoMs) {
+            reordenacao = probabilidade;
+            atrasoReordenacaoNanos = atrasoMs * 1_000_000L;
+            return this;
+        }
+
+        /** Atraso de propagação fixo mais uma variação uniforme de até variacaoMs para cada lado. */
+        public Perfil atraso(long atrasoMs, long variacaoMs) {
+            atrasoNanos = atrasoMs * 1_000_000L;
+            variacaoNanos = variacaoMs * 1_000_000L;
+            return this;
+        }
+
+        /** Banda do sentido; o que não cabe em filaBytes esperando para sair é descartado. */
+        public Perfil banda(long bitsPorSegundo, int filaBytes) {
+            this.bytesPorSegundo = bitsPorSegundo / 8;
+            this.filaBytes = filaBytes;
+            return this;
+        }
+    }
+
+    /** Contadores de um sentido. Datagramas e bytes são os que entraram no enlace. */
+    public static final class Sentido {
+        private final InetSocketAddress destino;
+        private final Perfil perfil;
+        private long livreEm; // quando a "linha" termina de transmitir o que já está na fila; só a thread leitora usa
+        private final AtomicLong datagramas = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong datagramasDados = new AtomicLong();
+        private final AtomicLong bytesDados = new AtomicLong();
+        private final AtomicLong datagramasConfirmacao = new AtomicLong();
+        private final AtomicLong bytesConfirmacao = new AtomicLong();
+        private final AtomicLong perdidos = new AtomicLong();
+        private final AtomicLong descartadosFila = new AtomicLong();
+        private final AtomicLong duplicados = new AtomicLong();
+        private final AtomicLong reordenados = new AtomicLong();
+
+        Sentido(InetSocketAddress destino, Perfil perfil) {
+            this.destino = destino;
+            this.perfil = perfil;
+        }
+
+        public long getDatagramas() {
+            return datagramas.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /** CHUNKs e paridades. */
+        public long getDatagramasDados() {
+            return datagramasDados.get();
+        }
+
+        public long getBytesDados() {
+            return bytesDados.get();
+        }
+
+        /** ACKs e SACKs. */
+        public long getDatagramasConfirmacao() {
+            return datagramasConfirmacao.get();
+        }
+
+        public long getBytesConfirmacao() {
+            return bytesConfirmacao.get();
+        }
+
+        public long getPerdidos() {
+            return perdidos.get();
+        }
+
+        public long getDescartadosFila() {
+            return descartadosFila.get();
+        }
+
+        public long getDuplicados() {
+            return duplicados.get();
+        }
+
+        public long getReordenados() {
+            return reordenados.get();
+        }
+    }
+
+    private static final class Pendente implements Delayed {
+        private final byte[] dados;
+        private final InetSocketAddress destino;
+        private final long saidaNanos;
+        private final long ordem;
+
+        Pendente(byte[] dados, InetSocketAddress destino, long saidaNanos, long ordem) {
+            this.dados = dados;
+            this.destino = destino;
+            this.saidaNanos = saidaNanos;
+            this.ordem = ordem;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unidade) {
+            return unidade.convert(saidaNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed outro) {
+            Pendente p = (Pendente) outro;
+            int c = Long.compare(saidaNanos, p.saidaNanos);
+            return c != 0 ? c : Long.compare(ordem, p.ordem); // mesmo instante: ordem de chegada
+        }
+    }
+
+    private final DatagramChannel canal;
+    private final InetSocketAddress a;
+    private final InetSocketAddress b;
+    private final Sentido ida;
+    private final Sentido volta;
+    private final Random aleatorio;
+    private final DelayQueue<Pendente> saida = new DelayQueue<>();
+    private final Thread leitor;
+    private final Thread escritor;
+    private long ordem = 0;
+
+    /** ida: defeitos de a para b; volta: de b para a. semente fixa repete a mesma sequência de defeitos. */
+    public EnlaceSimulado(InetSocketAddress a, InetSocketAddress b, Perfil ida, Perfil volta, long semente) throws IOException {
+        this.a = a;
+        this.b = b;
+        this.ida = new Sentido(b, ida);
+        this.volta = new Sentido(a, volta);
+        this.aleatorio = new Random(semente);
+        this.canal = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        canal.setOption(java.net.StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+        leitor = new Thread(this::ler, "enlace-leitor");
+        escritor = new Thread(this::escrever, "enlace-escritor");
+        leitor.setDaemon(true);
+        escritor.setDaemon(true);
+        leitor.start();
+        escritor.start();
+    }
+
+    /** Endereço que os dois nós usam para falar um com o outro. */
+    public InetSocketAddress getEndereco() throws IOException {
+        return (InetSocketAddress) canal.getLocalAddress();
+    }
+
+    public Sentido getIda() {
+        return ida;
+    }
+
+    public Sentido getVolta() {
+        return volta;
+    }
+
+    @Override
+    public void close() throws IOException {
+        canal.close();
+        leitor.interrupt();
+        escritor.interrupt();
+    }
+
+    private void ler() {
+        ByteBuffer buf = ByteBuffer.allocate(65536);
+        while (canal.isOpen()) {
+            try {
+                buf.clear();
+                InetSocketAddress origem = (InetSocketAddress) canal.receive(buf);
+                buf.flip();
+                Sentido sentido = origem.equals(a) ? ida : origem.equals(b) ? volta : null;
+                if (sentido == null) continue;
+                contar(sentido, buf);
+                byte[] dados = new byte[buf.remaining()];
+                buf.get(dados);
+                encaminhar(sentido, dados);
+            } catch (IOException e) {
+                if (canal.isOpen()) e.printStackTrace();
+            }
+        }
+    }
+
+    private static void contar(Sentido sentido, ByteBuffer datagrama) {
+        int tamanho = datagrama.remaining();
+        sentido.datagramas.incrementAndGet();
+        sentido.bytes.addAndGet(tamanho);
+        int tipo = Metricas.tipo(datagrama);
+        if (tipo == Protocolo.TIPO_CHUNK || tipo == Protocolo.TIPO_PARIDADE) {
+            sentido.datagramasDados.incrementAndGet();
+            sentido.bytesDados.addAndGet(tamanho);
+        } else if (tipo == Protocolo.TIPO_ACK || tipo == Protocolo.TIPO_SACK) {
+            sentido.datagramasConfirmacao.incrementAndGet();
+            sentido.bytesConfirmacao.addAndGet(tamanho);
+        }
+    }
+
+    private void encaminhar(Sentido sentido, byte[] dados) {
+        Perfil perfil = sentido.perfil;
+        if (perfil.perda > 0 && aleatorio.nextDouble() < perfil.perda) {
+            sentido.perdidos.incrementAndGet();
+            return;
+        }
+        long agora = System.nanoTime();
+        long partida = agora;
+        if (perfil.bytesPorSegundo > 0) {
+            // fila de saída da linha: o que já espera mais este datagrama não pode passar de filaBytes
+            long ocupadaAte = Math.max(agora, sentido.livreEm);
+            long naFila = (ocupadaAte - agora) * perfil.bytesPorSegundo / 1_000_000_000L;
+            if (naFila + dados.length > perfil.filaBytes) {
+                sentido.descartadosFila.incrementAndGet();
+                return;
+            }
+            partida = ocupadaAte + dados.length * 1_000_000_000L / perfil.bytesPorSegundo;
+            sentido.livreEm = partida;
+        }
+        long chegada = partida + perfil.atrasoNanos;
+        if (perfil.variacaoNanos > 0) chegada += (long) ((aleatorio.nextDouble() * 2 - 1) * perfil.variacaoNanos);
+        if (perfil.reordenacao > 0 && aleatorio.nextDouble() < perfil.reordenacao) {
+            sentido.reordenados.incrementAndGet();
+            chegada += perfil.atrasoReordenacaoNanos;
+        }
+        saida.add(new Pendente(dados, sentido.destino, Math.max(agora, chegada), ordem++));
+        if (perfil.duplicacao > 0 && aleatorio.nextDouble() < perfil.duplicacao) {
+            sentido.duplicados.incrementAndGet();
+            saida.add(new Pendente(dados, sentido.destino, Math.max(agora, chegada) + 100_000L, ordem++));
+        }
+    }
+
+    private void escrever() {
+        while (canal.isOpen()) {
+            try {
+                Pendente pendente = saida.take();
+                canal.send(ByteBuffer.wrap(pendente.dados), pendente.destino);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (canal.isOpen()) e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package labredes;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Estágio de disco da recepção: uma thread dona do CacheCanais executa, em
+ * ordem de chegada, todas as operações sobre os arquivos recebidos. Gravar
+ * não espera: o CHUNK é copiado para um buffer do pool e entra na fila, e
+ * quem recebe os pacotes segue para o próximo. Ler, sincronizar e fechar
+ * passam pela mesma fila e esperam, então sempre veem as gravações feitas
+ * antes delas.
+ *
+ * A fila e o pool são limitados: com o disco mais lento que a rede, gravar
+ * bloqueia a thread que recebe aquela transferência, a fila dela na
+ * PipelineRecepcao enche e os datagramas seguintes são descartados como
+ * perda, o que reduz o ritmo do remetente.
+ */
+public class EstagioDisco {
+    private final CacheCanais cache;
+    private final PoolBuffers buffers;
+    private final ArrayBlockingQueue<Runnable> fila;
+    private final AtomicInteger pico = new AtomicInteger();
+    private final AtomicLong gravados = new AtomicLong();
+    private final Thread thread;
+
+    /** nomeThread identifica o nó dono quando há vários no mesmo processo. */
+    public EstagioDisco(String nomeThread, CacheCanais cache, int capacidadeFila, int tamanhoMaximoChunk) {
+        this.cache = cache;
+        this.fila = new ArrayBlockingQueue<>(capacidadeFila);
+        // um buffer por posição da fila e um para a gravação em andamento
+        this.buffers = new PoolBuffers(capacidadeFila + 1, tamanhoMaximoChunk);
+        this.thread = new Thread(this::executar, nomeThread);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Ver CacheCanais.criar; espera as operações anteriores da fila. */
+    public void criar(TransferenciaRecepcao.Chave chave, File arquivo, long tamanhoPrealocado) throws IOException {
+        esperar(() -> {
+            cache.criar(chave, arquivo, tamanhoPrealocado);
+            return null;
+        });
+    }
+
+    /**
+     * Copia os bytes restantes de dados (consumindo o buffer) e agenda a
+     * gravação na posição informada. Uma falha de escrita chega depois, em
+     * aoFalhar, na thread de disco.
+     */
+    public void gravar(TransferenciaRecepcao.Chave chave, File arquivo, long posicao, ByteBuffer dados, Consumer<IOException> aoFalhar) {
+        ByteBuffer copia;
+        try {
+            copia = buffers.obter();
+            copia.put(dados).flip();
+            colocar(() -> {
+                try {
+                    cache.gravar(chave, arquivo, posicao, copia);
+                    gravados.incrementAndGet();
+                } catch (IOException e) {
+                    aoFalhar.accept(e);
+                } finally {
+                    buffers.devolver(copia);
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            aoFalhar.accept(new IOException("Gravação interrompida", e));
+        }
+    }
+
+    /** Ver CacheCanais.ler; espera as gravações anteriores. */
+    public void ler(TransferenciaRecepcao.Chave chave, File arquivo, long posicao, ByteBuffer destino) throws IOException {
+        esperar(() -> {
+            cache.ler(chave, arquivo, posicao, destino);
+            return null;
+        });
+    }
+
+    /** Ver CacheCanais.sincronizar; espera as gravações anteriores. */
+    public void sincronizar(TransferenciaRecepcao.Chave chave) throws IOException {
+        esperar(() -> {
+            cache.sincronizar(chave);
+            return null;
+        });
+    }
+
+    /** Ver CacheCanais.fechar; espera as gravações anteriores. */
+    public void fechar(TransferenciaRecepcao.Chave chave) throws IOException {
+        esperar(() -> {
+            cache.fechar(chave);
+            return null;
+        });
+    }
+
+    public int fecharOciosos(long agora, long ociosoMs) throws IOException {
+        return esperar(() -> cache.fecharOciosos(agora, ociosoMs));
+    }
+
+    /** Para a thread de disco. Quem ainda fechar ou sincronizar arquivos deve fazê-lo antes. */
+    public void encerrar() {
+        thread.interrupt();
+    }
+
+    public int getProfundidade() {
+        return fila.size();
+    }
+
+    /** Maior profundidade da fila desde a última consulta. */
+    public int lerPico() {
+        return pico.getAndSet(fila.size());
+    }
+
+    public long getGravados() {
+        return gravados.get();
+    }
+
+    private <T> T esperar(Callable<T> operacao) throws IOException {
+        FutureTask<T> tarefa = new FutureTask<>(operacao);
+        try {
+            colocar(tarefa);
+            return tarefa.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Operação de disco interrompida", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void colocar(Runnable tarefa) throws InterruptedException {
+        fila.put(tarefa);
+        pico.accumulateAndGet(fila.size(), Math::max);
+    }
+
+    private void executar() {
+        while (true) {
+            try {
+                fila.take().run();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package labredes;
+
+/**
+ * Estimativa de RTT por peer (Jacobson/Karels) e o timeout de retransmissão
+ * derivado dela. Amostras só devem vir de CHUNKs enviados uma única vez
+ * (algoritmo de Karn); a cada timeout o RTO dobra até a próxima amostra válida.
+ */
+public class EstimadorRtt {
+    private static final long RTO_INICIAL_NS = 1_000_000_000L;
+    private static final long RTO_MINIMO_NS = 200_000_000L; // como o Linux: abaixo disso, pausas do receptor viram timeout espúrio
+    private static final long RTO_MAXIMO_NS = 60_000_000_000L;
+
+    private long srtt = -1;
+    private long rttvar;
+    private long rto = RTO_INICIAL_NS;
+    private long ultimoBackoff = Long.MIN_VALUE / 2;
+    private final Histograma amostras; // null: amostras não são guardadas
+
+    public EstimadorRtt() {
+        this(null);
+    }
+
+    /** amostras recebe cada RTT válido em microssegundos (as Metricas do nó). */
+    public EstimadorRtt(Histograma amostras) {
+        this.amostras = amostras;
+    }
+
+    /** Registra uma amostra de RTT (nanossegundos) e recalcula o RTO. */
+    public synchronized void registrarAmostra(long rttNanos) {
+        if (rttNanos < 0) return;
+        if (amostras != null) amostras.registrar(rttNanos / 1000);
+        if (srtt < 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        } else {
+            // ganhos 1/4 para a variação e 1/8 para a média (RFC 6298)
+            rttvar += (Math.abs(srtt - rttNanos) - rttvar) / 4;
+            srtt += (rttNanos - srtt) / 8;
+        }
+        rto = limitar(srtt + 4 * rttvar);
+    }
+
+    /**
+     * Backoff exponencial após um timeout. Os CHUNKs de uma mesma rajada
+     * vencem juntos, então timeouts dentro do RTO atual dobram uma vez só.
+     */
+    public synchronized void dobrarRto(long agoraNanos) {
+        if (agoraNanos - ultimoBackoff < rto) return;
+        ultimoBackoff = agoraNanos;
+        rto = limitar(rto * 2);
+    }
+
+    public synchronized long getRtoNanos() {
+        return rto;
+    }
+
+    /** RTT suavizado em nanossegundos, ou -1 antes da primeira amostra. */
+    public synchronized long getSrttNanos() {
+        return srtt;
+    }
+
+    public synchronized long getRttvarNanos() {
+        return rttvar;
+    }
+
+    private static long limitar(long valor) {
+        return Math.max(RTO_MINIMO_NS, Math.min(RTO_MAXIMO_NS, valor));
+    }
+}
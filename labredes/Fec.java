@@ -0,0 +1,290 @@
+package labredes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Correção de erros sem retransmissão (FEC) por paridade XOR intercalada. A
+ * cada grupo de n CHUNKs o remetente manda k quadros PARIDADE; a paridade j é
+ * o XOR dos CHUNKs do grupo nas posições p com p % k == j. O receptor refaz na
+ * hora um CHUNK perdido quando ele é o único que falta na sua classe, sem
+ * esperar o timeout nem o SACK. Perdas em rajada caem em classes diferentes,
+ * então um grupo aguenta até k perdas seguidas.
+ *
+ * Cada PARIDADE diz o grupo a que pertence (primeiro CHUNK, n, k), então o
+ * remetente pode mudar n e k de um grupo para o outro (modo automático).
+ */
+public final class Fec {
+    public static final int MAX_N = 64;
+    public static final int MAX_K = 8;
+    /** Níveis do modo automático, {n, k}; o nível 0 não manda paridade. */
+    private static final int[][] NIVEIS = {{32, 0}, {32, 1}, {16, 2}, {8, 2}, {8, 4}};
+    /** CHUNKs enviados entre dois ajustes do nível automático. */
+    private static final int JANELA_AJUSTE = 512;
+
+    private Fec() {
+    }
+
+    /** Lado do remetente: acumula as paridades do grupo atual. */
+    public static final class Codificador {
+        private final int tamanhoChunk;
+        private final boolean automatico;
+        private final ByteBuffer[] paridades = new ByteBuffer[MAX_K];
+        private final int[] tamanhos = new int[MAX_K]; // maior CHUNK de cada classe no grupo
+        private int nivel;
+        private int n;
+        private int k;
+        private int inicioGrupo = 0;
+        private int noGrupo = 0;
+        private long paridadesEnviadas = 0;
+        private int enviadosDesdeAjuste = 0;
+        private long perdasNoAjuste = 0;
+
+        /** n CHUNKs de dados e k paridades por grupo, fixos durante a transferência. */
+        public Codificador(int tamanhoChunk, int n, int k) {
+            this(tamanhoChunk, false, n, k);
+        }
+
+        /** Começa sem paridade e ajusta n e k pelas perdas vistas pela JanelaEnvio. */
+        public static Codificador automatico(int tamanhoChunk) {
+            return new Codificador(tamanhoChunk, true, NIVEIS[0][0], NIVEIS[0][1]);
+        }
+
+        private Codificador(int tamanhoChunk, boolean automatico, int n, int k) {
+            if (n < 1 || n > MAX_N || k < 0 || k > MAX_K || k > n) {
+                throw new IllegalArgumentException("FEC inválido: n=" + n + " k=" + k);
+            }
+            this.tamanhoChunk = tamanhoChunk;
+            this.automatico = automatico;
+            this.n = n;
+            this.k = k;
+        }
+
+        /**
+         * Soma o conteúdo do CHUNK seq (que deve ser o próximo do grupo) às
+         * paridades, sem consumir o buffer. Devolve true quando o grupo fechou:
+         * aí o chamador manda as k paridades e chama proximoGrupo.
+         */
+        public boolean adicionar(int seq, ByteBuffer conteudo, boolean ultimo) {
+            int posicao = seq - inicioGrupo;
+            if (k > 0) {
+                int j = posicao % k;
+                if (paridades[j] == null) paridades[j] = ByteBuffer.allocateDirect(tamanhoChunk);
+                int tamanho = conteudo.remaining();
+                if (tamanhos[j] == 0) zerar(paridades[j], tamanhoChunk);
+                xor(paridades[j], 0, conteudo, conteudo.position(), tamanho);
+                tamanhos[j] = Math.max(tamanhos[j], tamanho);
+            }
+            noGrupo++;
+            return noGrupo == n || ultimo;
+        }
+
+        /** Quantas paridades o grupo que acabou de fechar tem (classes sem CHUNK não geram quadro). */
+        public int getParidadesDoGrupo() {
+            int total = 0;
+            for (int j = 0; j < k; j++) {
+                if (tamanhos[j] > 0) total++;
+            }
+            return total;
+        }
+
+        /** Escreve em quadro o PARIDADE j do grupo que fechou (j < getParidadesDoGrupo()). */
+        public void escreverParidade(ByteBuffer quadro, int id, int j) {
+            ByteBuffer dados = paridades[j].duplicate();
+            dados.limit(tamanhos[j]).position(0);
+            quadro.clear();
+            Protocolo.escreverParidade(quadro, id, inicioGrupo, n, k, j, dados);
+            quadro.flip();
+            paridadesEnviadas++;
+        }
+
+        /** Passa ao próximo grupo; no modo automático, perdas é o total da JanelaEnvio até agora. */
+        public void proximoGrupo(long perdas) {
+            inicioGrupo += noGrupo;
+            enviadosDesdeAjuste += noGrupo;
+            noGrupo = 0;
+            for (int j = 0; j < MAX_K; j++) tamanhos[j] = 0;
+            if (!automatico || enviadosDesdeAjuste < JANELA_AJUSTE) return;
+            // perdas que a paridade atual não cobriu sobem um nível; uma janela limpa desce um
+            long novas = perdas - perdasNoAjuste;
+            if (novas > 1 && nivel < NIVEIS.length - 1) {
+                nivel++;
+            } else if (novas == 0 && nivel > 0) {
+                nivel--;
+            }
+            n = NIVEIS[nivel][0];
+            k = NIVEIS[nivel][1];
+            enviadosDesdeAjuste = 0;
+            perdasNoAjuste = perdas;
+        }
+
+        public int getN() {
+            return n;
+        }
+
+        public int getK() {
+            return k;
+        }
+
+        public long getParidadesEnviadas() {
+            return paridadesEnviadas;
+        }
+
+        public boolean isAutomatico() {
+            return automatico;
+        }
+    }
+
+    /** Acesso do Decodificador aos CHUNKs que o receptor já tem. */
+    public interface Leitura {
+        boolean recebido(int seq);
+
+        /** Lê tamanho bytes do CHUNK seq em destino (a partir da posição dele). */
+        void ler(int seq, int tamanho, ByteBuffer destino) throws IOException;
+    }
+
+    /**
+     * Lado do receptor: guarda as paridades de grupos que ainda têm CHUNKs
+     * faltando e refaz os que dá. Os outros CHUNKs da classe são relidos do
+     * arquivo, então não é preciso guardar cópia de nada enquanto não há perda.
+     */
+    public static final class Decodificador {
+        private static final long MAX_BYTES_PENDENTES = 4 * 1024 * 1024;
+
+        private final long tamanhoArquivo;
+        private final int tamanhoChunk;
+        private final TreeMap<Integer, Grupo> pendentes = new TreeMap<>();
+        private long bytesPendentes = 0;
+        private long recuperados = 0;
+
+        private static final class Grupo {
+            final int inicio;
+            final int n;
+            final int k;
+            final byte[][] paridades;
+
+            Grupo(int inicio, int n, int k) {
+                this.inicio = inicio;
+                this.n = n;
+                this.k = k;
+                this.paridades = new byte[k][];
+            }
+        }
+
+        public Decodificador(long tamanhoArquivo, int tamanhoChunk) {
+            this.tamanhoArquivo = tamanhoArquivo;
+            this.tamanhoChunk = tamanhoChunk;
+        }
+
+        /**
+         * Registra o PARIDADE j do grupo (inicio, n, k) e devolve os CHUNKs que
+         * ficaram recuperáveis, como {seq} → conteúdo, na ordem.
+         */
+        public synchronized Map<Integer, ByteBuffer> receberParidade(int inicio, int n, int k, int j, ByteBuffer dados, Leitura leitura) throws IOException {
+            if (n < 1 || n > MAX_N || k < 1 || k > MAX_K || j < 0 || j >= k || inicio < 0) return new TreeMap<>();
+            Grupo grupo = pendentes.get(inicio);
+            if (grupo == null || grupo.n != n || grupo.k != k) {
+                if (grupo != null) descartar(grupo);
+                grupo = new Grupo(inicio, n, k);
+                pendentes.put(inicio, grupo);
+            }
+            if (grupo.paridades[j] == null) {
+                byte[] copia = new byte[Math.min(dados.remaining(), tamanhoChunk)];
+                dados.duplicate().get(copia);
+                grupo.paridades[j] = copia;
+                bytesPendentes += copia.length;
+            }
+            Map<Integer, ByteBuffer> resultado = recuperar(grupo, leitura);
+            while (bytesPendentes > MAX_BYTES_PENDENTES && !pendentes.isEmpty()) {
+                descartar(pendentes.firstEntry().getValue()); // os grupos mais antigos ficam para o SACK
+            }
+            return resultado;
+        }
+
+        /** Um CHUNK novo chegou: se ele era de um grupo pendente, talvez outro da classe possa ser refeito. */
+        public synchronized Map<Integer, ByteBuffer> aoReceber(int seq, Leitura leitura) throws IOException {
+            if (pendentes.isEmpty()) return null;
+            Map.Entry<Integer, Grupo> entrada = pendentes.floorEntry(seq);
+            if (entrada == null || seq >= entrada.getKey() + entrada.getValue().n) return null;
+            return recuperar(entrada.getValue(), leitura);
+        }
+
+        public synchronized long getRecuperados() {
+            return recuperados;
+        }
+
+        private Map<Integer, ByteBuffer> recuperar(Grupo grupo, Leitura leitura) throws IOException {
+            Map<Integer, ByteBuffer> resultado = new TreeMap<>();
+            int totalChunks = (int) ((tamanhoArquivo + tamanhoChunk - 1) / tamanhoChunk);
+            int fim = Math.min(grupo.inicio + grupo.n, totalChunks);
+            boolean pendente = false;
+            for (int j = 0; j < grupo.k; j++) {
+                int faltando = -1;
+                int faltas = 0;
+                for (int seq = grupo.inicio + j; seq < fim; seq += grupo.k) {
+                    if (!leitura.recebido(seq)) {
+                        faltando = seq;
+                        faltas++;
+                    }
+                }
+                if (faltas == 0) {
+                    liberar(grupo, j);
+                    continue;
+                }
+                if (faltas > 1 || grupo.paridades[j] == null) {
+                    pendente = true;
+                    continue;
+                }
+                ByteBuffer acumulado = ByteBuffer.allocate(tamanhoChunk);
+                acumulado.put(grupo.paridades[j]).clear();
+                ByteBuffer outro = ByteBuffer.allocate(tamanhoChunk);
+                for (int seq = grupo.inicio + j; seq < fim; seq += grupo.k) {
+                    if (seq == faltando) continue;
+                    int tamanho = tamanhoDe(seq);
+                    outro.clear();
+                    leitura.ler(seq, tamanho, outro);
+                    xor(acumulado, 0, outro, 0, tamanho);
+                }
+                acumulado.limit(tamanhoDe(faltando)).position(0);
+                resultado.put(faltando, acumulado);
+                recuperados++;
+                liberar(grupo, j);
+            }
+            if (!pendente) pendentes.remove(grupo.inicio);
+            return resultado;
+        }
+
+        private int tamanhoDe(int seq) {
+            return (int) Math.min(tamanhoChunk, tamanhoArquivo - (long) seq * tamanhoChunk);
+        }
+
+        private void liberar(Grupo grupo, int j) {
+            if (grupo.paridades[j] == null) return;
+            bytesPendentes -= grupo.paridades[j].length;
+            grupo.paridades[j] = null;
+        }
+
+        private void descartar(Grupo grupo) {
+            for (int j = 0; j < grupo.k; j++) liberar(grupo, j);
+            pendentes.remove(grupo.inicio);
+        }
+    }
+
+    /** destino[posDestino..] ^= origem[posOrigem..], tamanho bytes, sem mexer nas posições. */
+    static void xor(ByteBuffer destino, int posDestino, ByteBuffer origem, int posOrigem, int tamanho) {
+        int i = 0;
+        for (; i + 8 <= tamanho; i += 8) {
+            destino.putLong(posDestino + i, destino.getLong(posDestino + i) ^ origem.getLong(posOrigem + i));
+        }
+        for (; i < tamanho; i++) {
+            destino.put(posDestino + i, (byte) (destino.get(posDestino + i) ^ origem.get(posOrigem + i)));
+        }
+    }
+
+    private static void zerar(ByteBuffer buffer, int tamanho) {
+        for (int i = 0; i + 8 <= tamanho; i += 8) buffer.putLong(i, 0L);
+        for (int i = tamanho & ~7; i < tamanho; i++) buffer.put(i, (byte) 0);
+    }
+}
@@ -0,0 +1,178 @@
+package labredes;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Detecção de mensagens repetidas (TALK e FILE de texto) por remetente. Cada
+ * (endereço, tipo) tem uma janela de LARGURA_JANELA ids terminando no maior
+ * id já visto, guardada num bitmap: consultar e marcar um id custa O(1) e só
+ * trava a janela daquele remetente. Um id abaixo da janela só recomeça a
+ * janela com sinal de que o remetente foi reiniciado: o id é dos primeiros
+ * do contador ou o remetente ficou um balde inteiro calado. Sem isso ele é
+ * tratado como repetição, para que um id antigo reenviado não apague a
+ * janela e deixe passar de novo os recentes.
+ *
+ * Remetentes sem mensagens há expiracaoMs saem por baldes de tempo: cada
+ * balde lista quem foi visto no seu intervalo e, quando ele vence, só as
+ * chaves dele são conferidas. Acima de MAX_REMETENTES os mais antigos saem
+ * antes do prazo, então a memória não cresce com endereços forjados.
+ */
+public class FiltroDuplicatas {
+    public static final int LARGURA_JANELA = 1024;
+    private static final int BALDES = 10;
+    // um balde a mais: quem foi visto no começo do balde mais antigo ainda não completou expiracaoMs
+    private static final int POSICOES = BALDES + 1;
+    private static final int MAX_REMETENTES = 4096;
+
+    private final long duracaoBaldeMs;
+    private final ConcurrentHashMap<Chave, Janela> janelas = new ConcurrentHashMap<>();
+    private final List<Set<Chave>> baldes = new ArrayList<>(); // índice época % POSICOES; acesso sincronizado nela
+    private long epocaAtual = -1;
+
+    private static final class Chave {
+        private final InetSocketAddress origem;
+        private final String tipo;
+
+        Chave(InetSocketAddress origem, String tipo) {
+            this.origem = origem;
+            this.tipo = tipo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Chave)) return false;
+            Chave outra = (Chave) o;
+            return tipo.equals(outra.tipo) && origem.equals(outra.origem);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(origem, tipo);
+        }
+    }
+
+    private static final class Janela {
+        private final long[] bits = new long[LARGURA_JANELA / 64];
+        private boolean vazia = true;
+        private int maior;
+        private volatile long epoca = -1; // último balde em que o remetente apareceu
+
+        /** Marca o id e devolve true se ele já estava marcado (ou é antigo demais para saber). */
+        synchronized boolean registrar(int id, boolean ocioso) {
+            int distancia = id - maior;
+            boolean reiniciado = distancia <= -LARGURA_JANELA && (id < LARGURA_JANELA || ocioso);
+            if (vazia || reiniciado || distancia >= LARGURA_JANELA) {
+                // primeiro id, remetente reiniciado ou salto maior que a janela
+                Arrays.fill(bits, 0L);
+                vazia = false;
+                maior = id;
+            } else if (distancia <= -LARGURA_JANELA) {
+                return true;
+            } else if (distancia > 0) {
+                // os ids que entram na janela ocupam as posições dos que saem
+                for (int i = maior + 1; i <= id; i++) limpar(i);
+                maior = id;
+            } else if (marcado(id)) {
+                return true;
+            }
+            marcar(id);
+            return false;
+        }
+
+        private boolean marcado(int id) {
+            int i = id & (LARGURA_JANELA - 1);
+            return (bits[i >>> 6] & (1L << i)) != 0;
+        }
+
+        private void marcar(int id) {
+            int i = id & (LARGURA_JANELA - 1);
+            bits[i >>> 6] |= 1L << i;
+        }
+
+        private void limpar(int id) {
+            int i = id & (LARGURA_JANELA - 1);
+            bits[i >>> 6] &= ~(1L << i);
+        }
+    }
+
+    public FiltroDuplicatas(long expiracaoMs) {
+        this.duracaoBaldeMs = Math.max(1, expiracaoMs / BALDES);
+        for (int i = 0; i < POSICOES; i++) baldes.add(new HashSet<>());
+    }
+
+    /** Registra a mensagem id do tipo vinda de origem; devolve true se ela já tinha sido vista. */
+    public boolean registrar(InetSocketAddress origem, String tipo, int id, long agora) {
+        Chave chave = new Chave(origem, tipo);
+        Janela janela = janelas.computeIfAbsent(chave, k -> new Janela());
+        long epoca = agora / duracaoBaldeMs;
+        long anterior = janela.epoca;
+        // o balde só muda uma vez por intervalo para cada remetente
+        if (anterior != epoca) tocar(chave, janela, epoca);
+        // nenhuma mensagem durante todo o balde anterior
+        boolean ocioso = anterior >= 0 && epoca - anterior > 1;
+        return janela.registrar(id, ocioso);
+    }
+
+    /** Tira os remetentes vencidos mesmo sem mensagens novas (chamado pelo laço de manutenção). */
+    public void expirar(long agora) {
+        synchronized (baldes) {
+            avancar(agora / duracaoBaldeMs);
+        }
+    }
+
+    public int getRemetentes() {
+        return janelas.size();
+    }
+
+    private void tocar(Chave chave, Janela janela, long epoca) {
+        synchronized (baldes) {
+            avancar(epoca);
+            janela.epoca = epoca;
+            baldes.get((int) (epoca % POSICOES)).add(chave);
+            if (janelas.size() > MAX_REMETENTES) descartarMaisAntigos();
+        }
+    }
+
+    /** Vence os baldes entre epocaAtual e epoca; cada balde vencido só confere as próprias chaves. */
+    private void avancar(long epoca) {
+        if (epoca <= epocaAtual) return;
+        if (epocaAtual < 0 || epoca - epocaAtual > POSICOES) epocaAtual = epoca - POSICOES;
+        while (epocaAtual < epoca) {
+            epocaAtual++;
+            // a posição que volta a ser usada guarda quem foi visto há POSICOES intervalos
+            esvaziar(baldes.get((int) (epocaAtual % POSICOES)), epocaAtual - POSICOES);
+        }
+    }
+
+    private void esvaziar(Set<Chave> balde, long vencidoAte) {
+        for (Chave chave : balde) {
+            Janela janela = janelas.get(chave);
+            // quem apareceu de novo depois está também num balde mais novo
+            if (janela != null && janela.epoca <= vencidoAte) janelas.remove(chave, janela);
+        }
+        balde.clear();
+    }
+
+    private void descartarMaisAntigos() {
+        for (int i = 1; i <= POSICOES && janelas.size() > MAX_REMETENTES; i++) {
+            long epoca = epocaAtual - POSICOES + i;
+            Set<Chave> balde = baldes.get((int) (epoca % POSICOES));
+            Iterator<Chave> it = balde.iterator();
+            while (it.hasNext() && janelas.size() > MAX_REMETENTES) {
+                Chave chave = it.next();
+                Janela janela = janelas.get(chave);
+                if (janela != null && janela.epoca <= epoca) janelas.remove(chave, janela);
+                it.remove();
+            }
+        }
+    }
+}
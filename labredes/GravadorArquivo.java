@@ -0,0 +1,107 @@
+package labredes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Escrita de um arquivo recebido sobre um FileChannel que fica aberto durante
+ * a transferência. CHUNKs contíguos são acumulados num buffer e gravados de
+ * uma vez (escrita posicional), em vez de um open/seek/write/close por CHUNK.
+ * Um CHUNK que não continua o lote atual descarrega o lote e começa outro.
+ *
+ * Não é thread-safe; o CacheCanais serializa o acesso.
+ */
+public class GravadorArquivo {
+    private final FileChannel canal;
+    private final ByteBuffer lote;
+    private long inicioLote = -1; // posição no arquivo do primeiro byte do lote
+    private long ultimoUso;
+
+    private GravadorArquivo(FileChannel canal, int tamanhoLote) {
+        this.canal = canal;
+        this.lote = ByteBuffer.allocateDirect(tamanhoLote);
+        this.ultimoUso = System.currentTimeMillis();
+    }
+
+    /**
+     * Cria (ou trunca) o arquivo de uma transferência nova. Com tamanhoPrealocado
+     * >= 0 o arquivo já nasce com o tamanho anunciado no FILE; sem escrever
+     * nada, ele fica esparso até os CHUNKs chegarem.
+     */
+    public static GravadorArquivo criar(File arquivo, long tamanhoPrealocado, int tamanhoLote) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(arquivo, "rw");
+        raf.setLength(Math.max(0, tamanhoPrealocado));
+        return new GravadorArquivo(raf.getChannel(), tamanhoLote);
+    }
+
+    /** Reabre o arquivo de uma transferência em andamento (depois de uma remoção do cache). */
+    public static GravadorArquivo abrir(File arquivo, int tamanhoLote) throws IOException {
+        return new GravadorArquivo(new RandomAccessFile(arquivo, "rw").getChannel(), tamanhoLote);
+    }
+
+    /** Grava os bytes restantes de dados na posição informada (consome o buffer). */
+    public void gravar(long posicao, ByteBuffer dados, long agora) throws IOException {
+        ultimoUso = agora;
+        int tamanho = dados.remaining();
+        boolean continua = inicioLote >= 0 && posicao == inicioLote + lote.position();
+        if (!continua || tamanho > lote.remaining()) {
+            descarregar();
+        }
+        if (tamanho > lote.capacity()) {
+            escreverTudo(dados, posicao);
+            return;
+        }
+        if (inicioLote < 0) inicioLote = posicao;
+        lote.put(dados);
+    }
+
+    /** Escreve no arquivo o que estiver acumulado no lote. */
+    public void descarregar() throws IOException {
+        if (inicioLote < 0) return;
+        lote.flip();
+        escreverTudo(lote, inicioLote);
+        lote.clear();
+        inicioLote = -1;
+    }
+
+    /** Descarrega o lote e força os dados ao disco (antes de persistir o bitmap da transferência). */
+    public void sincronizar() throws IOException {
+        descarregar();
+        canal.force(false);
+    }
+
+    /**
+     * Lê do arquivo a partir de posicao até encher destino, descarregando antes
+     * o lote (o trecho pedido pode estar só na memória). Usado pelo FEC para
+     * reler os CHUNKs vizinhos de um perdido.
+     */
+    public void ler(long posicao, ByteBuffer destino) throws IOException {
+        descarregar();
+        while (destino.hasRemaining()) {
+            int lidos = canal.read(destino, posicao);
+            if (lidos < 0) throw new IOException("Fim do arquivo na posição " + posicao);
+            posicao += lidos;
+        }
+    }
+
+    public void fechar() throws IOException {
+        try {
+            descarregar();
+        } finally {
+            canal.close();
+        }
+    }
+
+    public long getUltimoUso() {
+        return ultimoUso;
+    }
+
+    private void escreverTudo(ByteBuffer buf, long posicao) throws IOException {
+        while (buf.hasRemaining()) {
+            posicao += canal.write(buf, posicao);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package labredes;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SHA-256 de um arquivo recebido, calculado enquanto os CHUNKs chegam (junto
+ * com as folhas da ArvoreMerkle, usadas se o hash não bater). O
+ * digest só avança pelo prefixo contíguo; CHUNKs fora de ordem são copiados
+ * e ficam guardados até o buraco abaixo deles ser preenchido (no máximo
+ * limitePendentes, o que a janela de recepção já garante na prática).
+ *
+ * Se o limite estourar, o cálculo incremental é abandonado e completo()
+ * nunca fica verdadeiro: quem verifica o END cai no caminho lento (reler o
+ * arquivo).
+ */
+public class HashIncremental {
+    private final MessageDigest digest;
+    private final long tamanhoTotal;
+    private final int limitePendentes;
+    private final ArvoreMerkle.Acumulador folhas = new ArvoreMerkle.Acumulador();
+    private final Map<Integer, byte[]> pendentes = new HashMap<>();
+    private int proximoSeq = 0;
+    private long bytesProcessados = 0;
+    private boolean abandonado = false;
+    private byte[] resultado;
+    private ArvoreMerkle arvore;
+
+    public HashIncremental(long tamanhoTotal, int limitePendentes) {
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.tamanhoTotal = tamanhoTotal;
+        this.limitePendentes = limitePendentes;
+    }
+
+    /** Registra o conteúdo do CHUNK seq (cada seq uma vez só); não consome o buffer. */
+    public synchronized void atualizar(int seq, ByteBuffer dados) {
+        if (abandonado || resultado != null || seq < proximoSeq) return;
+        if (seq > proximoSeq) {
+            if (pendentes.size() >= limitePendentes) {
+                abandonado = true;
+                pendentes.clear();
+                return;
+            }
+            byte[] copia = new byte[dados.remaining()];
+            dados.duplicate().get(copia);
+            pendentes.put(seq, copia);
+            return;
+        }
+        bytesProcessados += dados.remaining();
+        digest.update(dados.duplicate());
+        folhas.atualizar(dados.duplicate());
+        proximoSeq++;
+        byte[] seguinte;
+        while ((seguinte = pendentes.remove(proximoSeq)) != null) {
+            digest.update(seguinte);
+            folhas.atualizar(seguinte, 0, seguinte.length);
+            bytesProcessados += seguinte.length;
+            proximoSeq++;
+        }
+    }
+
+    /** Desiste do cálculo incremental (ex.: transferência retomada, parte dos CHUNKs já estava no disco). */
+    public synchronized void abandonar() {
+        abandonado = true;
+        pendentes.clear();
+    }
+
+    /** Todos os bytes do arquivo já passaram pelo digest. */
+    public synchronized boolean completo() {
+        return !abandonado && (resultado != null || bytesProcessados == tamanhoTotal);
+    }
+
+    /** Hash final; só vale depois de completo(). Chamadas repetidas devolvem o mesmo valor. */
+    public synchronized byte[] getResultado() {
+        if (resultado == null) resultado = digest.digest();
+        return resultado.clone();
+    }
+
+    /** Árvore Merkle do arquivo recebido; só vale depois de completo(). */
+    public synchronized ArvoreMerkle getArvore() {
+        if (arvore == null) arvore = new ArvoreMerkle(folhas.concluir());
+        return arvore;
+    }
+}
@@ -0,0 +1,69 @@
+package labredes;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma com baldes em potências de 2, para o caminho dos pacotes:
+ * registrar é um numberOfLeadingZeros e duas somas em LongAdder, sem lock.
+ * O balde i guarda os valores em [2^(i-1), 2^i), então os percentis saem
+ * com erro de até 2x, o que basta para ver a ordem de grandeza de RTTs e
+ * vazões.
+ */
+public class Histograma {
+    private static final int BALDES = 64;
+
+    private final LongAdder[] baldes = new LongAdder[BALDES];
+    private final LongAdder contagem = new LongAdder();
+    private final LongAdder soma = new LongAdder();
+    private final LongAccumulator maximo = new LongAccumulator(Math::max, 0);
+
+    public Histograma() {
+        for (int i = 0; i < BALDES; i++) baldes[i] = new LongAdder();
+    }
+
+    /** Valores negativos contam como 0. */
+    public void registrar(long valor) {
+        long v = Math.max(0, valor);
+        baldes[Math.min(BALDES - 1, 64 - Long.numberOfLeadingZeros(v))].increment();
+        contagem.increment();
+        soma.add(v);
+        maximo.accumulate(v);
+    }
+
+    public long getContagem() {
+        return contagem.sum();
+    }
+
+    public double getMedia() {
+        long n = contagem.sum();
+        return n > 0 ? (double) soma.sum() / n : 0;
+    }
+
+    public long getMaximo() {
+        return maximo.get();
+    }
+
+    /** Limite superior do balde onde cai o percentil p (0 a 100); 0 sem amostras. */
+    public long percentil(double p) {
+        long[] copia = new long[BALDES];
+        long total = 0;
+        for (int i = 0; i < BALDES; i++) {
+            copia[i] = baldes[i].sum();
+            total += copia[i];
+        }
+        if (total == 0) return 0;
+        long alvo = (long) Math.ceil(total * p / 100.0);
+        long acumulado = 0;
+        for (int i = 0; i < BALDES; i++) {
+            acumulado += copia[i];
+            if (acumulado >= Math.max(1, alvo)) return Math.min(i == 0 ? 0 : (1L << i) - 1, getMaximo());
+        }
+        return getMaximo();
+    }
+
+    /** "n=.. média=.. p50<=.. p99<=.. máx=.." na unidade dos valores. */
+    public String descrever() {
+        return String.format("n=%d média=%.1f p50<=%d p99<=%d máx=%d", getContagem(), getMedia(), percentil(50), percentil(99), getMaximo());
+    }
+}
@@ -0,0 +1,327 @@
+package labredes;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Janela deslizante do lado do remetente: limita quantos CHUNKs de uma
+ * transferência podem estar em voo (enviados e ainda não confirmados).
+ * O limite efetivo é o menor entre a janela local e o espaço livre anunciado
+ * pelo receptor nos ACKs.
+ *
+ * Também guarda o instante do último envio, o prazo de retransmissão vigente
+ * e o número de tentativas de cada CHUNK em voo, e alimenta o EstimadorRtt do peer com as amostras dos CHUNKs
+ * confirmados. Os datagramas em si não ficam aqui: a retransmissão os remonta
+ * do arquivo (LeitorArquivo). As tabelas são circulares a partir de base, então
+ * crescem com a distância entre o CHUNK mais antigo em voo e o mais novo, não
+ * com o tamanho do arquivo.
+ *
+ * Com um ControleCongestionamento, a janela dele também entra no limite e o
+ * envio é espaçado pelo ritmo que ele indicar (aguardarRitmo).
+ */
+public class JanelaEnvio {
+    /** Quantos CHUNKs confirmados acima de um buraco indicam que ele se perdeu. */
+    private static final int LIMIAR_LACUNA = 3;
+    private static final int[] SEM_LACUNAS = new int[0];
+
+    private final int limiteLocal;
+    private final EstimadorRtt rtt;
+    private final String nomeDestino;
+    private final InetSocketAddress enderecoDestino;
+    private final ControleCongestionamento controle; // null: só a janela local e a anunciada
+    private int limiarLacuna = LIMIAR_LACUNA;
+    private int janelaAnunciada = Integer.MAX_VALUE;
+    private int emVoo = 0;
+    private int desistencias = 0;
+    private long perdas = 0;
+    private long retransmissoes = 0;
+    private long proximoEnvio = 0;
+    private int base = 0; // menor seq ainda não finalizado
+    private final BitSet finalizados = new BitSet();
+    private final BitSet retransmitidosRapido = new BitSet();
+    private final BitSet retransmitidos = new BitSet();
+    private long[] enviadoEm = new long[64]; // índice seq & (length - 1), válido de base a maiorRegistrado
+    private long[] prazos = new long[64]; // prazo de retransmissão mais recente; os anteriores ainda estão na roda
+    private byte[] tentativas = new byte[64];
+    private int maiorRegistrado = -1;
+    private boolean abortada = false;
+
+    public JanelaEnvio(int limiteLocal) {
+        this(limiteLocal, new EstimadorRtt(), null, null, null);
+    }
+
+    public JanelaEnvio(int limiteLocal, EstimadorRtt rtt, String nomeDestino, InetSocketAddress enderecoDestino, ControleCongestionamento controle) {
+        this.limiteLocal = Math.max(1, limiteLocal);
+        this.rtt = rtt;
+        this.nomeDestino = nomeDestino;
+        this.enderecoDestino = enderecoDestino;
+        this.controle = controle;
+    }
+
+    /**
+     * Bloqueia até haver espaço na janela e reserva uma posição para o
+     * próximo CHUNK. Devolve false, sem reservar, se a transferência foi
+     * abortada.
+     */
+    public synchronized boolean aguardarEspaco() throws InterruptedException {
+        // com nada em voo sempre libera um CHUNK, para sondar um receptor que anunciou janela zero
+        while (!abortada && emVoo > 0 && emVoo >= limiteEfetivo()) {
+            wait();
+        }
+        if (abortada) return false;
+        emVoo++;
+        return true;
+    }
+
+    /** Espera o intervalo do ritmo de envio desde o CHUNK anterior, se o controle tiver ritmo. */
+    public void aguardarRitmo() {
+        long intervalo;
+        long espera;
+        synchronized (this) {
+            intervalo = controle != null ? controle.getIntervaloEnvioNanos() : 0;
+            if (intervalo <= 0) return;
+            long agora = System.nanoTime();
+            // sem acumular crédito quando o envio ficou parado esperando a janela
+            proximoEnvio = Math.max(proximoEnvio, agora - intervalo) + intervalo;
+            espera = proximoEnvio - agora;
+        }
+        if (espera > 0) LockSupport.parkNanos(espera);
+    }
+
+    /** Indica se o próximo CHUNK teria que esperar por confirmações. */
+    public synchronized boolean cheia() {
+        return emVoo >= limiteEfetivo();
+    }
+
+    /** Registra o instante do primeiro envio do CHUNK. */
+    public synchronized void registrarEnvio(int seq, long agoraNanos) {
+        if (seq - base >= enviadoEm.length) crescerTabelas(seq - base + 1);
+        int i = seq & (enviadoEm.length - 1);
+        enviadoEm[i] = agoraNanos;
+        tentativas[i] = 0;
+        if (seq > maiorRegistrado) maiorRegistrado = seq;
+    }
+
+    /**
+     * Prepara a retransmissão de um CHUNK ainda não confirmado: conta a
+     * tentativa e o exclui das amostras de RTT. Devolve false se não houver
+     * mais o que retransmitir.
+     */
+    public synchronized boolean prepararRetransmissao(int seq, long agoraNanos) {
+        if (seq < base || seq > maiorRegistrado || finalizados.get(seq)) return false;
+        int i = seq & (enviadoEm.length - 1);
+        tentativas[i]++;
+        enviadoEm[i] = agoraNanos;
+        retransmitidos.set(seq);
+        retransmissoes++;
+        return true;
+    }
+
+    /** Registra o prazo de retransmissão agendado agora para o CHUNK; os agendados antes deixam de valer. */
+    public synchronized void registrarPrazo(int seq, long prazoNanos) {
+        if (seq >= base && seq <= maiorRegistrado) prazos[seq & (prazos.length - 1)] = prazoNanos;
+    }
+
+    /**
+     * Indica se o CHUNK segue sem confirmação e o prazo mais recente dele
+     * venceu. A roda não cancela entradas: a do envio original continua lá
+     * depois de uma retransmissão rápida e vence antes do prazo novo.
+     */
+    public synchronized boolean prazoVencido(int seq, long agoraNanos) {
+        if (abortada || seq < base || seq > maiorRegistrado || finalizados.get(seq)) return false;
+        return agoraNanos - prazos[seq & (prazos.length - 1)] >= 0;
+    }
+
+    public synchronized int getTentativas(int seq) {
+        return seq >= base && seq <= maiorRegistrado ? tentativas[seq & (tentativas.length - 1)] : 0;
+    }
+
+    /** Registra o ACK de um CHUNK e atualiza o espaço anunciado pelo receptor. */
+    public synchronized void confirmar(int seq, int janelaLivre) {
+        janelaAnunciada = janelaLivre;
+        if (liberar(seq)) {
+            long amostra = amostrarRtt(seq);
+            if (controle != null) controle.aoConfirmar(1, emVoo + 1, amostra, System.nanoTime());
+        }
+        notifyAll();
+    }
+
+    /**
+     * Processa um SACK: confirma todos os CHUNKs abaixo de cumulativo e os
+     * marcados no bitmap. Devolve os buracos que já têm LIMIAR_LACUNA CHUNKs
+     * confirmados acima e ainda não foram retransmitidos por esse motivo.
+     */
+    public synchronized int[] confirmarSack(int cumulativo, ByteBuffer quadro, int inicioBitmap, int bytesBitmap, int janelaLivre) {
+        janelaAnunciada = janelaLivre;
+        int amostra = -1; // CHUNK mais recente confirmado agora e enviado uma única vez
+        int confirmados = 0;
+        for (int seq = finalizados.nextClearBit(base); seq < cumulativo; seq = finalizados.nextClearBit(seq + 1)) {
+            if (liberar(seq)) {
+                confirmados++;
+                if (!retransmitidos.get(seq)) amostra = seq;
+            }
+        }
+        base = finalizados.nextClearBit(base);
+        int maior = -1;
+        for (int i = 0; i < bytesBitmap * 8; i++) {
+            if ((quadro.get(inicioBitmap + (i >>> 3)) & (1 << (i & 7))) != 0) {
+                // acima do último enviado só há CHUNKs que o receptor já tinha: não indicam perda
+                if (cumulativo + 1 + i > maiorRegistrado) break;
+                maior = cumulativo + 1 + i;
+                if (liberar(maior)) {
+                    confirmados++;
+                    if (!retransmitidos.get(maior)) amostra = maior;
+                }
+            }
+        }
+        long rttAmostra = amostra >= 0 ? amostrarRtt(amostra) : -1;
+        if (controle != null && confirmados > 0) controle.aoConfirmar(confirmados, emVoo + confirmados, rttAmostra, System.nanoTime());
+        notifyAll();
+        if (maior < 0) return SEM_LACUNAS;
+
+        int[] lacunas = new int[maior - cumulativo];
+        int total = 0;
+        int acima = 0;
+        for (int seq = maior; seq >= cumulativo; seq--) {
+            if (finalizados.get(seq)) {
+                acima++;
+            } else if (acima >= limiarLacuna && !retransmitidosRapido.get(seq)) {
+                retransmitidosRapido.set(seq);
+                lacunas[total++] = seq;
+            }
+        }
+        if (total > 0) registrarPerda(false);
+        return Arrays.copyOf(lacunas, total);
+    }
+
+    /**
+     * Com FEC, um buraco só é dado como perdido depois de CHUNKs suficientes
+     * para a paridade do grupo dele ter chegado ao receptor (grupo = n + k).
+     */
+    public synchronized void setGrupoFec(int grupo) {
+        limiarLacuna = LIMIAR_LACUNA + Math.max(0, grupo);
+    }
+
+    /** Conta uma perda (retransmissão rápida ou timeout) e avisa o controle de congestionamento. */
+    public synchronized void registrarPerda(boolean timeout) {
+        perdas++;
+        if (controle != null) controle.aoPerder(timeout, System.nanoTime());
+    }
+
+    /** Libera a posição de um CHUNK que foi abandonado após MAX_TENTATIVAS. */
+    public synchronized void desistir(int seq) {
+        if (liberar(seq)) desistencias++;
+        notifyAll();
+    }
+
+    /**
+     * Marca de uma vez, antes do primeiro CHUNK de uma transferência retomada,
+     * todos os que o receptor já tem (os fora de faltantes). O SACK dele
+     * confirma esses CHUNKs desde o início, e eles não podem liberar posições
+     * da janela que nunca ocuparam.
+     */
+    public synchronized void pularRecebidos(BitSet faltantes, int totalChunks) {
+        for (int seq = faltantes.nextClearBit(0); seq < totalChunks; seq = faltantes.nextClearBit(seq + 1)) finalizados.set(seq);
+        base = finalizados.nextClearBit(base);
+    }
+
+    /** Bloqueia até todos os CHUNKs enviados serem confirmados ou abandonados, ou a transferência ser abortada. */
+    public synchronized void aguardarConclusao() throws InterruptedException {
+        while (emVoo > 0 && !abortada) {
+            wait();
+        }
+    }
+
+    /** Desiste da transferência: libera quem espera espaço ou conclusão, e os prazos pendentes deixam de valer. */
+    public synchronized void abortar() {
+        abortada = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isAbortada() {
+        return abortada;
+    }
+
+    /** Indica se o CHUNK já foi confirmado (ou abandonado). */
+    public synchronized boolean confirmado(int seq) {
+        return finalizados.get(seq);
+    }
+
+    public synchronized int getEmVoo() {
+        return emVoo;
+    }
+
+    public synchronized int getDesistencias() {
+        return desistencias;
+    }
+
+    public synchronized long getPerdas() {
+        return perdas;
+    }
+
+    public synchronized long getRetransmissoes() {
+        return retransmissoes;
+    }
+
+    public ControleCongestionamento getControle() {
+        return controle;
+    }
+
+    public EstimadorRtt getRtt() {
+        return rtt;
+    }
+
+    public String getNomeDestino() {
+        return nomeDestino;
+    }
+
+    public InetSocketAddress getEnderecoDestino() {
+        return enderecoDestino;
+    }
+
+    private boolean liberar(int seq) {
+        if (seq < 0 || seq > maiorRegistrado || finalizados.get(seq)) return false; // ACK repetido ou de CHUNK não enviado não libera
+        finalizados.set(seq);
+        if (seq == base) base = finalizados.nextClearBit(base);
+        emVoo--;
+        return true;
+    }
+
+    /** Devolve a amostra registrada, ou -1 se o CHUNK não servia de amostra. */
+    private long amostrarRtt(int seq) {
+        // Karn: CHUNKs retransmitidos não dão amostra, não dá para saber qual envio foi confirmado
+        // chamado logo após liberar(seq): a posição ainda não foi reaproveitada por outro CHUNK
+        long enviado = seq <= maiorRegistrado ? enviadoEm[seq & (enviadoEm.length - 1)] : 0;
+        if (enviado != 0 && !retransmitidos.get(seq)) {
+            long amostra = System.nanoTime() - enviado;
+            rtt.registrarAmostra(amostra);
+            return amostra;
+        }
+        return -1;
+    }
+
+    /** Dobra as tabelas circulares até caberem minimo posições a partir de base. */
+    private void crescerTabelas(int minimo) {
+        int capacidade = enviadoEm.length;
+        while (capacidade < minimo) capacidade *= 2;
+        long[] novoEnviadoEm = new long[capacidade];
+        long[] novosPrazos = new long[capacidade];
+        byte[] novasTentativas = new byte[capacidade];
+        for (int seq = base; seq <= maiorRegistrado; seq++) {
+            novoEnviadoEm[seq & (capacidade - 1)] = enviadoEm[seq & (enviadoEm.length - 1)];
+            novosPrazos[seq & (capacidade - 1)] = prazos[seq & (prazos.length - 1)];
+            novasTentativas[seq & (capacidade - 1)] = tentativas[seq & (tentativas.length - 1)];
+        }
+        enviadoEm = novoEnviadoEm;
+        prazos = novosPrazos;
+        tentativas = novasTentativas;
+    }
+
+    private int limiteEfetivo() {
+        int limite = Math.min(limiteLocal, janelaAnunciada);
+        return controle != null ? Math.min(limite, controle.getJanela()) : limite;
+    }
+}
@@ -0,0 +1,171 @@
+package labredes;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Controle do lado do receptor: acompanha quais CHUNKs de uma transferência já
+ * chegaram e calcula quanto espaço livre anunciar ao remetente. CHUNKs que
+ * chegam fora de ordem (acima do primeiro buraco) ocupam a janela até o buraco
+ * ser preenchido.
+ *
+ * Também guarda o que falta confirmar ao remetente, para que os ACKs saiam
+ * agrupados em SACKs (ACK cumulativo + bitmap) em vez de um por CHUNK.
+ *
+ * Numa transferência retomada, os CHUNKs que já estavam no disco entram como
+ * recebidos desde o início e não ocupam espaço da janela.
+ */
+public class JanelaRecepcao {
+    private final int capacidade;
+    private final BitSet recebidos;
+    private final BitSet preexistentes; // null se a transferência não foi retomada
+    private int proximoEsperado = 0;
+    private int foraDeOrdem = 0;
+    private int maiorRecebido = -1;
+    private int naoConfirmados = 0;
+    private int totalRecebidos = 0;
+    private long ultimoSack = 0;
+    private InetSocketAddress origem; // definido quando o remetente entende SACK
+
+    public JanelaRecepcao(int capacidade) {
+        this.capacidade = capacidade;
+        this.recebidos = new BitSet();
+        this.preexistentes = null;
+    }
+
+    /** Janela de uma transferência retomada: jaNoDisco são os CHUNKs gravados antes. */
+    public JanelaRecepcao(int capacidade, BitSet jaNoDisco) {
+        this.capacidade = capacidade;
+        this.recebidos = (BitSet) jaNoDisco.clone();
+        this.preexistentes = (BitSet) jaNoDisco.clone();
+        this.proximoEsperado = recebidos.nextClearBit(0);
+        this.maiorRecebido = recebidos.length() - 1;
+        this.totalRecebidos = recebidos.cardinality();
+    }
+
+    /** Marca o CHUNK como recebido e devolve o espaço livre a anunciar no ACK. */
+    public synchronized int registrar(int seq) {
+        if (seq >= proximoEsperado && !recebidos.get(seq)) {
+            recebidos.set(seq);
+            naoConfirmados++;
+            totalRecebidos++;
+            if (seq > maiorRecebido) maiorRecebido = seq;
+            if (seq == proximoEsperado) {
+                // todos os bits entre seq e o próximo buraco estavam fora de ordem
+                int novoInicio = recebidos.nextClearBit(proximoEsperado);
+                if (preexistentes == null) {
+                    foraDeOrdem -= novoInicio - seq - 1;
+                } else {
+                    for (int i = seq + 1; i < novoInicio; i++) {
+                        if (!preexistentes.get(i)) foraDeOrdem--;
+                    }
+                }
+                proximoEsperado = novoInicio;
+            } else {
+                foraDeOrdem++;
+            }
+        }
+        return espacoLivre();
+    }
+
+    public synchronized boolean jaRecebido(int seq) {
+        return seq < proximoEsperado || recebidos.get(seq);
+    }
+
+    public synchronized int espacoLivre() {
+        return Math.max(0, capacidade - foraDeOrdem);
+    }
+
+    public synchronized int getProximoEsperado() {
+        return proximoEsperado;
+    }
+
+    /** Quantos CHUNKs distintos estão marcados como recebidos (inclui os preexistentes). */
+    public synchronized int getTotalRecebidos() {
+        return totalRecebidos;
+    }
+
+    /** Cópia do conjunto de CHUNKs recebidos, para persistir ou listar faltantes. */
+    public synchronized BitSet copiarRecebidos() {
+        return (BitSet) recebidos.clone();
+    }
+
+    /**
+     * Faixas {primeiro CHUNK, quantidade} ainda não recebidas entre 0 e
+     * totalChunks. Acima de maxFaixas, as faixas separadas pelos menores
+     * intervalos recebidos são unidas: o remetente reenvia alguns CHUNKs que
+     * o receptor já tem, em troca de uma resposta que cabe num datagrama.
+     */
+    public synchronized int[][] faixasFaltantes(int totalChunks, int maxFaixas) {
+        List<int[]> faixas = new ArrayList<>();
+        for (int inicio = recebidos.nextClearBit(0); inicio < totalChunks; ) {
+            int fim = Math.min(totalChunks, recebidos.nextSetBit(inicio) < 0 ? totalChunks : recebidos.nextSetBit(inicio));
+            faixas.add(new int[] {inicio, fim - inicio});
+            inicio = recebidos.nextClearBit(fim);
+        }
+        if (faixas.size() > maxFaixas) {
+            int[] intervalos = new int[faixas.size() - 1];
+            for (int i = 0; i < intervalos.length; i++) {
+                intervalos[i] = faixas.get(i + 1)[0] - (faixas.get(i)[0] + faixas.get(i)[1]);
+            }
+            int[] ordenados = intervalos.clone();
+            Arrays.sort(ordenados);
+            int limite = ordenados[faixas.size() - maxFaixas - 1];
+            int aUnir = faixas.size() - maxFaixas;
+            List<int[]> unidas = new ArrayList<>();
+            int[] atual = faixas.get(0).clone();
+            for (int i = 0; i < intervalos.length; i++) {
+                int[] proxima = faixas.get(i + 1);
+                if (aUnir > 0 && intervalos[i] <= limite) {
+                    atual[1] = proxima[0] + proxima[1] - atual[0];
+                    aUnir--;
+                } else {
+                    unidas.add(atual);
+                    atual = proxima.clone();
+                }
+            }
+            unidas.add(atual);
+            faixas = unidas;
+        }
+        return faixas.toArray(new int[0][]);
+    }
+
+    public synchronized int getNaoConfirmados() {
+        return naoConfirmados;
+    }
+
+    /** Há CHUNKs sem confirmação e o último SACK saiu há pelo menos intervaloMs. */
+    public synchronized boolean sackPendente(long agora, long intervaloMs) {
+        return naoConfirmados > 0 && agora - ultimoSack >= intervaloMs;
+    }
+
+    /**
+     * Preenche o bitmap de SACK (bits a partir de proximoEsperado + 1, limitado
+     * ao tamanho do array) e marca tudo como confirmado. Devolve quantos bytes
+     * do bitmap foram usados.
+     */
+    public synchronized int prepararSack(byte[] bitmap, long agora) {
+        naoConfirmados = 0;
+        ultimoSack = agora;
+        int bits = Math.min(bitmap.length * 8, maiorRecebido - proximoEsperado);
+        if (bits <= 0) return 0;
+        int bytes = (bits + 7) / 8;
+        Arrays.fill(bitmap, 0, bytes, (byte) 0);
+        for (int seq = recebidos.nextSetBit(proximoEsperado + 1); seq >= 0 && seq - proximoEsperado - 1 < bits; seq = recebidos.nextSetBit(seq + 1)) {
+            int i = seq - proximoEsperado - 1;
+            bitmap[i >>> 3] |= (byte) (1 << (i & 7));
+        }
+        return bytes;
+    }
+
+    public synchronized InetSocketAddress getOrigem() {
+        return origem;
+    }
+
+    public synchronized void setOrigem(InetSocketAddress origem) {
+        this.origem = origem;
+    }
+}
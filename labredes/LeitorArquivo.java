@@ -0,0 +1,73 @@
+package labredes;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Leitura do arquivo enviado por CHUNK, com leituras posicionais num
+ * FileChannel direto para o buffer do datagrama. Como qualquer CHUNK pode ser
+ * relido a partir do seq, as retransmissões remontam o datagrama do arquivo
+ * em vez de manter uma cópia de cada CHUNK em voo.
+ *
+ * Leituras posicionais não mexem na posição do canal, então a thread de envio,
+ * a de retransmissão e a de reparo podem ler ao mesmo tempo.
+ */
+public class LeitorArquivo {
+    private final File arquivo;
+    private final FileChannel canal;
+    private final long tamanho;
+    private final int tamanhoChunk;
+
+    public LeitorArquivo(File arquivo, int tamanhoChunk) throws IOException {
+        this.arquivo = arquivo;
+        this.canal = FileChannel.open(arquivo.toPath(), StandardOpenOption.READ);
+        this.tamanho = canal.size();
+        this.tamanhoChunk = tamanhoChunk;
+    }
+
+    /**
+     * Lê o conteúdo do CHUNK seq em destino, a partir da posição atual dele, e
+     * devolve quantos bytes foram lidos (0 para um seq além do fim do arquivo).
+     */
+    public int ler(int seq, ByteBuffer destino) throws IOException {
+        long inicio = (long) seq * tamanhoChunk;
+        int quantidade = (int) Math.max(0, Math.min(tamanhoChunk, tamanho - inicio));
+        int limite = destino.limit();
+        destino.limit(destino.position() + quantidade);
+        try {
+            long posicao = inicio;
+            while (destino.hasRemaining()) {
+                int lidos = canal.read(destino, posicao);
+                if (lidos < 0) throw new EOFException("Arquivo " + arquivo.getName() + " encolheu durante o envio");
+                posicao += lidos;
+            }
+        } finally {
+            destino.limit(limite);
+        }
+        return quantidade;
+    }
+
+    public int getTotalChunks() {
+        return (int) ((tamanho + tamanhoChunk - 1) / tamanhoChunk);
+    }
+
+    public long getTamanho() {
+        return tamanho;
+    }
+
+    public int getTamanhoChunk() {
+        return tamanhoChunk;
+    }
+
+    public File getArquivo() {
+        return arquivo;
+    }
+
+    public void fechar() throws IOException {
+        canal.close();
+    }
+}
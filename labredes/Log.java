@@ -0,0 +1,167 @@
+package labredes;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log com níveis, fora do caminho dos pacotes. Quem registra só copia a
+ * mensagem e o instante para um anel de tamanho fixo (sem lock: cada posição
+ * tem uma sequência, no esquema de fila limitada de Vyukov) e segue; uma
+ * thread de fundo formata o horário e escreve as linhas em lotes, com um
+ * print por lote em vez de um println por linha.
+ *
+ * Mensagens de nível desligado não devem nem ser montadas: o chamador testa
+ * antes, como em {@code if (Log.detalhado()) Log.detalhe("..." + seq)}. Com o
+ * anel cheio as linhas INFO e DETALHE são descartadas e contadas; ERRO espera
+ * o escritor abrir espaço.
+ */
+public final class Log {
+    public enum Nivel { ERRO, INFO, DETALHE }
+
+    private static final int CAPACIDADE = 1 << 14; // potência de 2
+    private static final int MAX_LOTE = 512;
+    private static final long ESPERA_ESCRITOR_NANOS = 50_000_000L;
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static final String[] mensagens = new String[CAPACIDADE];
+    private static final long[] instantes = new long[CAPACIDADE];
+    // posição i livre para a escrita número p quando sequencias[i] == p; pronta para leitura quando == p + 1
+    private static final AtomicLongArray sequencias = new AtomicLongArray(CAPACIDADE);
+    private static final AtomicLong cauda = new AtomicLong();
+    private static final AtomicLong descartadas = new AtomicLong();
+    private static final Object travaLeitura = new Object();
+    private static long cabeca = 0; // acesso sincronizado em travaLeitura
+    private static volatile Nivel nivel = Nivel.INFO;
+    private static volatile boolean escritorOcioso = false;
+    private static final Thread escritor;
+
+    static {
+        for (int i = 0; i < CAPACIDADE; i++) sequencias.set(i, i);
+        escritor = new Thread(Log::escrever, "log");
+        escritor.setDaemon(true);
+        escritor.start();
+        // o que ainda estiver no anel sai antes da JVM terminar
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::descarregar));
+    }
+
+    private Log() {
+    }
+
+    public static Nivel getNivel() {
+        return nivel;
+    }
+
+    public static void setNivel(Nivel novo) {
+        nivel = novo;
+    }
+
+    public static boolean habilitado(Nivel consultado) {
+        return consultado.ordinal() <= nivel.ordinal();
+    }
+
+    /** Linhas por CHUNK, ACK e retransmissão. */
+    public static boolean detalhado() {
+        return nivel == Nivel.DETALHE;
+    }
+
+    public static void erro(String mensagem) {
+        long agora = System.currentTimeMillis();
+        while (!publicar(mensagem, agora)) {
+            LockSupport.unpark(escritor);
+            Thread.onSpinWait();
+        }
+    }
+
+    public static void info(String mensagem) {
+        if (habilitado(Nivel.INFO)) registrar(mensagem);
+    }
+
+    public static void detalhe(String mensagem) {
+        if (detalhado()) registrar(mensagem);
+    }
+
+    /** Escreve na hora tudo o que está no anel. */
+    public static void descarregar() {
+        StringBuilder lote = new StringBuilder();
+        while (drenar(lote) > 0) {
+            System.out.print(lote);
+            lote.setLength(0);
+        }
+        System.out.flush();
+    }
+
+    private static void registrar(String mensagem) {
+        if (!publicar(mensagem, System.currentTimeMillis())) descartadas.incrementAndGet();
+    }
+
+    private static boolean publicar(String mensagem, long agora) {
+        long posicao = cauda.get();
+        while (true) {
+            int i = (int) (posicao & (CAPACIDADE - 1));
+            long diferenca = sequencias.get(i) - posicao;
+            if (diferenca == 0) {
+                if (cauda.compareAndSet(posicao, posicao + 1)) break;
+                posicao = cauda.get();
+            } else if (diferenca < 0) {
+                return false; // anel cheio: a posição ainda guarda a linha de uma volta atrás
+            } else {
+                posicao = cauda.get(); // outra thread pegou a posição
+            }
+        }
+        int i = (int) (posicao & (CAPACIDADE - 1));
+        mensagens[i] = mensagem;
+        instantes[i] = agora;
+        sequencias.set(i, posicao + 1);
+        if (escritorOcioso) LockSupport.unpark(escritor);
+        return true;
+    }
+
+    /** Move até MAX_LOTE linhas do anel para lote e devolve quantas foram. */
+    private static int drenar(StringBuilder lote) {
+        int total = 0;
+        long perdidas = descartadas.getAndSet(0);
+        if (perdidas > 0) lote.append("[LOG] ").append(perdidas).append(" linha(s) descartada(s) com o buffer cheio").append(System.lineSeparator());
+        synchronized (travaLeitura) {
+            while (total < MAX_LOTE) {
+                int i = (int) (cabeca & (CAPACIDADE - 1));
+                if (sequencias.get(i) != cabeca + 1) break;
+                String hora = LocalTime.ofInstant(Instant.ofEpochMilli(instantes[i]), ZoneId.systemDefault()).format(FORMATTER);
+                lote.append('[').append(hora).append("] ").append(mensagens[i]).append(System.lineSeparator());
+                mensagens[i] = null;
+                sequencias.set(i, cabeca + CAPACIDADE);
+                cabeca++;
+                total++;
+            }
+        }
+        return total + (perdidas > 0 ? 1 : 0);
+    }
+
+    private static boolean vazio() {
+        synchronized (travaLeitura) {
+            return sequencias.get((int) (cabeca & (CAPACIDADE - 1))) != cabeca + 1;
+        }
+    }
+
+    private static void escrever() {
+        StringBuilder lote = new StringBuilder(64 * 1024);
+        while (true) {
+            if (drenar(lote) > 0) {
+                PrintStream saida = System.out;
+                saida.print(lote);
+                saida.flush();
+                lote.setLength(0);
+                continue;
+            }
+            escritorOcioso = true;
+            // quem publicar depois de escritorOcioso = true acorda o escritor; antes disso, vazio() já vê a linha
+            if (vazio()) LockSupport.parkNanos(ESPERA_ESCRITOR_NANOS);
+            escritorOcioso = false;
+        }
+    }
+}
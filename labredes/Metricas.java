@@ -0,0 +1,324 @@
+package labredes;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores e histogramas de um nó. Tudo o que é tocado por pacote é
+ * LongAdder (cada thread soma na sua célula, sem disputar uma linha de cache)
+ * e a leitura só acontece quando alguém consulta: o comando stats, o JMX ou
+ * o arquivo de snapshot. O que o nó já mantém em outro lugar (CHUNKs em voo,
+ * filas, RTT por peer) vem da Fonte na hora da consulta.
+ */
+public class Metricas implements MetricasMXBean {
+    /** Nomes dos tipos, indexados pelos TIPO_ do Protocolo; HEARTBEAT e TALK só existem em texto. */
+    static final String[] TIPOS = {"OUTRO", "CHUNK", "ACK", "FILE", "END", "NACK", "SACK", "MERKLE_PEDIDO", "MERKLE",
+            "REPARO", "FALTANTES", "SONDA", "SONDA_ACK", "PARIDADE", "HEARTBEAT", "TALK"};
+    static final int TIPO_HEARTBEAT = 14;
+    static final int TIPO_TALK = 15;
+    private static final String[] PREFIXOS_TEXTO = {"CHUNK:", "ACK:", "HEARTBEAT:", "TALK:", "FILE:", "END:", "NACK:"};
+    private static final int[] TIPOS_TEXTO = {Protocolo.TIPO_CHUNK, Protocolo.TIPO_ACK, TIPO_HEARTBEAT, TIPO_TALK, Protocolo.TIPO_FILE, Protocolo.TIPO_END, Protocolo.TIPO_NACK};
+
+    /** Valores que o nó já mantém; lidos só na consulta. */
+    public interface Fonte {
+        int chunksPendentes();
+
+        int filaRecepcao();
+
+        long descartadosRecepcao();
+
+        int filaDisco();
+
+        Map<String, Double> rttPorPeerMs();
+    }
+
+    private final Fonte fonte;
+    private final LongAdder[] pacotesEnviados = novosContadores();
+    private final LongAdder[] bytesEnviados = novosContadores();
+    private final LongAdder[] pacotesRecebidos = novosContadores();
+    private final LongAdder[] bytesRecebidos = novosContadores();
+    private final LongAdder retransmissoesTimeout = new LongAdder();
+    private final LongAdder retransmissoesRapidas = new LongAdder();
+    private final LongAdder desistencias = new LongAdder();
+    private final LongAdder chunksDuplicados = new LongAdder();
+    private final LongAdder mensagensDuplicadas = new LongAdder();
+    private final Histograma rttMicros = new Histograma();
+    private final Histograma vazaoEnvioKBps = new Histograma();
+    private final Histograma vazaoRecepcaoKBps = new Histograma();
+
+    public Metricas(Fonte fonte) {
+        this.fonte = fonte;
+    }
+
+    private static LongAdder[] novosContadores() {
+        LongAdder[] contadores = new LongAdder[TIPOS.length];
+        for (int i = 0; i < contadores.length; i++) contadores[i] = new LongAdder();
+        return contadores;
+    }
+
+    /** Tipo do datagrama entre position e limit: o do cabeçalho binário ou o do prefixo de texto. */
+    static int tipo(ByteBuffer datagrama) {
+        if (Protocolo.ehQuadro(datagrama)) {
+            int tipo = Protocolo.tipo(datagrama);
+            return tipo > 0 && tipo < TIPO_HEARTBEAT ? tipo : 0;
+        }
+        for (int i = 0; i < PREFIXOS_TEXTO.length; i++) {
+            if (comecaCom(datagrama, PREFIXOS_TEXTO[i])) return TIPOS_TEXTO[i];
+        }
+        return 0;
+    }
+
+    private static boolean comecaCom(ByteBuffer datagrama, String prefixo) {
+        if (datagrama.remaining() < prefixo.length()) return false;
+        for (int i = 0; i < prefixo.length(); i++) {
+            if (datagrama.get(datagrama.position() + i) != prefixo.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /** Conta o datagrama entre position e limit, sem consumi-lo; chamar antes do send. */
+    public void contarEnvio(ByteBuffer datagrama) {
+        int tipo = tipo(datagrama);
+        pacotesEnviados[tipo].increment();
+        bytesEnviados[tipo].add(datagrama.remaining());
+    }
+
+    public void contarEnvio(byte[] dados, int tamanho) {
+        contarEnvio(ByteBuffer.wrap(dados, 0, tamanho));
+    }
+
+    public void contarRecebido(ByteBuffer datagrama) {
+        int tipo = tipo(datagrama);
+        pacotesRecebidos[tipo].increment();
+        bytesRecebidos[tipo].add(datagrama.remaining());
+    }
+
+    public void contarRetransmissaoTimeout() {
+        retransmissoesTimeout.increment();
+    }
+
+    public void contarRetransmissaoRapida() {
+        retransmissoesRapidas.increment();
+    }
+
+    public void contarDesistencia() {
+        desistencias.increment();
+    }
+
+    public void contarChunkDuplicado() {
+        chunksDuplicados.increment();
+    }
+
+    public void contarMensagemDuplicada() {
+        mensagensDuplicadas.increment();
+    }
+
+    /** Amostras de RTT em microssegundos; passado aos EstimadorRtt do nó. */
+    public Histograma getRtt() {
+        return rttMicros;
+    }
+
+    public void registrarEnvioConcluido(long bytes, long nanos) {
+        vazaoEnvioKBps.registrar(kbps(bytes, nanos));
+    }
+
+    public void registrarRecepcaoConcluida(long bytes, long nanos) {
+        vazaoRecepcaoKBps.registrar(kbps(bytes, nanos));
+    }
+
+    private static long kbps(long bytes, long nanos) {
+        return (long) (bytes / 1024.0 / (Math.max(1, nanos) / 1e9));
+    }
+
+    private static Map<String, Long> porTipo(LongAdder[] contadores) {
+        Map<String, Long> mapa = new LinkedHashMap<>();
+        for (int i = 0; i < contadores.length; i++) {
+            long valor = contadores[i].sum();
+            if (valor > 0) mapa.put(TIPOS[i], valor);
+        }
+        return mapa;
+    }
+
+    private static long total(LongAdder[] contadores) {
+        long soma = 0;
+        for (LongAdder contador : contadores) soma += contador.sum();
+        return soma;
+    }
+
+    @Override
+    public Map<String, Long> getPacotesEnviados() {
+        return porTipo(pacotesEnviados);
+    }
+
+    @Override
+    public Map<String, Long> getBytesEnviados() {
+        return porTipo(bytesEnviados);
+    }
+
+    @Override
+    public Map<String, Long> getPacotesRecebidos() {
+        return porTipo(pacotesRecebidos);
+    }
+
+    @Override
+    public Map<String, Long> getBytesRecebidos() {
+        return porTipo(bytesRecebidos);
+    }
+
+    @Override
+    public long getRetransmissoesTimeout() {
+        return retransmissoesTimeout.sum();
+    }
+
+    @Override
+    public long getRetransmissoesRapidas() {
+        return retransmissoesRapidas.sum();
+    }
+
+    @Override
+    public long getDesistencias() {
+        return desistencias.sum();
+    }
+
+    @Override
+    public long getChunksDuplicados() {
+        return chunksDuplicados.sum();
+    }
+
+    @Override
+    public long getMensagensDuplicadas() {
+        return mensagensDuplicadas.sum();
+    }
+
+    @Override
+    public long getTransferenciasEnviadas() {
+        return vazaoEnvioKBps.getContagem();
+    }
+
+    @Override
+    public long getTransferenciasRecebidas() {
+        return vazaoRecepcaoKBps.getContagem();
+    }
+
+    @Override
+    public Map<String, Double> getRttPorPeerMs() {
+        return fonte.rttPorPeerMs();
+    }
+
+    @Override
+    public long getRttP50Micros() {
+        return rttMicros.percentil(50);
+    }
+
+    @Override
+    public long getRttP99Micros() {
+        return rttMicros.percentil(99);
+    }
+
+    @Override
+    public long getRttMaximoMicros() {
+        return rttMicros.getMaximo();
+    }
+
+    @Override
+    public long getVazaoEnvioP50KBps() {
+        return vazaoEnvioKBps.percentil(50);
+    }
+
+    @Override
+    public long getVazaoRecepcaoP50KBps() {
+        return vazaoRecepcaoKBps.percentil(50);
+    }
+
+    @Override
+    public int getChunksPendentes() {
+        return fonte.chunksPendentes();
+    }
+
+    @Override
+    public int getFilaRecepcao() {
+        return fonte.filaRecepcao();
+    }
+
+    @Override
+    public long getDescartadosRecepcao() {
+        return fonte.descartadosRecepcao();
+    }
+
+    @Override
+    public int getFilaDisco() {
+        return fonte.filaDisco();
+    }
+
+    /** Resumo em linhas, para o comando stats. */
+    public String descrever() {
+        String fimLinha = System.lineSeparator();
+        return "enviados: " + total(pacotesEnviados) + " datagramas, " + total(bytesEnviados) + " bytes " + getPacotesEnviados() + fimLinha
+                + "  recebidos: " + total(pacotesRecebidos) + " datagramas, " + total(bytesRecebidos) + " bytes " + getPacotesRecebidos() + fimLinha
+                + "  retransmissões: " + getRetransmissoesTimeout() + " por timeout, " + getRetransmissoesRapidas() + " por SACK, " + getDesistencias() + " desistência(s)" + fimLinha
+                + "  duplicados descartados: " + getChunksDuplicados() + " CHUNK(s), " + getMensagensDuplicadas() + " TALK/FILE" + fimLinha
+                + "  rtt (µs): " + rttMicros.descrever() + " por peer (ms) " + getRttPorPeerMs() + fimLinha
+                + "  vazão envio (KB/s): " + vazaoEnvioKBps.descrever() + fimLinha
+                + "  vazão recepção (KB/s): " + vazaoRecepcaoKBps.descrever() + fimLinha
+                + "  CHUNKs pendentes: " + getChunksPendentes() + ", fila de recepção: " + getFilaRecepcao() + " (" + getDescartadosRecepcao() + " descartados), fila de disco: " + getFilaDisco();
+    }
+
+    /** Snapshot em JSON, com o nome do nó e o instante da coleta. */
+    public String paraJson(String nome) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"no\": ").append(textoJson(nome)).append(",\n  \"instante\": \"").append(java.time.Instant.now()).append("\",\n");
+        json.append("  \"pacotesEnviados\": ").append(jsonMapa(getPacotesEnviados())).append(",\n");
+        json.append("  \"bytesEnviados\": ").append(jsonMapa(getBytesEnviados())).append(",\n");
+        json.append("  \"pacotesRecebidos\": ").append(jsonMapa(getPacotesRecebidos())).append(",\n");
+        json.append("  \"bytesRecebidos\": ").append(jsonMapa(getBytesRecebidos())).append(",\n");
+        json.append("  \"retransmissoesTimeout\": ").append(getRetransmissoesTimeout()).append(",\n");
+        json.append("  \"retransmissoesRapidas\": ").append(getRetransmissoesRapidas()).append(",\n");
+        json.append("  \"desistencias\": ").append(getDesistencias()).append(",\n");
+        json.append("  \"chunksDuplicados\": ").append(getChunksDuplicados()).append(",\n");
+        json.append("  \"mensagensDuplicadas\": ").append(getMensagensDuplicadas()).append(",\n");
+        json.append("  \"rttMicros\": ").append(jsonHistograma(rttMicros)).append(",\n");
+        json.append("  \"rttPorPeerMs\": ").append(jsonMapa(getRttPorPeerMs())).append(",\n");
+        json.append("  \"vazaoEnvioKBps\": ").append(jsonHistograma(vazaoEnvioKBps)).append(",\n");
+        json.append("  \"vazaoRecepcaoKBps\": ").append(jsonHistograma(vazaoRecepcaoKBps)).append(",\n");
+        json.append("  \"chunksPendentes\": ").append(getChunksPendentes()).append(",\n");
+        json.append("  \"filaRecepcao\": ").append(getFilaRecepcao()).append(",\n");
+        json.append("  \"descartadosRecepcao\": ").append(getDescartadosRecepcao()).append(",\n");
+        json.append("  \"filaDisco\": ").append(getFilaDisco()).append("\n}\n");
+        return json.toString();
+    }
+
+    private static String jsonMapa(Map<String, ? extends Number> mapa) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, ? extends Number> entrada : mapa.entrySet()) {
+            if (json.length() > 1) json.append(", ");
+            Number valor = entrada.getValue();
+            json.append(textoJson(entrada.getKey())).append(": ")
+                    .append(valor instanceof Double ? String.format(Locale.ROOT, "%.3f", valor.doubleValue()) : valor.toString());
+        }
+        return json.append('}').toString();
+    }
+
+    /** O texto entre aspas, com aspas, barras invertidas e caracteres de controle escapados. */
+    private static String textoJson(String texto) {
+        StringBuilder json = new StringBuilder(texto.length() + 2).append('"');
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    private static String jsonHistograma(Histograma histograma) {
+        return String.format(Locale.ROOT, "{\"n\": %d, \"media\": %.1f, \"p50\": %d, \"p99\": %d, \"maximo\": %d}",
+                histograma.getContagem(), histograma.getMedia(), histograma.percentil(50), histograma.percentil(99), histograma.getMaximo());
+    }
+}
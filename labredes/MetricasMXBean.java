@@ -0,0 +1,56 @@
+package labredes;
+
+import java.util.Map;
+
+/** Métricas de um UDPNode expostas por JMX, em labredes:type=UDPNode,name=<nome>. */
+public interface MetricasMXBean {
+    /** Datagramas enviados por tipo de mensagem (CHUNK, ACK, SACK, HEARTBEAT, ...). */
+    Map<String, Long> getPacotesEnviados();
+
+    Map<String, Long> getBytesEnviados();
+
+    Map<String, Long> getPacotesRecebidos();
+
+    Map<String, Long> getBytesRecebidos();
+
+    long getRetransmissoesTimeout();
+
+    long getRetransmissoesRapidas();
+
+    /** CHUNKs abandonados após MAX_TENTATIVAS. */
+    long getDesistencias();
+
+    /** CHUNKs recebidos de novo e descartados. */
+    long getChunksDuplicados();
+
+    /** TALK e FILE repetidos descartados. */
+    long getMensagensDuplicadas();
+
+    long getTransferenciasEnviadas();
+
+    long getTransferenciasRecebidas();
+
+    /** RTT suavizado por peer, em milissegundos. */
+    Map<String, Double> getRttPorPeerMs();
+
+    long getRttP50Micros();
+
+    long getRttP99Micros();
+
+    long getRttMaximoMicros();
+
+    /** Vazão mediana das transferências concluídas, em KB/s. */
+    long getVazaoEnvioP50KBps();
+
+    long getVazaoRecepcaoP50KBps();
+
+    /** CHUNKs enviados e ainda não confirmados, somando todas as transferências. */
+    int getChunksPendentes();
+
+    /** Datagramas esperando nas filas dos trabalhadores da recepção. */
+    int getFilaRecepcao();
+
+    long getDescartadosRecepcao();
+
+    int getFilaDisco();
+}
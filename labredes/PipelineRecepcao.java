@@ -0,0 +1,148 @@
+package labredes;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recepção em estágios. O ReceptorNio só lê o socket para buffers do pool e
+ * entrega cada datagrama aqui; ele vai para a fila de um dos trabalhadores,
+ * escolhido pelo par (remetente, id). Assim os pacotes de uma transferência
+ * são tratados em ordem por uma thread só, e transferências diferentes
+ * andam em paralelo: um CHUNK lento de um peer não segura os ACKs dos outros.
+ *
+ * As filas são limitadas. Com a fila de um trabalhador cheia o datagrama é
+ * descartado na hora, como uma perda na rede: só aquela transferência
+ * retransmite e o controle de congestionamento do remetente reduz o ritmo,
+ * sem parar a leitura do socket para os demais.
+ */
+public class PipelineRecepcao {
+    private static final class Entrada {
+        private final ByteBuffer datagrama;
+        private final InetSocketAddress origem;
+
+        Entrada(ByteBuffer datagrama, InetSocketAddress origem) {
+            this.datagrama = datagrama;
+            this.origem = origem;
+        }
+    }
+
+    private final ReceptorNio.Tratador tratador;
+    private final PoolBuffers pool;
+    private final List<ArrayBlockingQueue<Entrada>> filas = new ArrayList<>();
+    private final AtomicIntegerArray picos;
+    private final AtomicLong processados = new AtomicLong();
+    private final AtomicLong descartados = new AtomicLong();
+    private final List<Thread> threads = new ArrayList<>();
+
+    public PipelineRecepcao(ReceptorNio.Tratador tratador, int trabalhadores, int capacidadeFila, int tamanhoBuffer) {
+        this.tratador = tratador;
+        // cada fila cheia mais o datagrama em tratamento por trabalhador, e um para o leitor
+        this.pool = new PoolBuffers(trabalhadores * (capacidadeFila + 1) + 1, tamanhoBuffer);
+        this.picos = new AtomicIntegerArray(trabalhadores);
+        for (int i = 0; i < trabalhadores; i++) filas.add(new ArrayBlockingQueue<>(capacidadeFila));
+    }
+
+    /** Inicia as threads dos trabalhadores. */
+    public void iniciar() {
+        for (int i = 0; i < filas.size(); i++) {
+            ArrayBlockingQueue<Entrada> fila = filas.get(i);
+            Thread thread = new Thread(() -> trabalhar(fila), "recepcao-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /** Para os trabalhadores; o que ainda estiver nas filas é descartado. */
+    public void encerrar() {
+        for (Thread thread : threads) thread.interrupt();
+    }
+
+    /** Pool de onde o leitor tira os buffers; entregar() fica com eles. */
+    public PoolBuffers getPool() {
+        return pool;
+    }
+
+    /** Passa o datagrama (e o buffer, que volta ao pool depois de tratado) para o trabalhador dele. */
+    public void entregar(ByteBuffer datagrama, InetSocketAddress origem) {
+        int indice = Math.floorMod(31 * origem.hashCode() + idDoDatagrama(datagrama), filas.size());
+        ArrayBlockingQueue<Entrada> fila = filas.get(indice);
+        if (!fila.offer(new Entrada(datagrama, origem))) {
+            descartados.incrementAndGet();
+            pool.devolver(datagrama);
+            return;
+        }
+        picos.accumulateAndGet(indice, fila.size(), Math::max);
+    }
+
+    /** "filas=[a, b] picos=[c, d] processados=n descartados=m"; os picos recomeçam a cada chamada. */
+    public String descrever() {
+        StringBuilder profundidades = new StringBuilder();
+        StringBuilder maiores = new StringBuilder();
+        for (int i = 0; i < filas.size(); i++) {
+            String separador = i > 0 ? ", " : "";
+            int profundidade = filas.get(i).size();
+            profundidades.append(separador).append(profundidade);
+            maiores.append(separador).append(picos.getAndSet(i, profundidade));
+        }
+        return "filas=[" + profundidades + "] picos=[" + maiores + "] processados=" + processados.get() + " descartados=" + descartados.get();
+    }
+
+    /** Datagramas esperando em todas as filas. */
+    public int getProfundidade() {
+        int total = 0;
+        for (ArrayBlockingQueue<Entrada> fila : filas) total += fila.size();
+        return total;
+    }
+
+    public long getProcessados() {
+        return processados.get();
+    }
+
+    public long getDescartados() {
+        return descartados.get();
+    }
+
+    /**
+     * Id da transferência ou mensagem: o campo id dos quadros binários, ou o
+     * número depois do primeiro ':' nas mensagens de texto ("CHUNK:12:...").
+     * Mensagens sem id (HEARTBEAT) ficam com 0.
+     */
+    static int idDoDatagrama(ByteBuffer datagrama) {
+        if (Protocolo.ehQuadro(datagrama)) return Protocolo.id(datagrama);
+        int fim = Math.min(datagrama.limit(), datagrama.position() + 32);
+        int i = datagrama.position();
+        while (i < fim && datagrama.get(i) != ':') i++;
+        int id = 0;
+        for (i++; i < fim; i++) {
+            int digito = datagrama.get(i) - '0';
+            if (digito < 0 || digito > 9) break;
+            id = id * 10 + digito;
+        }
+        return id;
+    }
+
+    private void trabalhar(ArrayBlockingQueue<Entrada> fila) {
+        while (true) {
+            Entrada entrada;
+            try {
+                entrada = fila.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                tratador.tratar(entrada.datagrama, entrada.origem);
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                pool.devolver(entrada.datagrama);
+                processados.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package labredes;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool de ByteBuffers diretos reaproveitados entre datagramas, para que o
+ * caminho de recepção não aloque um buffer novo por pacote. Os buffers são
+ * criados na primeira vez que faltam, até a quantidade do pool: um nó ocioso
+ * (vários na mesma JVM, por exemplo) não reserva a memória de todas as filas.
+ */
+public class PoolBuffers {
+    private final ArrayBlockingQueue<ByteBuffer> livres;
+    private final AtomicInteger naoCriados;
+    private final int tamanhoBuffer;
+
+    public PoolBuffers(int quantidade, int tamanhoBuffer) {
+        this.livres = new ArrayBlockingQueue<>(quantidade);
+        this.naoCriados = new AtomicInteger(quantidade);
+        this.tamanhoBuffer = tamanhoBuffer;
+    }
+
+    /** Retira um buffer do pool, bloqueando enquanto todos estiverem em uso. */
+    public ByteBuffer obter() throws InterruptedException {
+        ByteBuffer buf = livres.poll();
+        if (buf == null) buf = criarOuEsperar();
+        buf.clear();
+        return buf;
+    }
+
+    public void devolver(ByteBuffer buf) {
+        livres.offer(buf);
+    }
+
+    public int disponiveis() {
+        return livres.size() + naoCriados.get();
+    }
+
+    public int getTamanhoBuffer() {
+        return tamanhoBuffer;
+    }
+
+    private ByteBuffer criarOuEsperar() throws InterruptedException {
+        while (true) {
+            int restantes = naoCriados.get();
+            if (restantes == 0) return livres.take();
+            if (naoCriados.compareAndSet(restantes, restantes - 1)) return ByteBuffer.allocateDirect(tamanhoBuffer);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package labredes;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formato binário dos quadros de transferência de arquivo (CHUNK, ACK, SACK,
+ * FILE, END e NACK). Todo quadro começa com um cabeçalho fixo seguido do payload bruto:
+ *
+ * <pre>
+ *  0       1       2       3       4               8               12      14
+ *  +-------+-------+-------+-------+---------------+---------------+-------+--------
+ *  |magico |versao | tipo  | flags |      id       |      seq      |  len  | payload
+ *  +-------+-------+-------+-------+---------------+---------------+-------+--------
+ * </pre>
+ *
+ * O byte mágico nunca é um caractere ASCII, então quadros binários e mensagens
+ * de texto ("HEARTBEAT:", "TALK:", ...) convivem no mesmo socket. O suporte ao
+ * formato binário é anunciado no HEARTBEAT; peers que não anunciam continuam
+ * recebendo o protocolo de texto.
+ *
+ * SACK: seq carrega o ACK cumulativo (próximo CHUNK esperado, ou seja, todos
+ * os anteriores chegaram); o payload traz a janela livre (int) e um bitmap dos
+ * CHUNKs já recebidos acima dele. O bit i (byte i / 8, bit menos significativo
+ * primeiro) corresponde ao CHUNK cumulativo + 1 + i.
+ *
+ * END: payload com o SHA-256 do arquivo (32 bytes) seguido, nos remetentes
+ * que suportam reparo, da raiz da ArvoreMerkle (mais 32 bytes). Com a raiz, o
+ * receptor que encontra hash divergente desce pela árvore (MERKLE_PEDIDO:
+ * seq = nível, payload = índice inicial e quantidade; MERKLE: seq = nível,
+ * payload = índice inicial e os hashes) e pede só os CHUNKs dos blocos
+ * divergentes (REPARO: seq = primeiro CHUNK, payload = quantidade).
+ *
+ * Retomada: com FLAG_RETOMAVEL o FILE traz também a data de modificação do
+ * arquivo (tamanho, mtime, nome). O receptor responde com FALTANTES em vez
+ * de ACK: janela livre, quantidade de faixas e as faixas (primeiro CHUNK,
+ * quantidade) que ainda não estão no disco dele. Só é usado com peers que
+ * anunciam CAPACIDADE_RETOMADA no HEARTBEAT.
+ *
+ * Tamanho do CHUNK: com FLAG_TAMANHO_CHUNK o FILE traz um int com o tamanho
+ * dos CHUNKs da transferência (depois do mtime, se houver); sem a flag vale
+ * TAMANHO_CHUNK_PADRAO. O receptor anuncia no HEARTBEAT o maior tamanho que
+ * aceita ("C" + bytes). SONDA (seq = tamanho total do datagrama, payload de
+ * enchimento) e SONDA_ACK (seq = tamanho recebido) medem o maior datagrama
+ * que chega ao peer.
+ *
+ * FEC: PARIDADE (seq = primeiro CHUNK do grupo, payload = n, k, j em um byte
+ * cada e o XOR dos CHUNKs do grupo nas posições p com p % k == j) permite ao
+ * receptor refazer um CHUNK perdido sem retransmissão; ver Fec. Só é enviado
+ * a peers que anunciam CAPACIDADE_FEC.
+ */
+public final class Protocolo {
+    public static final byte MAGICO = (byte) 0xB7;
+    public static final byte VERSAO = 1;
+    public static final int TAMANHO_CABECALHO = 14;
+    public static final int TAMANHO_MAXIMO_PAYLOAD = 0xFFFF;
+
+    /** Capacidade anunciada no HEARTBEAT ("HEARTBEAT:nome:B1"). */
+    public static final String CAPACIDADE_BINARIO = "B" + VERSAO;
+    /** Capacidade de retomar transferências (FILE com mtime e resposta FALTANTES). */
+    public static final String CAPACIDADE_RETOMADA = "R1";
+    /** Capacidade de refazer CHUNKs perdidos a partir de quadros PARIDADE. */
+    public static final String CAPACIDADE_FEC = "F1";
+
+    public static final byte TIPO_CHUNK = 1;
+    public static final byte TIPO_ACK = 2;
+    public static final byte TIPO_FILE = 3;
+    public static final byte TIPO_END = 4;
+    public static final byte TIPO_NACK = 5;
+    public static final byte TIPO_SACK = 6;
+    public static final byte TIPO_MERKLE_PEDIDO = 7;
+    public static final byte TIPO_MERKLE = 8;
+    public static final byte TIPO_REPARO = 9;
+    public static final byte TIPO_FALTANTES = 10;
+    public static final byte TIPO_SONDA = 11;
+    public static final byte TIPO_SONDA_ACK = 12;
+    public static final byte TIPO_PARIDADE = 13;
+
+    /** CHUNK: o remetente pede confirmação imediata (janela cheia ou último CHUNK). */
+    public static final byte FLAG_ACK_IMEDIATO = 0x01;
+    /** FILE: o payload traz o mtime e o remetente aceita FALTANTES como resposta. */
+    public static final byte FLAG_RETOMAVEL = 0x02;
+    /** FILE: o payload traz o tamanho dos CHUNKs da transferência. */
+    public static final byte FLAG_TAMANHO_CHUNK = 0x04;
+    public static final int TAMANHO_CHUNK_PADRAO = 1024;
+    /** Maior datagrama UDP sobre IPv4 (65535 - 20 de IP - 8 de UDP). */
+    public static final int TAMANHO_MAXIMO_DATAGRAMA = 65507;
+    public static final int TAMANHO_MAXIMO_CHUNK = TAMANHO_MAXIMO_DATAGRAMA - TAMANHO_CABECALHO;
+    /** Prefixo da capacidade com o maior CHUNK aceito no HEARTBEAT. */
+    public static final String CAPACIDADE_CHUNK = "C";
+    /** Prefixo da capacidade com o intervalo até o próximo HEARTBEAT do nó, em ms ("H5000"). */
+    public static final String CAPACIDADE_INTERVALO = "H";
+    /** Quem recebe um HEARTBEAT com esta capacidade responde com o próprio HEARTBEAT, direto ao remetente. */
+    public static final String CAPACIDADE_PEDIDO_RESPOSTA = "P";
+    /** Intervalo de HEARTBEAT de quem não anuncia CAPACIDADE_INTERVALO. */
+    public static final long INTERVALO_HEARTBEAT_PADRAO_MS = 5000;
+    /** Faixas por FALTANTES: 8 bytes cada, o quadro cabe no buffer de 4 KB do receptor clássico. */
+    public static final int MAX_FAIXAS_FALTANTES = 480;
+
+    private Protocolo() {
+    }
+
+    /** Indica se o datagrama em [posicao, limite) é um quadro binário de versão conhecida. */
+    public static boolean ehQuadro(ByteBuffer buf) {
+        int inicio = buf.position();
+        return buf.remaining() >= TAMANHO_CABECALHO
+                && buf.get(inicio) == MAGICO
+                && buf.get(inicio + 1) == VERSAO
+                && buf.remaining() >= TAMANHO_CABECALHO + comprimento(buf);
+    }
+
+    public static byte tipo(ByteBuffer buf) {
+        return buf.get(buf.position() + 2);
+    }
+
+    public static byte flags(ByteBuffer buf) {
+        return buf.get(buf.position() + 3);
+    }
+
+    public static int id(ByteBuffer buf) {
+        return buf.getInt(buf.position() + 4);
+    }
+
+    public static int seq(ByteBuffer buf) {
+        return buf.getInt(buf.position() + 8);
+    }
+
+    public static int comprimento(ByteBuffer buf) {
+        return buf.getShort(buf.position() + 12) & 0xFFFF;
+    }
+
+    /** Posição absoluta do primeiro byte do payload. */
+    public static int inicioPayload(ByteBuffer buf) {
+        return buf.position() + TAMANHO_CABECALHO;
+    }
+
+    public static void escreverCabecalho(ByteBuffer buf, byte tipo, byte flags, int id, int seq, int comprimento) {
+        if (comprimento > TAMANHO_MAXIMO_PAYLOAD) {
+            throw new IllegalArgumentException("Payload grande demais: " + comprimento);
+        }
+        buf.put(MAGICO).put(VERSAO).put(tipo).put(flags).putInt(id).putInt(seq).putShort((short) comprimento);
+    }
+
+    public static void escreverChunk(ByteBuffer buf, int id, int seq, byte[] dados, int offset, int tamanho) {
+        escreverChunk(buf, id, seq, (byte) 0, dados, offset, tamanho);
+    }
+
+    public static void escreverChunk(ByteBuffer buf, int id, int seq, byte flags, byte[] dados, int offset, int tamanho) {
+        escreverCabecalho(buf, TIPO_CHUNK, flags, id, seq, tamanho);
+        buf.put(dados, offset, tamanho);
+    }
+
+    public static void escreverSack(ByteBuffer buf, int id, int cumulativo, int janelaLivre, byte[] bitmap, int bytesBitmap) {
+        escreverCabecalho(buf, TIPO_SACK, (byte) 0, id, cumulativo, 4 + bytesBitmap);
+        buf.putInt(janelaLivre).put(bitmap, 0, bytesBitmap);
+    }
+
+    public static void escreverAck(ByteBuffer buf, int id, int seq, int janelaLivre) {
+        escreverCabecalho(buf, TIPO_ACK, (byte) 0, id, seq, 4);
+        buf.putInt(janelaLivre);
+    }
+
+    /** modificadoEm < 0: FILE não retomável; tamanhoChunk igual ao padrão não vai no quadro. */
+    public static void escreverFile(ByteBuffer buf, int id, long tamanhoArquivo, long modificadoEm, int tamanhoChunk, String nomeArquivo) {
+        byte[] nome = nomeArquivo.getBytes(StandardCharsets.UTF_8);
+        byte flags = 0;
+        int extras = 0;
+        if (modificadoEm >= 0) {
+            flags |= FLAG_RETOMAVEL;
+            extras += 8;
+        }
+        if (tamanhoChunk != TAMANHO_CHUNK_PADRAO) {
+            flags |= FLAG_TAMANHO_CHUNK;
+            extras += 4;
+        }
+        escreverCabecalho(buf, TIPO_FILE, flags, id, -1, 8 + extras + nome.length);
+        buf.putLong(tamanhoArquivo);
+        if (modificadoEm >= 0) buf.putLong(modificadoEm);
+        if (tamanhoChunk != TAMANHO_CHUNK_PADRAO) buf.putInt(tamanhoChunk);
+        buf.put(nome);
+    }
+
+    /** Tamanho do payload de um FILE com essas opções (para alocar o quadro). */
+    public static int tamanhoPayloadFile(boolean retomavel, int tamanhoChunk, String nomeArquivo) {
+        return 8 + (retomavel ? 8 : 0) + (tamanhoChunk != TAMANHO_CHUNK_PADRAO ? 4 : 0) + nomeArquivo.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /** Sonda de tamanhoDatagrama bytes no total (cabeçalho incluído). */
+    public static void escreverSonda(ByteBuffer buf, int tamanhoDatagrama) {
+        int enchimento = tamanhoDatagrama - TAMANHO_CABECALHO;
+        escreverCabecalho(buf, TIPO_SONDA, (byte) 0, 0, tamanhoDatagrama, enchimento);
+        buf.position(buf.position() + enchimento);
+    }
+
+    public static void escreverSondaAck(ByteBuffer buf, int tamanhoRecebido) {
+        escreverCabecalho(buf, TIPO_SONDA_ACK, (byte) 0, 0, tamanhoRecebido, 0);
+    }
+
+    /** dados: XOR da classe j do grupo, entre position e limit (não é consumido). */
+    public static void escreverParidade(ByteBuffer buf, int id, int inicioGrupo, int n, int k, int j, ByteBuffer dados) {
+        escreverCabecalho(buf, TIPO_PARIDADE, (byte) 0, id, inicioGrupo, 3 + dados.remaining());
+        buf.put((byte) n).put((byte) k).put((byte) j).put(dados.duplicate());
+    }
+
+    /** faixas[i] = {primeiro CHUNK, quantidade}; no máximo MAX_FAIXAS_FALTANTES. */
+    public static void escreverFaltantes(ByteBuffer buf, int id, int janelaLivre, int[][] faixas) {
+        escreverCabecalho(buf, TIPO_FALTANTES, (byte) 0, id, -1, 8 + 8 * faixas.length);
+        buf.putInt(janelaLivre).putInt(faixas.length);
+        for (int[] faixa : faixas) {
+            buf.putInt(faixa[0]).putInt(faixa[1]);
+        }
+    }
+
+    public static void escreverEnd(ByteBuffer buf, int id, byte[] hash, byte[] raizMerkle) {
+        escreverCabecalho(buf, TIPO_END, (byte) 0, id, -1, hash.length + raizMerkle.length);
+        buf.put(hash).put(raizMerkle);
+    }
+
+    public static void escreverPedidoMerkle(ByteBuffer buf, int id, int nivel, int inicio, int quantidade) {
+        escreverCabecalho(buf, TIPO_MERKLE_PEDIDO, (byte) 0, id, nivel, 8);
+        buf.putInt(inicio).putInt(quantidade);
+    }
+
+    /** Escreve quantidade hashes do nível da árvore a partir de inicio. */
+    public static void escreverMerkle(ByteBuffer buf, int id, ArvoreMerkle arvore, int nivel, int inicio, int quantidade) {
+        escreverCabecalho(buf, TIPO_MERKLE, (byte) 0, id, nivel, 4 + quantidade * ArvoreMerkle.TAMANHO_HASH);
+        buf.putInt(inicio);
+        for (int i = 0; i < quantidade; i++) {
+            buf.put(arvore.getNo(nivel, inicio + i));
+        }
+    }
+
+    public static void escreverReparo(ByteBuffer buf, int id, int primeiroChunk, int quantidade) {
+        escreverCabecalho(buf, TIPO_REPARO, (byte) 0, id, primeiroChunk, 4);
+        buf.putInt(quantidade);
+    }
+
+    public static void escreverNack(ByteBuffer buf, int id, String motivo) {
+        byte[] texto = motivo.getBytes(StandardCharsets.UTF_8);
+        escreverCabecalho(buf, TIPO_NACK, (byte) 0, id, -1, texto.length);
+        buf.put(texto);
+    }
+
+    /** Lê o payload de um ACK: espaço livre na janela do receptor. */
+    public static int janelaAck(ByteBuffer buf) {
+        return buf.getInt(inicioPayload(buf));
+    }
+
+    /** Lê o payload de um SACK: espaço livre na janela do receptor. */
+    public static int janelaSack(ByteBuffer buf) {
+        return buf.getInt(inicioPayload(buf));
+    }
+
+    /** Posição absoluta do bitmap dentro de um SACK. */
+    public static int inicioBitmapSack(ByteBuffer buf) {
+        return inicioPayload(buf) + 4;
+    }
+
+    public static int bytesBitmapSack(ByteBuffer buf) {
+        return comprimento(buf) - 4;
+    }
+
+    /** Lê o payload de um END: SHA-256 do arquivo. */
+    public static byte[] hashEnd(ByteBuffer buf) {
+        byte[] hash = new byte[Math.min(ArvoreMerkle.TAMANHO_HASH, comprimento(buf))];
+        buf.get(inicioPayload(buf), hash);
+        return hash;
+    }
+
+    /** Lê o payload de um END: raiz da árvore Merkle, ou null se o remetente não a enviou. */
+    public static byte[] raizMerkleEnd(ByteBuffer buf) {
+        if (comprimento(buf) < 2 * ArvoreMerkle.TAMANHO_HASH) return null;
+        byte[] raiz = new byte[ArvoreMerkle.TAMANHO_HASH];
+        buf.get(inicioPayload(buf) + ArvoreMerkle.TAMANHO_HASH, raiz);
+        return raiz;
+    }
+
+    /** MERKLE_PEDIDO: índice do primeiro nó pedido. */
+    public static int inicioPedidoMerkle(ByteBuffer buf) {
+        return buf.getInt(inicioPayload(buf));
+    }
+
+    /** MERKLE_PEDIDO: quantidade de nós pedidos. */
+    public static int quantidadePedidoMerkle(ByteBuffer buf) {
+        return buf.getInt(inicioPayload(buf) + 4);
+    }
+
+    /** MERKLE: índice do primeiro hash do quadro. */
+    public static int inicioMerkle(ByteBuffer buf) {
+        return buf.getInt(inicioPayload(buf));
+    }
+
+    /** MERKLE: quantidade de hashes no quadro. */
+    public static int quantidadeHashesMerkle(ByteBuffer buf) {
+        return (comprimento(buf) - 4) / ArvoreMerkle.TAMANHO_HASH;
+    }
+
+    /** MERKLE: copia o i-ésimo hash do quadro. */
+    public static byte[] hashMerkle(ByteBuffer buf, int i) {
+        byte[] hash = new byte[ArvoreMerkle.TAMANHO_HASH];
+        buf.get(inicioPayload(buf) + 4 + i * ArvoreMerkle.TAMANHO_HASH, hash);
+        return hash;
+    }
+
+    /** REPARO: quantos CHUNKs a partir de seq. */
+    public static int quantidadeReparo(ByteBuffer buf) {
+        return buf.getInt(inicioPayload(buf));
+    }
+
+    /** Lê o payload de um FILE: tamanho do arquivo. */
+    public static long tamanhoFile(ByteBuffer buf) {
+        return buf.getLong(inicioPayload(buf));
+    }
+
+    /** Lê o payload de um FILE: nome do arquivo. */
+    public static String nomeFile(ByteBuffer buf) {
+        int inicio = 8 + (retomavel(buf) ? 8 : 0) + ((flags(buf) & FLAG_TAMANHO_CHUNK) != 0 ? 4 : 0);
+        return texto(buf, inicioPayload(buf) + inicio, comprimento(buf) - inicio);
+    }
+
+    /** Lê o payload de um FILE: tamanho dos CHUNKs (TAMANHO_CHUNK_PADRAO sem a flag). */
+    public static int tamanhoChunkFile(ByteBuffer buf) {
+        if ((flags(buf) & FLAG_TAMANHO_CHUNK) == 0) return TAMANHO_CHUNK_PADRAO;
+        return buf.getInt(inicioPayload(buf) + 8 + (retomavel(buf) ? 8 : 0));
+    }
+
+    public static boolean retomavel(ByteBuffer buf) {
+        return (flags(buf) & FLAG_RETOMAVEL) != 0;
+    }
+
+    /** Lê o payload de um FILE retomável: data de modificação do arquivo. */
+    public static long modificadoEmFile(ByteBuffer buf) {
+        return buf.getLong(inicioPayload(buf) + 8);
+    }
+
+    /** FALTANTES: lê as faixas como {primeiro CHUNK, quantidade}. */
+    public static int[][] faixasFaltantes(ByteBuffer buf) {
+        int quantidade = Math.min(buf.getInt(inicioPayload(buf) + 4), (comprimento(buf) - 8) / 8);
+        int[][] faixas = new int[Math.max(0, quantidade)][];
+        for (int i = 0; i < faixas.length; i++) {
+            int posicao = inicioPayload(buf) + 8 + 8 * i;
+            faixas[i] = new int[] {buf.getInt(posicao), buf.getInt(posicao + 4)};
+        }
+        return faixas;
+    }
+
+    /** PARIDADE: CHUNKs de dados no grupo. */
+    public static int nParidade(ByteBuffer buf) {
+        return buf.get(inicioPayload(buf)) & 0xFF;
+    }
+
+    /** PARIDADE: quadros de paridade no grupo. */
+    public static int kParidade(ByteBuffer buf) {
+        return buf.get(inicioPayload(buf) + 1) & 0xFF;
+    }
+
+    /** PARIDADE: classe (j) coberta por este quadro. */
+    public static int indiceParidade(ByteBuffer buf) {
+        return buf.get(inicioPayload(buf) + 2) & 0xFF;
+    }
+
+    /** PARIDADE: delimita o próprio buffer ao XOR, sem copiar. */
+    public static ByteBuffer dadosParidade(ByteBuffer buf) {
+        int inicio = inicioPayload(buf) + 3;
+        return buf.duplicate().limit(inicioPayload(buf) + comprimento(buf)).position(inicio);
+    }
+
+    /** Lê o payload de texto de um NACK. */
+    public static String motivoNack(ByteBuffer buf) {
+        return texto(buf, inicioPayload(buf), comprimento(buf));
+    }
+
+    /** Aloca um buffer com espaço para o cabeçalho e o payload informado. */
+    public static ByteBuffer alocar(int tamanhoPayload) {
+        return ByteBuffer.allocate(TAMANHO_CABECALHO + tamanhoPayload);
+    }
+
+    private static String texto(ByteBuffer buf, int inicio, int tamanho) {
+        byte[] bytes = new byte[tamanho];
+        buf.get(inicio, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,70 @@
+package labredes;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Laço de recepção sobre DatagramChannel. Cada datagrama é lido num buffer
+ * direto do pool e entregue ao tratador já com position/limit delimitando o
+ * conteúdo; o buffer volta ao pool assim que o tratador retorna, então o
+ * tratador não pode guardar referência a ele.
+ *
+ * Com uma PipelineRecepcao esta thread só lê: cada datagrama vai para a fila
+ * de um trabalhador da pipeline, que devolve o buffer depois de tratá-lo.
+ */
+public class ReceptorNio implements Runnable {
+    /** Recebe o datagrama lido e o endereço de quem enviou. */
+    public interface Tratador {
+        void tratar(ByteBuffer datagrama, InetSocketAddress origem);
+    }
+
+    private final DatagramChannel canal;
+    private final PoolBuffers pool;
+    private final Tratador tratador;
+    private final PipelineRecepcao pipeline; // null: trata na própria thread
+
+    public ReceptorNio(DatagramChannel canal, PoolBuffers pool, Tratador tratador) {
+        this.canal = canal;
+        this.pool = pool;
+        this.tratador = tratador;
+        this.pipeline = null;
+    }
+
+    public ReceptorNio(DatagramChannel canal, PipelineRecepcao pipeline) {
+        this.canal = canal;
+        this.pool = pipeline.getPool();
+        this.tratador = null;
+        this.pipeline = pipeline;
+    }
+
+    @Override
+    public void run() {
+        while (canal.isOpen()) {
+            ByteBuffer buf;
+            try {
+                buf = pool.obter();
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean entregue = false;
+            try {
+                InetSocketAddress origem = (InetSocketAddress) canal.receive(buf);
+                buf.flip();
+                if (pipeline != null) {
+                    pipeline.entregar(buf, origem);
+                    entregue = true;
+                } else {
+                    tratador.tratar(buf, origem);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (!entregue) pool.devolver(buf);
+            }
+        }
+    }
+}
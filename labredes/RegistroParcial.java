@@ -0,0 +1,90 @@
+package labredes;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * Bitmap persistido dos CHUNKs já gravados de uma transferência recebida,
+ * para retomá-la depois de uma queda do nó ou do remetente. O registro é
+ * identificado por (remetente, arquivo, tamanho, data de modificação) e fica
+ * em .parciais/ ao lado dos arquivos recebidos até o END ser verificado.
+ *
+ * Formato: magic, tamanho do arquivo, tamanho do CHUNK e os bytes do BitSet.
+ * A escrita vai para um temporário e é movida por cima, então uma queda no
+ * meio deixa o registro anterior intacto.
+ */
+public class RegistroParcial {
+    private static final int MAGICO = 0x52504231; // "RPB1"
+
+    private final File arquivo;
+    private final long tamanho;
+    private final int tamanhoChunk;
+    private int ultimoSalvo = -1; // quantos CHUNKs havia na última gravação
+    private boolean apagado = false;
+
+    public RegistroParcial(File pasta, String remetente, String nomeArquivo, long tamanho, long modificadoEm, int tamanhoChunk) {
+        this.arquivo = new File(pasta, identificador(remetente + "|" + nomeArquivo + "|" + tamanho + "|" + modificadoEm) + ".bitmap");
+        this.tamanho = tamanho;
+        this.tamanhoChunk = tamanhoChunk;
+    }
+
+    /** CHUNKs gravados numa tentativa anterior, ou null se não houver registro válido. */
+    public BitSet carregar() {
+        if (!arquivo.exists()) return null;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(arquivo))) {
+            if (in.readInt() != MAGICO || in.readLong() != tamanho || in.readInt() != tamanhoChunk) return null;
+            BitSet recebidos = BitSet.valueOf(in.readAllBytes());
+            ultimoSalvo = recebidos.cardinality();
+            return recebidos;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Grava o bitmap se ele mudou desde a última vez; total é a cardinalidade dele. */
+    public synchronized void salvar(BitSet recebidos, int total) throws IOException {
+        if (apagado || total == ultimoSalvo) return;
+        File pasta = arquivo.getParentFile();
+        if (!pasta.exists()) pasta.mkdirs();
+        File temporario = new File(pasta, arquivo.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temporario))) {
+            out.writeInt(MAGICO);
+            out.writeLong(tamanho);
+            out.writeInt(tamanhoChunk);
+            out.write(recebidos.toByteArray());
+        }
+        Files.move(temporario.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ultimoSalvo = total;
+    }
+
+    /** Remove o registro; salvamentos posteriores (do laço de persistência) são ignorados. */
+    public synchronized void apagar() {
+        apagado = true;
+        arquivo.delete();
+    }
+
+    public File getArquivo() {
+        return arquivo;
+    }
+
+    private static String identificador(String chave) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(chave.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; i++) sb.append(String.format("%02x", hash[i]));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package labredes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reparo de um arquivo recebido cujo hash não bateu com o do END. A árvore
+ * local é comparada com a do remetente a partir da raiz: só os filhos de nós
+ * divergentes são pedidos (MERKLE_PEDIDO), até chegar às folhas. Os CHUNKs
+ * das folhas divergentes são então pedidos em rodadas de até
+ * MAX_CHUNKS_POR_RODADA (REPARO).
+ *
+ * Pedidos são representados como {nível, início, quantidade} para MERKLE e
+ * {primeiro CHUNK, quantidade} para REPARO; quem envia é o UDPNode.
+ *
+ * O tamanho do CHUNK é o da transferência e não precisa dividir o da folha:
+ * um CHUNK que atravessa a borda de uma folha divergente é pedido inteiro.
+ */
+public class ReparoMerkle {
+    private static final int MAX_CHUNKS_POR_RODADA = 128;
+    /** Limite de hashes por quadro MERKLE (32 KB de payload). */
+    public static final int MAX_HASHES_POR_PEDIDO = 1024;
+
+    private final ArvoreMerkle arvoreLocal;
+    private final byte[] raizRemota;
+    private final int totalChunks;
+    private final int tamanhoChunk;
+    private final Map<Long, int[]> pedidosMerkle = new LinkedHashMap<>();
+    private final BitSet folhasDivergentes = new BitSet();
+    private final BitSet chunksPendentes = new BitSet();
+    private int chunksNaRodada = 0;
+    private int chunksReparados = 0;
+    private int tentativas = 0;
+    private long ultimaAtividade = System.currentTimeMillis();
+
+    public ReparoMerkle(ArvoreMerkle arvoreLocal, byte[] raizRemota, int totalChunks, int tamanhoChunk) {
+        this.arvoreLocal = arvoreLocal;
+        this.raizRemota = raizRemota;
+        this.totalChunks = totalChunks;
+        this.tamanhoChunk = tamanhoChunk;
+    }
+
+    /** Primeiro pedido: os filhos da raiz (ou nada, se a raiz já é a única folha). */
+    public synchronized List<int[]> iniciar() {
+        List<int[]> pedidos = new ArrayList<>();
+        int nivel = arvoreLocal.getAltura() - 2;
+        if (nivel < 0) {
+            marcarFolha(0);
+        } else {
+            registrarPedidos(pedidos, nivel, 0, arvoreLocal.tamanhoNivel(nivel));
+        }
+        return pedidos;
+    }
+
+    /**
+     * Compara hashes recebidos do remetente com os locais e devolve os
+     * pedidos para os filhos dos nós divergentes. Devolve null se a resposta
+     * não corresponde a um pedido pendente (duplicada ou atrasada).
+     */
+    public synchronized List<int[]> receberHashes(int nivel, int inicio, byte[][] hashes) {
+        if (pedidosMerkle.remove(chave(nivel, inicio)) == null) return null;
+        ultimaAtividade = System.currentTimeMillis();
+        List<int[]> pedidos = new ArrayList<>();
+        int inicioFaixa = -1;
+        int fimFaixa = -1;
+        for (int i = 0; i < hashes.length && inicio + i < arvoreLocal.tamanhoNivel(nivel); i++) {
+            int indice = inicio + i;
+            if (Arrays.equals(arvoreLocal.getNo(nivel, indice), hashes[i])) continue;
+            if (nivel == 0) {
+                marcarFolha(indice);
+                continue;
+            }
+            // filhos de nós divergentes vizinhos são contíguos: um pedido só por faixa
+            int primeiroFilho = 2 * indice;
+            int ultimoFilho = Math.min(primeiroFilho + 2, arvoreLocal.tamanhoNivel(nivel - 1));
+            if (primeiroFilho == fimFaixa) {
+                fimFaixa = ultimoFilho;
+            } else {
+                if (inicioFaixa >= 0) registrarPedidos(pedidos, nivel - 1, inicioFaixa, fimFaixa - inicioFaixa);
+                inicioFaixa = primeiroFilho;
+                fimFaixa = ultimoFilho;
+            }
+        }
+        if (inicioFaixa >= 0) registrarPedidos(pedidos, nivel - 1, inicioFaixa, fimFaixa - inicioFaixa);
+        return pedidos;
+    }
+
+    /** Próxima rodada de REPARO: faixas contíguas dos primeiros CHUNKs ainda pendentes. */
+    public synchronized List<int[]> proximaRodada() {
+        List<int[]> faixas = new ArrayList<>();
+        int restantes = MAX_CHUNKS_POR_RODADA;
+        chunksNaRodada = 0;
+        for (int seq = chunksPendentes.nextSetBit(0); seq >= 0 && restantes > 0; ) {
+            int fim = Math.min(chunksPendentes.nextClearBit(seq), seq + restantes);
+            faixas.add(new int[] {seq, fim - seq});
+            chunksNaRodada += fim - seq;
+            restantes -= fim - seq;
+            seq = chunksPendentes.nextSetBit(fim);
+        }
+        return faixas;
+    }
+
+    /** Registra um CHUNK reparado; devolve false se ele não estava sendo esperado. */
+    public synchronized boolean receberChunk(int seq) {
+        if (seq < 0 || !chunksPendentes.get(seq)) return false;
+        chunksPendentes.clear(seq);
+        chunksNaRodada--;
+        chunksReparados++;
+        ultimaAtividade = System.currentTimeMillis();
+        return true;
+    }
+
+    public synchronized boolean descidaConcluida() {
+        return pedidosMerkle.isEmpty();
+    }
+
+    public synchronized boolean rodadaConcluida() {
+        return chunksNaRodada <= 0;
+    }
+
+    public synchronized boolean concluido() {
+        return pedidosMerkle.isEmpty() && chunksPendentes.isEmpty();
+    }
+
+    /** Pedidos MERKLE ainda sem resposta (para reenviar). */
+    public synchronized Collection<int[]> getPedidosMerkle() {
+        return new ArrayList<>(pedidosMerkle.values());
+    }
+
+    /** Conta uma tentativa de reenvio por falta de resposta e devolve o total. */
+    public synchronized int registrarTentativa() {
+        ultimaAtividade = System.currentTimeMillis();
+        return ++tentativas;
+    }
+
+    public synchronized long getUltimaAtividade() {
+        return ultimaAtividade;
+    }
+
+    public synchronized BitSet getFolhasDivergentes() {
+        return (BitSet) folhasDivergentes.clone();
+    }
+
+    public synchronized int getChunksReparados() {
+        return chunksReparados;
+    }
+
+    public ArvoreMerkle getArvoreLocal() {
+        return arvoreLocal;
+    }
+
+    public byte[] getRaizRemota() {
+        return raizRemota;
+    }
+
+    private void registrarPedidos(List<int[]> pedidos, int nivel, int inicio, int quantidade) {
+        for (int i = 0; i < quantidade; i += MAX_HASHES_POR_PEDIDO) {
+            int[] pedido = {nivel, inicio + i, Math.min(MAX_HASHES_POR_PEDIDO, quantidade - i)};
+            pedidosMerkle.put(chave(nivel, inicio + i), pedido);
+            pedidos.add(pedido);
+        }
+    }
+
+    private void marcarFolha(int folha) {
+        folhasDivergentes.set(folha);
+        long inicio = (long) folha * ArvoreMerkle.TAMANHO_FOLHA;
+        int primeiro = (int) (inicio / tamanhoChunk);
+        int fim = (int) ((inicio + ArvoreMerkle.TAMANHO_FOLHA + tamanhoChunk - 1) / tamanhoChunk);
+        chunksPendentes.set(primeiro, Math.min(fim, totalChunks));
+    }
+
+    private static long chave(int nivel, int inicio) {
+        return ((long) nivel << 32) | (inicio & 0xFFFFFFFFL);
+    }
+}
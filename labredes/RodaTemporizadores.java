@@ -0,0 +1,80 @@
+package labredes;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Roda de temporizadores (hashed timing wheel) para prazos de retransmissão.
+ * Cada entrada é uma chave long com um prazo em nanossegundos; o slot é
+ * escolhido pelo prazo, então cada tick só percorre o slot do instante atual
+ * e não a lista inteira de pendentes. Entradas com prazo além de uma volta
+ * completa ficam no slot e são puladas até a volta certa.
+ *
+ * Não há cancelamento: quem consome a expiração verifica se a chave ainda é
+ * válida (por exemplo, se o CHUNK já foi confirmado) e a ignora se não for.
+ */
+public class RodaTemporizadores {
+    private final long tickNanos;
+    private final long[][] chaves;
+    private final long[][] prazos;
+    private final int[] tamanhos;
+    private long ultimoTick;
+
+    // usado só pela thread que chama expirar()
+    private long[] expirados = new long[64];
+
+    public RodaTemporizadores(int quantidadeSlots, long tickNanos, long agoraNanos) {
+        this.tickNanos = tickNanos;
+        this.chaves = new long[quantidadeSlots][8];
+        this.prazos = new long[quantidadeSlots][8];
+        this.tamanhos = new int[quantidadeSlots];
+        this.ultimoTick = agoraNanos / tickNanos;
+    }
+
+    public synchronized void agendar(long chave, long prazoNanos) {
+        // arredonda para cima: quando o tick do slot for processado o prazo já venceu.
+        // prazos já vencidos caem no próximo tick a ser processado
+        long tick = Math.max((prazoNanos + tickNanos - 1) / tickNanos, ultimoTick + 1);
+        int slot = (int) (tick % chaves.length);
+        int n = tamanhos[slot];
+        if (n == chaves[slot].length) {
+            chaves[slot] = Arrays.copyOf(chaves[slot], n * 2);
+            prazos[slot] = Arrays.copyOf(prazos[slot], n * 2);
+        }
+        chaves[slot][n] = chave;
+        prazos[slot][n] = prazoNanos;
+        tamanhos[slot] = n + 1;
+    }
+
+    /** Remove as entradas vencidas até agoraNanos e entrega as chaves, fora do lock, para a ação. */
+    public void expirar(long agoraNanos, LongConsumer acao) {
+        int total = 0;
+        synchronized (this) {
+            long tickAtual = agoraNanos / tickNanos;
+            // depois de uma pausa longa basta uma volta completa
+            long primeiro = Math.max(ultimoTick + 1, tickAtual - chaves.length + 1);
+            for (long tick = primeiro; tick <= tickAtual; tick++) {
+                int slot = (int) (tick % chaves.length);
+                long[] c = chaves[slot];
+                long[] p = prazos[slot];
+                int n = tamanhos[slot];
+                for (int i = 0; i < n; ) {
+                    if (p[i] <= agoraNanos) {
+                        if (total == expirados.length) expirados = Arrays.copyOf(expirados, total * 2);
+                        expirados[total++] = c[i];
+                        n--;
+                        c[i] = c[n];
+                        p[i] = p[n];
+                    } else {
+                        i++;
+                    }
+                }
+                tamanhos[slot] = n;
+            }
+            if (tickAtual > ultimoTick) ultimoTick = tickAtual;
+        }
+        for (int i = 0; i < total; i++) {
+            acao.accept(expirados[i]);
+        }
+    }
+}
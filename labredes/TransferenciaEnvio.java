@@ -0,0 +1,159 @@
+package labredes;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estado de um envio de arquivo (lado do remetente). O id é gerado pelo
+ * próprio nó, então basta ele para achar a transferência; os CHUNKs em voo
+ * ficam na JanelaEnvio, criada quando o FILE é confirmado.
+ *
+ * ACKs com seq -1 confirmam a mensagem de controle da etapa atual (FILE ou
+ * END) e liberam quem estiver esperando por ela. Depois do END a
+ * transferência continua respondendo aos pedidos de reparo (árvore Merkle e
+ * CHUNKs) do receptor até o ACK do END chegar.
+ *
+ * Um receptor que retoma transferências responde ao FILE com FALTANTES em vez
+ * de ACK; aí só os CHUNKs listados precisam sair.
+ *
+ * Abortar (destino que deixou de responder) libera todas as esperas, em
+ * qualquer etapa; quem espera confere isAbortada() ao acordar.
+ */
+public class TransferenciaEnvio {
+    public enum Etapa { FILE, CHUNKS, END }
+
+    private final int id;
+    private final String nomeDestino;
+    private final InetSocketAddress enderecoDestino;
+    private final boolean binario;
+    private final LeitorArquivo leitor;
+    private final CountDownLatch ackFile = new CountDownLatch(1);
+    private final CountDownLatch ackEnd = new CountDownLatch(1);
+    private volatile Etapa etapa = Etapa.FILE;
+    private volatile JanelaEnvio janela;
+    private volatile ArvoreMerkle arvore;
+    private volatile BitSet faltantes; // null: o receptor não tem nada, envia tudo
+    private volatile long ultimaAtividade;
+    private volatile boolean abortada;
+
+    public TransferenciaEnvio(int id, String nomeDestino, InetSocketAddress enderecoDestino, boolean binario, LeitorArquivo leitor) {
+        this.id = id;
+        this.nomeDestino = nomeDestino;
+        this.enderecoDestino = enderecoDestino;
+        this.binario = binario;
+        this.leitor = leitor;
+    }
+
+    /** Registra o ACK de controle (seq -1) e devolve a que mensagem ele se refere. */
+    public Etapa confirmarControle() {
+        Etapa atual = etapa;
+        if (atual == Etapa.END) {
+            ackEnd.countDown();
+            return Etapa.END;
+        }
+        // durante os CHUNKs só pode ser uma cópia atrasada do ACK do FILE
+        ackFile.countDown();
+        return Etapa.FILE;
+    }
+
+    /** Resposta FALTANTES ao FILE: vale como o ACK dele. Só a primeira resposta conta. */
+    public boolean confirmarFaltantes(BitSet faltantes) {
+        if (etapa != Etapa.FILE || ackFile.getCount() == 0) return false;
+        this.faltantes = faltantes;
+        ackFile.countDown();
+        return true;
+    }
+
+    public BitSet getFaltantes() {
+        return faltantes;
+    }
+
+    public boolean aguardarAckFile(long timeoutMs) throws InterruptedException {
+        return ackFile.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean aguardarAckEnd(long timeoutMs) throws InterruptedException {
+        return ackEnd.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void iniciarChunks(JanelaEnvio janela) {
+        this.janela = janela;
+        etapa = Etapa.CHUNKS;
+        if (abortada) janela.abortar(); // abortada entre o FILE e a criação da janela
+    }
+
+    /** Devolve false se já estava abortada. */
+    public synchronized boolean abortar() {
+        if (abortada) return false;
+        abortada = true;
+        ackFile.countDown();
+        ackEnd.countDown();
+        JanelaEnvio atual = janela;
+        if (atual != null) atual.abortar();
+        return true;
+    }
+
+    public boolean isAbortada() {
+        return abortada;
+    }
+
+    public void iniciarEnd(ArvoreMerkle arvore) {
+        this.arvore = arvore;
+        registrarAtividade();
+        etapa = Etapa.END;
+    }
+
+    /** Pedido de reparo do receptor: adia o fim da espera pelo ACK do END. */
+    public void registrarAtividade() {
+        ultimaAtividade = System.currentTimeMillis();
+    }
+
+    public long getUltimaAtividade() {
+        return ultimaAtividade;
+    }
+
+    /** Árvore Merkle do arquivo enviado, ou null antes do END. */
+    public ArvoreMerkle getArvore() {
+        return arvore;
+    }
+
+    public File getArquivo() {
+        return leitor.getArquivo();
+    }
+
+    public int getTamanhoChunk() {
+        return leitor.getTamanhoChunk();
+    }
+
+    public LeitorArquivo getLeitor() {
+        return leitor;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getNomeDestino() {
+        return nomeDestino;
+    }
+
+    public InetSocketAddress getEnderecoDestino() {
+        return enderecoDestino;
+    }
+
+    public boolean isBinario() {
+        return binario;
+    }
+
+    public Etapa getEtapa() {
+        return etapa;
+    }
+
+    /** Janela dos CHUNKs, ou null antes do FILE ser confirmado. */
+    public JanelaEnvio getJanela() {
+        return janela;
+    }
+}
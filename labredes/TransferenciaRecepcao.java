@@ -0,0 +1,161 @@
+package labredes;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.Objects;
+
+/**
+ * Estado de um arquivo sendo recebido. Ids são gerados por cada remetente,
+ * então a transferência é identificada pelo par (endereço do remetente, id)
+ * — ver Chave.
+ */
+public class TransferenciaRecepcao {
+    /** Chave das transferências recebidas: dois peers podem usar o mesmo id. */
+    public static final class Chave {
+        private final InetSocketAddress origem;
+        private final int id;
+
+        public Chave(InetSocketAddress origem, int id) {
+            this.origem = origem;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Chave)) return false;
+            Chave outra = (Chave) o;
+            return id == outra.id && origem.equals(outra.origem);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(origem, id);
+        }
+    }
+
+    private final Chave chave;
+    private final int id;
+    private final InetSocketAddress origem;
+    private final String nomeRemetente;
+    private final String nomeArquivo;
+    private final long tamanho;
+    private final int tamanhoChunk;
+    private final boolean binario;
+    private final File arquivoDestino;
+    private final JanelaRecepcao janela;
+    private final HashIncremental hash;
+    private final RegistroParcial registro; // null se o remetente não retoma transferências
+    private final Fec.Decodificador fec; // paridades de grupos que ainda têm CHUNK faltando
+    private volatile ReparoMerkle reparo; // não nulo enquanto blocos divergentes são reparados após o END
+    // contadores do resumo no END; só a thread de recepção escreve
+    private final long inicioNanos = System.nanoTime();
+    private volatile int recebidos;
+    private volatile long bytesRecebidos;
+    private volatile int duplicados;
+
+    public TransferenciaRecepcao(int id, InetSocketAddress origem, String nomeRemetente, String nomeArquivo, long tamanho, int tamanhoChunk, boolean binario, File arquivoDestino, JanelaRecepcao janela, HashIncremental hash, RegistroParcial registro) {
+        this.chave = new Chave(origem, id);
+        this.id = id;
+        this.origem = origem;
+        this.nomeRemetente = nomeRemetente;
+        this.nomeArquivo = nomeArquivo;
+        this.tamanho = tamanho;
+        this.tamanhoChunk = tamanhoChunk;
+        this.binario = binario;
+        this.arquivoDestino = arquivoDestino;
+        this.janela = janela;
+        this.hash = hash;
+        this.registro = registro;
+        this.fec = new Fec.Decodificador(tamanho, tamanhoChunk);
+    }
+
+    public Chave getChave() {
+        return chave;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public InetSocketAddress getOrigem() {
+        return origem;
+    }
+
+    public String getNomeRemetente() {
+        return nomeRemetente;
+    }
+
+    public String getNomeArquivo() {
+        return nomeArquivo;
+    }
+
+    public long getTamanho() {
+        return tamanho;
+    }
+
+    public int getTamanhoChunk() {
+        return tamanhoChunk;
+    }
+
+    public int getTotalChunks() {
+        return (int) ((tamanho + tamanhoChunk - 1) / tamanhoChunk);
+    }
+
+    public boolean isBinario() {
+        return binario;
+    }
+
+    public File getArquivoDestino() {
+        return arquivoDestino;
+    }
+
+    public JanelaRecepcao getJanela() {
+        return janela;
+    }
+
+    public HashIncremental getHash() {
+        return hash;
+    }
+
+    public RegistroParcial getRegistro() {
+        return registro;
+    }
+
+    public Fec.Decodificador getFec() {
+        return fec;
+    }
+
+    public void contarRecebido(int bytes) {
+        recebidos++;
+        bytesRecebidos += bytes;
+    }
+
+    public void contarDuplicado() {
+        duplicados++;
+    }
+
+    public long getInicioNanos() {
+        return inicioNanos;
+    }
+
+    public int getRecebidos() {
+        return recebidos;
+    }
+
+    public long getBytesRecebidos() {
+        return bytesRecebidos;
+    }
+
+    public int getDuplicados() {
+        return duplicados;
+    }
+
+    public ReparoMerkle getReparo() {
+        return reparo;
+    }
+
+    public void setReparo(ReparoMerkle reparo) {
+        this.reparo = reparo;
+    }
+}
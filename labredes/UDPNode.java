@@ -1,149 +1,794 @@
 package labredes;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.BitSet;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeMap;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
+/**
+ * Um nó da rede: descobre os outros por HEARTBEAT e troca mensagens e
+ * arquivos com eles. Cada instância tem o seu socket, dispositivos,
+ * transferências e threads, então vários nós podem rodar na mesma JVM (em
+ * portas diferentes do loopback, por exemplo) e ser usados por código:
+ * enviarMensagem e enviarArquivo devolvem futuros, e o Ouvinte recebe o que
+ * chega. O main é a linha de comando de um nó na porta PORTA_PADRAO.
+ */
 public class UDPNode {
-    private static final int PORT = 8080;
+    public static final int PORTA_PADRAO = 8080;
     private static final int MAX_TENTATIVAS = 5;
-    private static String deviceName;
-    private static final DeviceManager deviceManager = new DeviceManager();
-    private static final AtomicInteger messageId = new AtomicInteger(1);
-    private static final Map<Integer, String> nomesArquivosRecebidos = new HashMap<>();
-    private static final Map<String, Long> idsRecebidos = Collections.synchronizedMap(new HashMap<>());
     private static final long TEMPO_EXPIRACAO_IDS_MS = 5 * 60 * 1000;
-    private static final Map<String, Boolean> acksRecebidos = new ConcurrentHashMap<>();
-    private static final Map<String, byte[]> chunksPendentes = new ConcurrentHashMap<>();
-    private static final Map<String, Long> tempoEnvioChunk = new ConcurrentHashMap<>();
-    private static final Map<String, String> tipoMensagemEnviada = new ConcurrentHashMap<>();
-    private static final Map<String, Integer> tentativasEnvioChunk = new ConcurrentHashMap<>();
-    private static final java.time.format.DateTimeFormatter FORMATTER = java.time.format.DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    private static final long TICK_RETRANSMISSAO_NS = 5_000_000L;
+    private static final int MAX_ENVIOS_SIMULTANEOS = 4;
+    private static final int FILA_ENVIOS = 32;
+    private static final long TIMEOUT_ACK_CONTROLE_MS = 3500;
+    private static final int ARQUIVOS_ABERTOS = 16;
+    private static final int TAMANHO_LOTE_ESCRITA = 64 * 1024;
+    private static final long OCIOSIDADE_ARQUIVO_MS = 30_000;
+    private static final int FILA_DISCO = 64;
+    // trabalhadores da recepção, cada um com as transferências de alguns pares (remetente, id)
+    private static final int TRABALHADORES_RECEPCAO = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int FILA_RECEPCAO = 64; // uma janela de envio padrão por trabalhador
+    // o intervalo do HEARTBEAT cresce com o número de nós para que cada um receba cerca de
+    // HEARTBEATS_POR_SEGUNDO do segmento inteiro, em vez de N / 5 s
+    private static final long INTERVALO_HEARTBEAT_MINIMO_MS = Protocolo.INTERVALO_HEARTBEAT_PADRAO_MS;
+    private static final long INTERVALO_HEARTBEAT_MAXIMO_MS = 60_000;
+    private static final int HEARTBEATS_POR_SEGUNDO = 2;
+    private static final long INTERVALO_REPARO_MS = 1000;
+    private static final int MAX_CHUNKS_REPARO = 1024;
+    private static final long INTERVALO_REENVIO_FILE_MS = 1000;
+    private static final int TAMANHO_BLOCO = Protocolo.TAMANHO_CHUNK_PADRAO; // CHUNKs de texto e peers sem a capacidade "C"
+    private static final int BUFFER_RECEPCAO_SOCKET = 4 * 1024 * 1024; // o kernel limita a net.core.rmem_max
+    private static final int[] TAMANHOS_SONDA = {Protocolo.TAMANHO_MAXIMO_DATAGRAMA, 8972, 1472, 1232}; // loopback, jumbo, Ethernet, IPv6 mínimo
+    private static final long TEMPO_SONDA_MS = 300;
+    private static final int JANELA_RECEPCAO = 256; // CHUNKs fora de ordem que o receptor aceita guardar
+    private static final long INTERVALO_CONTADORES_MS = 1000;
+    private static final int TAMANHO_MAXIMO_DATAGRAMA = 65536;
+    // buffer de saída dos ACKs binários, reaproveitado por thread
+    private static final ThreadLocal<ByteBuffer> bufferAck = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + 4));
+    private static final int SACK_A_CADA_CHUNKS = 16;
+    private static final long SACK_INTERVALO_MS = 10;
+    private static final int BYTES_BITMAP_SACK = JANELA_RECEPCAO / 8;
+    private static final ThreadLocal<ByteBuffer> bufferSack = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Protocolo.TAMANHO_CABECALHO + 4 + BYTES_BITMAP_SACK));
+    private static final ThreadLocal<byte[]> bitmapSack = ThreadLocal.withInitial(() -> new byte[BYTES_BITMAP_SACK]);
+
+    /** Avisos do nó para quem o usa por código; chamados nas threads de recepção, não devem bloquear. */
+    public interface Ouvinte {
+        default void aoDescobrirDispositivo(String nome) {
+        }
+
+        default void aoReceberMensagem(String remetente, String mensagem) {
+        }
+
+        default void aoReceberArquivo(String remetente, File arquivo) {
+        }
+    }
+
+    private final String deviceName;
+    private final InetSocketAddress endereco;
+    private final DeviceManager deviceManager = new DeviceManager();
+    private final AtomicInteger messageId = new AtomicInteger(1);
+    private final FiltroDuplicatas idsRecebidos = new FiltroDuplicatas(TEMPO_EXPIRACAO_IDS_MS);
+    private final Map<Integer, CompletableFuture<Void>> talksEnviados = new ConcurrentHashMap<>(); // id -> futuro, até o ACK
+    private final Map<String, EstimadorRtt> estimadoresRtt = new ConcurrentHashMap<>();
+    // prazos de retransmissão dos CHUNKs em voo, chave = (id << 32) | seq
+    private final RodaTemporizadores prazosRetransmissao = new RodaTemporizadores(1024, TICK_RETRANSMISSAO_NS, System.nanoTime());
+    private final Map<Integer, TransferenciaEnvio> transferenciasEnvio = new ConcurrentHashMap<>();
+    private final Map<TransferenciaRecepcao.Chave, TransferenciaRecepcao> transferenciasRecepcao = new ConcurrentHashMap<>();
+    // sendfile roda fora do laço de comandos; envios além do limite esperam na fila
+    private final ExecutorService executorEnvios = new ThreadPoolExecutor(MAX_ENVIOS_SIMULTANEOS, MAX_ENVIOS_SIMULTANEOS,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(FILA_ENVIOS));
+    private final Set<CompletableFuture<?>> enviosPendentes = ConcurrentHashMap.newKeySet();
+    // um por envio em andamento e o resto para retransmissões e reparos; datagramas remontados do arquivo
+    private final PoolBuffers buffersEnvio = new PoolBuffers(2 * MAX_ENVIOS_SIMULTANEOS, Protocolo.TAMANHO_MAXIMO_DATAGRAMA);
+    // o CacheCanais só é usado pela thread de disco; quem recebe os CHUNKs não espera a escrita
+    private EstagioDisco arquivosAbertos;
+    private PipelineRecepcao pipelineRecepcao; // null com o receptor clássico
+    // releitura do arquivo no END quando o hash incremental não fechou; fora da thread de recepção
+    private final ExecutorService executorVerificacao = Executors.newSingleThreadExecutor();
+    // leitura dos CHUNKs pedidos em REPARO, também fora da thread de recepção
+    private final ExecutorService executorReparos = Executors.newSingleThreadExecutor();
+    private final Metricas metricas;
+    private ObjectName nomeJmx; // null se o registro no JMX falhou
+    private volatile File arquivoMetricas; // snapshot periódico; null desliga
+    private volatile long intervaloMetricasMs = 10_000;
+    private long proximoSnapshot = 0; // só a thread dos contadores usa
+    private final Map<InetSocketAddress, AtomicInteger> sondas = new ConcurrentHashMap<>(); // destino -> maior datagrama confirmado
+    private final List<Thread> threads = new ArrayList<>();
+    private DatagramChannel canal;
+    private DatagramSocket socket;
+    private volatile boolean ativo = false;
+    private volatile long intervaloHeartbeat = INTERVALO_HEARTBEAT_MINIMO_MS;
+    private volatile long ultimoAnuncio; // do último HEARTBEAT para os destinos, do laço ou de anunciar()
+    private volatile Ouvinte ouvinte = new Ouvinte() {};
+    private volatile String prefixoLog = "";
+    private volatile File pastaArquivos = new File("arquivos");
+    private volatile File pastaRecebidos = new File("arquivos_recebidos");
+    private volatile File pastaParciais = new File(pastaRecebidos, ".parciais");
+    private volatile List<InetSocketAddress> destinosHeartbeat; // null: broadcast na porta do nó
+    private volatile boolean receptorClassico = false;
+    private volatile boolean prealocarArquivos = true;
+    private volatile int tamanhoChunkConfigurado = TAMANHO_BLOCO; // 0: sonda o peer
+    // FEC das próximas transferências: n CHUNKs e k paridades por grupo; fecN 0 desliga, -1 ajusta pelas perdas
+    private volatile int fecN = 0;
+    private volatile int fecK = 0;
+    private volatile int janelaEnvioChunks = 64;
+    private volatile boolean protocoloBinarioHabilitado = true;
+    private volatile String modoCongestionamento = "aimd"; // aimd, ritmo ou fixo
+
+    public UDPNode(String nome, InetSocketAddress endereco) {
+        this.deviceName = nome;
+        this.endereco = endereco;
+        this.metricas = new Metricas(new Metricas.Fonte() {
+            @Override
+            public int chunksPendentes() {
+                int total = 0;
+                for (TransferenciaEnvio transferencia : transferenciasEnvio.values()) {
+                    if (transferencia.getJanela() != null) total += transferencia.getJanela().getEmVoo();
+                }
+                return total;
+            }
+
+            @Override
+            public int filaRecepcao() {
+                return pipelineRecepcao != null ? pipelineRecepcao.getProfundidade() : 0;
+            }
+
+            @Override
+            public long descartadosRecepcao() {
+                return pipelineRecepcao != null ? pipelineRecepcao.getDescartados() : 0;
+            }
+
+            @Override
+            public int filaDisco() {
+                return arquivosAbertos != null ? arquivosAbertos.getProfundidade() : 0;
+            }
+
+            @Override
+            public Map<String, Double> rttPorPeerMs() {
+                Map<String, Double> rtts = new TreeMap<>();
+                estimadoresRtt.forEach((peer, rtt) -> {
+                    if (rtt.getSrttNanos() >= 0) rtts.put(peer, rtt.getSrttNanos() / 1e6);
+                });
+                return rtts;
+            }
+        });
+    }
+
+    /** Nó escutando em todas as interfaces na porta informada. */
+    public UDPNode(String nome, int porta) {
+        this(nome, new InetSocketAddress(porta));
+    }
 
     public static void main(String[] args) throws Exception {
         if (args.length < 1) {
-            log("Uso: java UDPNode <nome_dispositivo>");
+            Log.info("Uso: java UDPNode <nome_dispositivo> [nio|classico] [porta]");
             return;
         }
-        deviceName = args[0];
-        InetAddress localIp = InetAddress.getLocalHost();
-        DatagramSocket socket = new DatagramSocket(PORT);
-        log("[" + deviceName + "](" + localIp.getHostAddress() + ") escutando na porta " + PORT);
+        UDPNode no = new UDPNode(args[0], args.length >= 3 ? Integer.parseInt(args[2]) : PORTA_PADRAO);
+        no.setReceptorClassico(args.length >= 2 && args[1].equalsIgnoreCase("classico"));
+        no.iniciar();
+
+        Scanner scanner = new Scanner(System.in);
+        while (true) {
+            System.out.print("> ");
+            String linha = scanner.nextLine();
+            no.tratarComando(linha);
+        }
+    }
+
+    /** Abre o socket e inicia a recepção, o heartbeat e a manutenção. Um nó só é iniciado uma vez. */
+    public synchronized void iniciar() throws IOException {
+        if (canal != null) throw new IllegalStateException("Nó " + deviceName + " já foi iniciado");
+        // o socket é o adaptador do canal: o envio segue por DatagramSocket e a recepção pode usar o canal direto
+        canal = DatagramChannel.open();
+        canal.setOption(StandardSocketOptions.SO_BROADCAST, true);
+        canal.setOption(StandardSocketOptions.SO_RCVBUF, BUFFER_RECEPCAO_SOCKET); // CHUNKs grandes enchem o buffer padrão com poucos datagramas
+        canal.bind(endereco);
+        socket = canal.socket();
+        ativo = true;
+        InetAddress localIp = endereco.getAddress() != null && !endereco.getAddress().isAnyLocalAddress() ? endereco.getAddress() : InetAddress.getLocalHost();
+        log("[" + deviceName + "](" + localIp.getHostAddress() + ") escutando na porta " + getPorta());
+        registrarJmx();
 
-        new Thread(() -> listen(socket)).start();
-        new Thread(() -> heartbeat(socket)).start();
-        new Thread(() -> {
-            while (true) {
+        arquivosAbertos = new EstagioDisco(deviceName + "-disco", new CacheCanais(ARQUIVOS_ABERTOS, TAMANHO_LOTE_ESCRITA), FILA_DISCO, Protocolo.TAMANHO_MAXIMO_CHUNK);
+        if (receptorClassico) {
+            iniciarThread("receptor", () -> listen(socket));
+        } else {
+            pipelineRecepcao = new PipelineRecepcao((datagrama, origem) -> processarDatagrama(datagrama, origem, socket), TRABALHADORES_RECEPCAO, FILA_RECEPCAO, TAMANHO_MAXIMO_DATAGRAMA);
+            pipelineRecepcao.iniciar();
+            iniciarThread("receptor", new ReceptorNio(canal, pipelineRecepcao));
+        }
+        iniciarThread("heartbeat", () -> heartbeat(socket));
+        iniciarThread("manutencao", () -> {
+            while (ativo) {
                 try {
                     deviceManager.removeInactiveDevices();
+                    verificarDestinosEnvio();
+                    idsRecebidos.expirar(System.currentTimeMillis());
+                    salvarParciais(); // antes de fechar os ociosos, para não reabri-los só para sincronizar
+                    arquivosAbertos.fecharOciosos(System.currentTimeMillis(), OCIOSIDADE_ARQUIVO_MS);
+                    verificarReparos(socket);
                     Thread.sleep(1000);
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    if (ativo) e.printStackTrace();
                 }
             }
-        }).start();
+        });
 
-        new Thread(() -> monitorarAcks(socket)).start();
+        iniciarThread("acks", () -> monitorarAcks(socket));
+        iniciarThread("sacks", () -> enviarSacksPendentes(socket));
+        iniciarThread("contadores", this::registrarContadoresCongestionamento);
+    }
 
-        Scanner scanner = new Scanner(System.in);
-        while (true) {
-            System.out.print("> ");
-            String linha = scanner.nextLine();
-            tratarComando(linha, socket);
+    /**
+     * Para as threads do nó, fecha o socket e os arquivos recebidos abertos.
+     * Transferências em andamento são abandonadas (as retomáveis continuam
+     * do registro parcial) e os envios na fila são cancelados.
+     */
+    public synchronized void fechar() {
+        if (!ativo) return;
+        ativo = false;
+        try {
+            canal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Thread thread : threads) thread.interrupt();
+        executorEnvios.shutdownNow();
+        executorVerificacao.shutdownNow();
+        executorReparos.shutdownNow();
+        for (CompletableFuture<?> envio : enviosPendentes) envio.cancel(false);
+        for (CompletableFuture<Void> talk : talksEnviados.values()) talk.cancel(false);
+        if (pipelineRecepcao != null) pipelineRecepcao.encerrar();
+        salvarParciais();
+        try {
+            arquivosAbertos.fecharOciosos(Long.MAX_VALUE, 0);
+        } catch (IOException e) {
+            logErro("[ERRO] Falha ao fechar arquivos recebidos: " + e.getMessage());
+        }
+        arquivosAbertos.encerrar();
+        if (nomeJmx != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(nomeJmx);
+            } catch (JMException e) {
+                logErro("[ERRO] Falha ao remover as métricas do JMX: " + e.getMessage());
+            }
         }
+        log("[" + deviceName + "] encerrado");
     }
 
-    private static void listen(DatagramSocket socket) {
-        byte[] buffer = new byte[4096];
-        while (true) {
+    /**
+     * Envia a mensagem (TALK) ao dispositivo. O futuro termina com o ACK do
+     * destino e falha se ele não for conhecido ou não confirmar a tempo.
+     */
+    public CompletableFuture<Void> enviarMensagem(String destino, String mensagem) {
+        return enviarMensagem(destino, mensagem, socket);
+    }
+
+    /**
+     * Envia o arquivo da pasta de arquivos aos destinos (nomes; "*" são todos
+     * os conhecidos), em segundo plano. O futuro termina quando o envio acaba,
+     * com cada destino mapeado para true se confirmou o arquivo (ACK do END).
+     * Com a fila de envios cheia lança RejectedExecutionException.
+     */
+    public CompletableFuture<Map<String, Boolean>> enviarArquivo(String destinos, String nomeArquivo) {
+        List<String> nomes = resolverDestinos(destinos);
+        CompletableFuture<Map<String, Boolean>> resultado = new CompletableFuture<>();
+        enviosPendentes.add(resultado);
+        resultado.whenComplete((r, e) -> enviosPendentes.remove(resultado));
+        try {
+            executorEnvios.execute(() -> resultado.complete(iniciarEnvioArquivo(nomes, nomeArquivo, socket)));
+        } catch (RejectedExecutionException e) {
+            enviosPendentes.remove(resultado);
+            throw e;
+        }
+        return resultado;
+    }
+
+    /**
+     * Envia um HEARTBEAT agora, sem esperar o próximo do laço (por exemplo,
+     * logo depois de setDestinosHeartbeat). Ele pede resposta: os nós que o
+     * recebem respondem direto a este, que os conhece sem esperar o
+     * intervalo deles. O próximo HEARTBEAT do laço conta a partir deste.
+     */
+    public void anunciar() throws IOException {
+        anunciar(true);
+    }
+
+    private void anunciar(boolean pedirResposta) throws IOException {
+        byte[] data = mensagemHeartbeat(pedirResposta).getBytes();
+        List<InetSocketAddress> destinos = destinosHeartbeat;
+        if (destinos == null) destinos = List.of(new InetSocketAddress("255.255.255.255", getPorta()));
+        ultimoAnuncio = System.currentTimeMillis();
+        for (InetSocketAddress destino : destinos) {
+            metricas.contarEnvio(data, data.length);
+            socket.send(new DatagramPacket(data, data.length, destino));
+        }
+    }
+
+    private String mensagemHeartbeat(boolean pedirResposta) {
+        String mensagem = "HEARTBEAT:" + deviceName;
+        if (protocoloBinarioHabilitado) {
+            mensagem += ":" + Protocolo.CAPACIDADE_BINARIO + "," + Protocolo.CAPACIDADE_RETOMADA + "," + Protocolo.CAPACIDADE_FEC + "," + Protocolo.CAPACIDADE_CHUNK + Protocolo.TAMANHO_MAXIMO_CHUNK
+                    + "," + Protocolo.CAPACIDADE_INTERVALO + intervaloHeartbeat;
+            if (pedirResposta) mensagem += "," + Protocolo.CAPACIDADE_PEDIDO_RESPOSTA;
+        }
+        return mensagem;
+    }
+
+    /** Intervalo atual entre os HEARTBEATs do laço, o mesmo anunciado aos outros nós. */
+    public long getIntervaloHeartbeatMs() {
+        return intervaloHeartbeat;
+    }
+
+    /** Nomes dos dispositivos ativos, incluindo este nó quando ele recebe o próprio HEARTBEAT. */
+    public List<String> getDispositivos() {
+        return deviceManager.getDeviceNames();
+    }
+
+    public String getNome() {
+        return deviceName;
+    }
+
+    /** Porta do socket; com porta 0 no endereço, a escolhida pelo sistema depois de iniciar. */
+    public int getPorta() {
+        return socket != null ? socket.getLocalPort() : endereco.getPort();
+    }
+
+    /** Contadores do nó; os mesmos expostos por JMX e pelo comando stats. */
+    public Metricas getMetricas() {
+        return metricas;
+    }
+
+    /**
+     * Grava o snapshot das métricas (JSON) em arquivo a cada intervaloMs,
+     * substituindo o anterior; null desliga.
+     */
+    public void setArquivoMetricas(File arquivo, long intervaloMs) {
+        intervaloMetricasMs = Math.max(INTERVALO_CONTADORES_MS, intervaloMs);
+        arquivoMetricas = arquivo;
+    }
+
+    public boolean isAtivo() {
+        return ativo;
+    }
+
+    public void setOuvinte(Ouvinte ouvinte) {
+        this.ouvinte = ouvinte;
+    }
+
+    /** Com vários nós na mesma JVM, cada linha de log leva o nome do nó. */
+    public void setIdentificarLog(boolean identificar) {
+        prefixoLog = identificar ? "[" + deviceName + "] " : "";
+    }
+
+    /** Onde sendfile procura os arquivos (padrão "arquivos"). */
+    public void setPastaArquivos(File pasta) {
+        pastaArquivos = pasta;
+    }
+
+    /** Onde os arquivos recebidos e os registros parciais ficam (padrão "arquivos_recebidos"). */
+    public void setPastaRecebidos(File pasta) {
+        pastaRecebidos = pasta;
+        pastaParciais = new File(pasta, ".parciais");
+    }
+
+    /**
+     * Para onde vai o HEARTBEAT. O padrão é o broadcast na porta do nó; nós
+     * no loopback, cada um na sua porta, passam a lista dos endereços uns dos
+     * outros.
+     */
+    public void setDestinosHeartbeat(List<InetSocketAddress> destinos) {
+        destinosHeartbeat = destinos != null ? List.copyOf(destinos) : null;
+    }
+
+    /** Receptor com DatagramSocket e uma thread (em vez do canal com a PipelineRecepcao); vale no iniciar. */
+    public void setReceptorClassico(boolean classico) {
+        receptorClassico = classico;
+    }
+
+    public void setPrealocarArquivos(boolean prealocar) {
+        prealocarArquivos = prealocar;
+    }
+
+    /** Janela de envio das próximas transferências, em CHUNKs. */
+    public void setJanelaEnvio(int chunks) {
+        if (chunks < 1) throw new IllegalArgumentException("Janela de envio deve ter ao menos 1 CHUNK: " + chunks);
+        janelaEnvioChunks = chunks;
+    }
+
+    /** aimd, ritmo ou fixo. */
+    public void setCongestionamento(String modo) {
+        if (!modo.equals("aimd") && !modo.equals("ritmo") && !modo.equals("fixo")) {
+            throw new IllegalArgumentException("Modo de congestionamento inválido: " + modo);
+        }
+        modoCongestionamento = modo;
+    }
+
+    /** false: transferências só em texto, mesmo com peers binários. */
+    public void setProtocoloBinario(boolean binario) {
+        protocoloBinarioHabilitado = binario;
+    }
+
+    /** Tamanho dos CHUNKs binários; 0 sonda o maior datagrama de cada peer. */
+    public void setTamanhoChunk(int tamanho) {
+        if (tamanho < 0 || tamanho > Protocolo.TAMANHO_MAXIMO_CHUNK) {
+            throw new IllegalArgumentException("Tamanho de CHUNK fora de 1.." + Protocolo.TAMANHO_MAXIMO_CHUNK + ": " + tamanho);
+        }
+        tamanhoChunkConfigurado = tamanho;
+    }
+
+    /** k paridades a cada n CHUNKs; n = 0 desliga e n = -1 ajusta pelas perdas. */
+    public void setFec(int n, int k) {
+        if (n > 0 && (n > Fec.MAX_N || k < 1 || k > Fec.MAX_K || k > n)) {
+            throw new IllegalArgumentException("FEC fora de 1.." + Fec.MAX_N + " CHUNKs e 1.." + Fec.MAX_K + " paridades: " + n + " " + k);
+        }
+        if (n < -1) throw new IllegalArgumentException("Valor de FEC inválido: " + n);
+        fecK = k;
+        fecN = n;
+    }
+
+    /** Publica as Metricas em labredes:type=UDPNode,name=<nome>; sem JMX o nó segue sem elas. */
+    private void registrarJmx() {
+        try {
+            ObjectName nome = new ObjectName("labredes:type=UDPNode,name=" + ObjectName.quote(deviceName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metricas, nome);
+            nomeJmx = nome;
+        } catch (JMException e) {
+            logErro("[ERRO] Métricas não publicadas no JMX: " + e.getMessage());
+        }
+    }
+
+    /** Grava o JSON das métricas num temporário e o move por cima do anterior, para quem lê nunca ver meio arquivo. */
+    private void gravarSnapshotMetricas(File arquivo) {
+        try {
+            File pasta = arquivo.getAbsoluteFile().getParentFile();
+            if (pasta != null && !pasta.exists()) pasta.mkdirs();
+            File temporario = new File(pasta, arquivo.getName() + ".tmp");
+            Files.write(temporario.toPath(), metricas.paraJson(deviceName).getBytes(StandardCharsets.UTF_8));
+            try {
+                Files.move(temporario.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporario.toPath(), arquivo.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            logErro("[ERRO] Falha ao gravar métricas em " + arquivo + ": " + e.getMessage());
+        }
+    }
+
+    private void iniciarThread(String nome, Runnable tarefa) {
+        Thread thread = new Thread(tarefa, deviceName + "-" + nome);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private void listen(DatagramSocket socket) {
+        byte[] buffer = new byte[TAMANHO_MAXIMO_DATAGRAMA];
+        while (ativo) {
             try {
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 socket.receive(packet);
 
-                String recebido = new String(packet.getData(), 0, packet.getLength());
-                processarMensagem(recebido, packet.getAddress(), packet.getPort(), socket);
+                ByteBuffer datagrama = ByteBuffer.wrap(packet.getData(), 0, packet.getLength());
+                processarDatagrama(datagrama, (InetSocketAddress) packet.getSocketAddress(), socket);
 
             } catch (Exception e) {
-                e.printStackTrace();
+                if (ativo) e.printStackTrace();
             }
         }
     }
 
-    private static void heartbeat(DatagramSocket socket) {
-        while (true) {
+    private void heartbeat(DatagramSocket socket) {
+        boolean primeiro = true; // o primeiro pede resposta para conhecer logo quem já está no segmento
+        while (ativo) {
             try {
-                String mensagem = "HEARTBEAT:" + deviceName;
-                byte[] data = mensagem.getBytes();
-                DatagramPacket packet = new DatagramPacket(data, data.length, InetAddress.getByName("255.255.255.255"), PORT);
-                socket.send(packet);
-                Thread.sleep(5000);
+                intervaloHeartbeat = sortearIntervaloHeartbeat();
+                anunciar(primeiro);
+                primeiro = false;
+                // um anunciar() feito nesse meio tempo adia o próximo, em vez de somar mais um
+                long espera;
+                // em fatias: um peer antigo que aparece encurta intervaloHeartbeat no meio da espera
+                while (ativo && (espera = ultimoAnuncio + intervaloHeartbeat - System.currentTimeMillis()) > 0) {
+                    Thread.sleep(Math.min(espera, INTERVALO_HEARTBEAT_MINIMO_MS / 5));
+                }
             } catch (Exception e) {
-                e.printStackTrace();
+                if (ativo) e.printStackTrace();
             }
         }
     }
 
-    private static void monitorarAcks(DatagramSocket socket) {
-        while (true) {
+    /**
+     * Com N nós no segmento cada um recebe N HEARTBEATs por intervalo; o
+     * intervalo cresce com os dispositivos conhecidos até o máximo, e uma
+     * variação de 10% para cada lado evita que nós iniciados juntos anunciem
+     * sempre ao mesmo tempo.
+     *
+     * Só cresce se o intervalo vai no HEARTBEAT (modo binário) e todos os
+     * conhecidos o leem; um peer antigo conta com os 5 s fixos e expiraria
+     * este nó.
+     */
+    private long sortearIntervaloHeartbeat() {
+        long intervalo = INTERVALO_HEARTBEAT_MINIMO_MS;
+        if (protocoloBinarioHabilitado && deviceManager.todosAnunciamIntervalo()) {
+            intervalo = deviceManager.size() * 1000L / HEARTBEATS_POR_SEGUNDO;
+            intervalo = Math.max(INTERVALO_HEARTBEAT_MINIMO_MS, Math.min(INTERVALO_HEARTBEAT_MAXIMO_MS, intervalo));
+        }
+        return intervalo - intervalo / 10 + ThreadLocalRandom.current().nextLong(intervalo / 5 + 1);
+    }
+
+    private static long lerIntervaloHeartbeat(List<String> capacidades) {
+        for (String capacidade : capacidades) {
+            if (!capacidade.startsWith(Protocolo.CAPACIDADE_INTERVALO)) continue;
             try {
-                for (Map.Entry<String, byte[]> entry : chunksPendentes.entrySet()) {
-                    String chave = entry.getKey(); // CHUNK-<id>-<seq>-<destino>
-                    byte[] dados = entry.getValue();
-                    String[] partes = chave.split("-");
-    
-                    int id = Integer.parseInt(partes[1]);
-                    int seq = Integer.parseInt(partes[2]);
-                    String destino = partes[3];
-    
-                    String referencia = tipoMensagemEnviada.getOrDefault(id + ":" + seq, "DESCONHECIDO");
-                    String chaveAck = "ACK-" + referencia + "-" + id + "-" + seq;
-                    long tempoEnviado = tempoEnvioChunk.getOrDefault(chave, 0L);
-                    int tentativas = tentativasEnvioChunk.getOrDefault(chave, 0);
-
-                    if (!acksRecebidos.getOrDefault(chaveAck, false)) {
-                        if (tentativas >= MAX_TENTATIVAS) {
-                            log("[ERRO] Falha ao enviar CHUNK id=" + id + " seq=" + seq + " após " + MAX_TENTATIVAS + " tentativas para " + destino + "(" + deviceManager.getDevice(destino).getIpAddress() + ")");
-                            chunksPendentes.remove(chave);
-                            tempoEnvioChunk.remove(chave);
-                            tentativasEnvioChunk.remove(chave);
-                            continue;
-                        }
+                return Math.max(1, Long.parseLong(capacidade.substring(1)));
+            } catch (NumberFormatException e) {
+                break;
+            }
+        }
+        return Protocolo.INTERVALO_HEARTBEAT_PADRAO_MS;
+    }
 
-                        if ((System.currentTimeMillis() - tempoEnviado) >= 1000) {
-                            tempoEnvioChunk.put(chave, System.currentTimeMillis());
-                            tentativasEnvioChunk.put(chave, tentativas + 1);
-                            Device device = deviceManager.getDevice(destino);
-                            if (device != null) {
-                                DatagramPacket packet = new DatagramPacket(dados, dados.length, device.getIpAddress(), device.getPort());
-                                socket.send(packet);
-                                log("[RETRANSMISSÃO] CHUNK id=" + id + " seq=" + seq + " (tentativa " + (tentativas + 1) + ") para " + device.getName() + "(" + device.getIpAddress() + ")");
-                            }
-                        }
-                    } else {
-                        chunksPendentes.remove(chave);
-                        tempoEnvioChunk.remove(chave);
-                        tentativasEnvioChunk.remove(chave);
+    private void monitorarAcks(DatagramSocket socket) {
+        while (ativo) {
+            try {
+                // só as entradas vencidas neste tick são tocadas
+                prazosRetransmissao.expirar(System.nanoTime(), chave -> tratarTimeout(chave, socket));
+                Thread.sleep(TICK_RETRANSMISSAO_NS / 1_000_000);
+            } catch (Exception e) {
+                if (ativo) e.printStackTrace();
+            }
+        }
+    }
+
+    private void tratarTimeout(long chave, DatagramSocket socket) {
+        int id = (int) (chave >>> 32);
+        int seq = (int) chave;
+        TransferenciaEnvio transferencia = transferenciasEnvio.get(id);
+        JanelaEnvio janela = transferencia != null ? transferencia.getJanela() : null;
+        long agora = System.nanoTime();
+        // confirmado (ACK ou SACK) ou reagendado por uma retransmissão rápida: a entrada é de um prazo antigo
+        if (janela == null || !janela.prazoVencido(seq, agora)) return;
+
+        int tentativas = janela.getTentativas(seq);
+        janela.registrarPerda(true);
+        if (tentativas >= MAX_TENTATIVAS) {
+            janela.desistir(seq);
+            metricas.contarDesistencia();
+            logErro("[ERRO] Falha ao enviar CHUNK id=" + id + " seq=" + seq + " após " + MAX_TENTATIVAS + " tentativas para " + janela.getNomeDestino() + "(" + janela.getEnderecoDestino().getAddress() + ")");
+            // com um CHUNK perdido o arquivo não fecha: não adianta esperar pelos outros
+            abortarEnvio(transferencia, "CHUNK seq=" + seq + " sem confirmação");
+            return;
+        }
+        if (!janela.prepararRetransmissao(seq, agora)) return;
+        janela.getRtt().dobrarRto(agora); // Karn: backoff até a próxima amostra válida
+        try {
+            reenviarChunk(transferencia, seq, socket);
+            metricas.contarRetransmissaoTimeout();
+            if (Log.detalhado()) logDetalhe("[RETRANSMISSÃO] CHUNK id=" + id + " seq=" + seq + " (tentativa " + (tentativas + 1) + ", rto " + janela.getRtt().getRtoNanos() / 1_000_000 + " ms) para " + janela.getNomeDestino() + "(" + janela.getEnderecoDestino().getAddress() + ")");
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        agendarRetransmissao(janela, id, seq, agora);
+    }
+
+    private void abortarEnvio(TransferenciaEnvio transferencia, String motivo) {
+        if (!transferencia.abortar()) return;
+        logErro("[ERRO] Envio id=" + transferencia.getId() + " para " + transferencia.getNomeDestino() + "(" + transferencia.getEnderecoDestino().getAddress() + ") abortado: " + motivo);
+    }
+
+    /** Aborta os envios cujo destino expirou no DeviceManager ou reapareceu em outro endereço (laço de manutenção). */
+    private void verificarDestinosEnvio() {
+        for (TransferenciaEnvio transferencia : transferenciasEnvio.values()) {
+            if (transferencia.isAbortada()) continue;
+            Device device = deviceManager.getDevice(transferencia.getNomeDestino());
+            if (device == null) {
+                abortarEnvio(transferencia, "dispositivo desconectado");
+            } else if (!new InetSocketAddress(device.getIpAddress(), device.getPort()).equals(transferencia.getEnderecoDestino())) {
+                abortarEnvio(transferencia, "dispositivo reapareceu em outro endereço");
+            }
+        }
+    }
+
+    /** Agenda o timeout do CHUNK pelo RTO atual; só o prazo mais recente de cada CHUNK vale (JanelaEnvio.prazoVencido). */
+    private void agendarRetransmissao(JanelaEnvio janela, int id, int seq, long agora) {
+        long prazo = agora + janela.getRtt().getRtoNanos();
+        janela.registrarPrazo(seq, prazo);
+        prazosRetransmissao.agendar(chaveRetransmissao(id, seq), prazo);
+    }
+
+    /**
+     * Lê o CHUNK seq do arquivo para quadro, logo depois do espaço do
+     * cabeçalho, e devolve o tamanho dele. O conteúdo fica entre
+     * TAMANHO_CABECALHO e a posição do buffer até montarChunk.
+     */
+    private static int lerChunk(TransferenciaEnvio transferencia, int seq, ByteBuffer quadro) throws IOException {
+        quadro.clear().position(Protocolo.TAMANHO_CABECALHO);
+        return transferencia.getLeitor().ler(seq, quadro);
+    }
+
+    /** Completa em quadro o datagrama do CHUNK lido por lerChunk (binário ou texto) e o deixa pronto para envio. */
+    private void montarChunk(TransferenciaEnvio transferencia, int seq, byte flags, int lido, ByteBuffer quadro) {
+        if (transferencia.isBinario()) {
+            quadro.position(0);
+            Protocolo.escreverCabecalho(quadro, Protocolo.TIPO_CHUNK, flags, transferencia.getId(), seq, lido);
+            quadro.limit(Protocolo.TAMANHO_CABECALHO + lido).position(0);
+            return;
+        }
+        ByteBuffer conteudo = quadro.duplicate();
+        conteudo.limit(Protocolo.TAMANHO_CABECALHO + lido).position(Protocolo.TAMANHO_CABECALHO);
+        String dadosBase64 = StandardCharsets.US_ASCII.decode(Base64.getEncoder().encode(conteudo)).toString();
+        quadro.clear();
+        quadro.put(mensagemChunkTexto(transferencia, seq, dadosBase64)).flip();
+    }
+
+    private byte[] mensagemChunkTexto(TransferenciaEnvio transferencia, int seq, String dadosBase64) {
+        return ("CHUNK:" + transferencia.getId() + ":" + seq + ":" + dadosBase64 + ":" + deviceName).getBytes();
+    }
+
+    /** Retransmissão: remonta o datagrama do CHUNK a partir do arquivo num buffer do pool. */
+    private void reenviarChunk(TransferenciaEnvio transferencia, int seq, DatagramSocket socket) throws IOException, InterruptedException {
+        ByteBuffer quadro = buffersEnvio.obter();
+        try {
+            int lido = lerChunk(transferencia, seq, quadro);
+            montarChunk(transferencia, seq, (byte) 0, lido, quadro);
+            enviarBuffer(quadro, transferencia.getEnderecoDestino(), socket);
+        } finally {
+            buffersEnvio.devolver(quadro);
+        }
+    }
+
+    /** Envia os bytes entre position e limit pelo canal (sem cópia para o heap). */
+    private void enviarBuffer(ByteBuffer quadro, InetSocketAddress destino, DatagramSocket socket) throws IOException {
+        metricas.contarEnvio(quadro);
+        if (socket.getChannel() != null) {
+            socket.getChannel().send(quadro, destino);
+            return;
+        }
+        byte[] dados = new byte[quadro.remaining()];
+        quadro.get(dados);
+        socket.send(new DatagramPacket(dados, dados.length, destino));
+    }
+
+    /** Registra periodicamente janela, ritmo e perdas de cada transferência em andamento. */
+    private void registrarContadoresCongestionamento() {
+        while (ativo) {
+            try {
+                Thread.sleep(INTERVALO_CONTADORES_MS);
+                for (TransferenciaEnvio transferencia : transferenciasEnvio.values()) {
+                    if (transferencia.getJanela() != null) log("[CONGESTIONAMENTO] " + descreverCongestionamento(transferencia));
+                }
+                if (!transferenciasRecepcao.isEmpty()) log("[RECEPÇÃO] " + descreverRecepcao());
+                File arquivo = arquivoMetricas;
+                if (arquivo != null && System.currentTimeMillis() >= proximoSnapshot) {
+                    gravarSnapshotMetricas(arquivo);
+                    proximoSnapshot = System.currentTimeMillis() + intervaloMetricasMs;
+                }
+            } catch (Exception e) {
+                if (ativo) e.printStackTrace();
+            }
+        }
+    }
+
+    /** Profundidade e picos das filas da recepção e do disco desde a linha anterior. */
+    private String descreverRecepcao() {
+        String disco = "disco=" + arquivosAbertos.getProfundidade() + " pico=" + arquivosAbertos.lerPico() + " gravados=" + arquivosAbertos.getGravados();
+        return pipelineRecepcao != null ? pipelineRecepcao.descrever() + " " + disco : disco;
+    }
+
+    /** "N CHUNKs (B bytes) em T ms, X MB/s", para as linhas de resumo das transferências. */
+    private static String descreverVazao(long chunks, long bytes, long nanos) {
+        long ms = Math.max(1, nanos / 1_000_000);
+        return chunks + " CHUNKs (" + bytes + " bytes) em " + ms + " ms, " + String.format("%.2f", bytes / 1048576.0 / (ms / 1000.0)) + " MB/s";
+    }
+
+    private static String descreverCongestionamento(TransferenciaEnvio transferencia) {
+        int id = transferencia.getId();
+        JanelaEnvio janela = transferencia.getJanela();
+        ControleCongestionamento controle = janela.getControle();
+        long srtt = janela.getRtt().getSrttNanos();
+        String texto = "id=" + id + " modo=" + (controle != null ? controle.getNome() : "fixo")
+                + " emVoo=" + janela.getEmVoo() + " perdas=" + janela.getPerdas()
+                + " srtt=" + (srtt >= 0 ? String.format("%.2f ms", srtt / 1e6) : "-");
+        if (controle == null) return texto;
+        return texto + " cwnd=" + controle.getJanela()
+                + String.format(" ritmo=%.2f MB/s", controle.getRitmoChunksPorSegundo() * transferencia.getTamanhoChunk() / 1e6);
+    }
+
+    /** Envia os SACKs de transferências que receberam CHUNKs e ainda não foram confirmadas. */
+    private void enviarSacksPendentes(DatagramSocket socket) {
+        while (ativo) {
+            try {
+                long agora = System.currentTimeMillis();
+                for (TransferenciaRecepcao transferencia : transferenciasRecepcao.values()) {
+                    JanelaRecepcao janela = transferencia.getJanela();
+                    if (janela.getOrigem() != null && janela.sackPendente(agora, SACK_INTERVALO_MS)) {
+                        enviarSack(transferencia.getId(), janela, socket);
                     }
                 }
-                Thread.sleep(200);
+                Thread.sleep(SACK_INTERVALO_MS);
             } catch (Exception e) {
-                e.printStackTrace();
+                if (ativo) e.printStackTrace();
             }
         }
     }
 
-    private static void processarMensagem(String mensagem, InetAddress remetente, int porta, DatagramSocket socket) {
+    private void processarDatagrama(ByteBuffer datagrama, InetSocketAddress origem, DatagramSocket socket) {
+        metricas.contarRecebido(datagrama);
+        if (Protocolo.ehQuadro(datagrama)) {
+            processarQuadro(datagrama, origem, socket);
+        } else {
+            byte[] bytes = new byte[datagrama.remaining()];
+            datagrama.get(bytes);
+            processarMensagem(new String(bytes), origem, socket);
+        }
+    }
+
+    private void processarMensagem(String mensagem, InetSocketAddress origem, DatagramSocket socket) {
         if (mensagem.startsWith("HEARTBEAT:")) {
-            String nome = mensagem.substring(10);
-            boolean novo = deviceManager.addOrUpdateDevice(nome, new Device(nome, remetente, porta));
-            if (novo) log("[Novo dispositivo] " + nome + " (" + remetente.getHostAddress() + ")");
+            String[] parts = mensagem.substring(10).split(":", 2);
+            String nome = parts[0];
+            boolean novo = deviceManager.addOrUpdateDevice(nome, new Device(nome, origem.getAddress(), origem.getPort()));
+            // sem o campo de capacidades o peer é da versão antiga e só entende texto
+            List<String> capacidades = parts.length >= 2 ? Arrays.asList(parts[1].split(",")) : Collections.emptyList();
+            Device device = deviceManager.getDevice(nome);
+            if (device != null) {
+                device.setProtocoloBinario(capacidades.contains(Protocolo.CAPACIDADE_BINARIO));
+                device.setRetomavel(capacidades.contains(Protocolo.CAPACIDADE_RETOMADA));
+                device.setFec(capacidades.contains(Protocolo.CAPACIDADE_FEC));
+                device.setTamanhoMaximoChunk(lerTamanhoMaximoChunk(capacidades));
+                device.setIntervaloHeartbeatMs(lerIntervaloHeartbeat(capacidades));
+                device.setAnunciaIntervalo(capacidades.stream().anyMatch(c -> c.startsWith(Protocolo.CAPACIDADE_INTERVALO)));
+                // quem não lê o intervalo espera HEARTBEAT a cada 5 s: volta a esse ritmo já na espera atual
+                if (!device.isAnunciaIntervalo() && intervaloHeartbeat > INTERVALO_HEARTBEAT_MINIMO_MS + INTERVALO_HEARTBEAT_MINIMO_MS / 10) {
+                    intervaloHeartbeat = INTERVALO_HEARTBEAT_MINIMO_MS;
+                }
+            }
+            if (novo) {
+                log("[Novo dispositivo] " + nome + " (" + origem.getAddress().getHostAddress() + ")");
+                ouvinte.aoDescobrirDispositivo(nome);
+            }
+            // a resposta não pede outra, então não há eco
+            if (capacidades.contains(Protocolo.CAPACIDADE_PEDIDO_RESPOSTA) && !nome.equals(deviceName)) {
+                byte[] resposta = mensagemHeartbeat(false).getBytes();
+                try {
+                    metricas.contarEnvio(resposta, resposta.length);
+                    socket.send(new DatagramPacket(resposta, resposta.length, origem));
+                } catch (IOException e) {
+                    if (ativo) logErro("Erro ao responder HEARTBEAT de " + nome + ": " + e.getMessage());
+                }
+            }
         } else if (mensagem.startsWith("TALK:")) {
             String[] parts = mensagem.split(":", 4);
             if (parts.length >= 4) {
@@ -151,24 +796,24 @@ public class UDPNode {
                 String senderName = parts[2];
                 String realMessage = parts[3];
 
-                if (mensagemDuplicada("TALK-" + id)) {
-                    log("[FALHA] TALK Mensagem duplicada detectada (id:" + id + ") de " + senderName + " (" + remetente.getHostAddress() + ")");
+                if (mensagemDuplicada(origem, "TALK", id)) {
+                    log("[FALHA] TALK Mensagem duplicada detectada (id:" + id + ") de " + senderName + " (" + origem.getAddress().getHostAddress() + ")");
                     return;
                 }
 
-                log("[TALK Recebido] id=" + id + " de " + senderName + " (" + remetente.getHostAddress() + "): " + realMessage);
-                sendAck(id, -1, remetente, porta, socket);
+                log("[TALK Recebido] id=" + id + " de " + senderName + " (" + origem.getAddress().getHostAddress() + "): " + realMessage);
+                sendAck(id, -1, JANELA_RECEPCAO, origem, false, socket);
+                ouvinte.aoReceberMensagem(senderName, realMessage);
             }
         } else if (mensagem.startsWith("ACK:")) {
-            String[] parts = mensagem.split(":", 4);
+            String[] parts = mensagem.split(":", 5);
             if (parts.length >= 4) {
                 int id = Integer.parseInt(parts[1]);
                 int seq = Integer.parseInt(parts[2]);
                 String senderName = parts[3];
-                String referencia = tipoMensagemEnviada.getOrDefault(id + ":" + seq, "DESCONHECIDO");
-                String chaveAck = "ACK-" + referencia + "-" + id + "-" + seq;
-                acksRecebidos.put(chaveAck, true);
-                log("[ACK Recebido] " + referencia + " id=" + id + " seq=" + seq + " de " + senderName + " (" + remetente.getHostAddress() + ")");
+                // peers antigos não anunciam janela: nesse caso vale só o limite local
+                int janelaLivre = parts.length >= 5 ? Integer.parseInt(parts[4]) : Integer.MAX_VALUE;
+                receberAck(id, seq, janelaLivre, senderName, origem);
             }
         } else if (mensagem.startsWith("FILE:")) {
             String[] parts = mensagem.split(":", 5);
@@ -177,14 +822,7 @@ public class UDPNode {
                 String nomeArquivo = parts[2];
                 long tamanho = Long.parseLong(parts[3]);
                 String nomeRemetente = parts[4];
-                if (mensagemDuplicada("FILE-" + id)) {
-                    log("[FALHA] FILE duplicado (id:" + id + ") de " + nomeRemetente + " (" + remetente.getHostAddress() + ")");
-                    return;
-                }
-
-                log("[FILE recebido] id=" + id + " Arquivo: " + nomeArquivo + ", Tamanho: " + tamanho + " bytes de " + nomeRemetente + " (" + remetente.getHostAddress() + ")");
-                nomesArquivosRecebidos.put(id, nomeArquivo);
-                sendAck(id, -1, remetente, porta, socket);
+                receberFile(id, nomeArquivo, tamanho, TAMANHO_BLOCO, -1, nomeRemetente, origem, false, socket);
             }
         } else if (mensagem.startsWith("CHUNK:")) {
             String[] parts = mensagem.split(":", 5);
@@ -194,38 +832,15 @@ public class UDPNode {
                 String dadosBase64 = parts[3];
                 String nomeRemetente = parts[4];
 
-                String chave = "CHUNK-" + id + "-" + seq;
-                if (mensagemDuplicada(chave)) {
-                    log("[FALHA] CHUNK duplicado (id:" + id + ", seq:" + seq + ") de " + nomeRemetente + " (" + remetente.getHostAddress() + ")");
-                    return;
-                }
-
-                File pasta = new File("arquivos_recebidos");
-                if (!pasta.exists()) pasta.mkdirs();
-
-                byte[] dadosBytes;
+                ByteBuffer dadosBytes;
                 try {
-                    dadosBytes = Base64.getDecoder().decode(dadosBase64);
+                    dadosBytes = ByteBuffer.wrap(Base64.getDecoder().decode(dadosBase64));
                 } catch (IllegalArgumentException e) {
-                    log("[ERRO] Falha ao decodificar CHUNK id=" + id + " seq=" + seq + " de " + nomeRemetente + " (" + remetente.getHostAddress() + ")");
-                    sendNack(id, "CHUNK inválido (base64)", remetente, porta, socket);
-                    return;
-                }
-
-                String nomeOriginal = nomesArquivosRecebidos.getOrDefault(id, "temp_" + id + ".part");
-                File arquivoDestino = new File("arquivos_recebidos/" + nomeOriginal);
-
-                try (RandomAccessFile raf = new RandomAccessFile(arquivoDestino, "rw")) {
-                    raf.seek(seq * 1024L);
-                    raf.write(dadosBytes);
-                } catch (IOException e) {
-                    log("[ERRO] Falha ao gravar CHUNK id=" + id + " seq=" + seq + ": " + " de " + nomeRemetente + " (" + remetente.getHostAddress() + ")" + e.getMessage());
-                    sendNack(id, "Falha ao gravar CHUNK seq=" + seq, remetente, porta, socket);
+                    logErro("[ERRO] Falha ao decodificar CHUNK id=" + id + " seq=" + seq + " de " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + ")");
+                    sendNack(id, "CHUNK inválido (base64)", origem, false, socket);
                     return;
                 }
-
-                log("[CHUNK recebido] id=" + id + " seq=" + seq + " (" + dadosBytes.length + " bytes) de " + nomeRemetente + " (" + remetente.getHostAddress() + ")");
-                sendAck(id, seq, remetente, porta, socket);
+                receberChunk(id, seq, dadosBytes, false, nomeRemetente, origem, false, socket);
             }
         } else if (mensagem.startsWith("END:")) {
             String[] parts = mensagem.split(":", 4);
@@ -233,30 +848,7 @@ public class UDPNode {
                 int id = Integer.parseInt(parts[1]);
                 String hashRecebido = parts[2];
                 String nomeRemetente = parts[3];
-        
-                String nomeArquivo = nomesArquivosRecebidos.get(id);
-                if (nomeArquivo == null) {
-                    log("[ERRO] Arquivo para id=" + id + " não encontrado. Enviando NACK.");
-                    sendNack(id, "Arquivo não encontrado", remetente, porta, socket);
-                    return;
-                }
-        
-                File arquivo = new File("arquivos_recebidos/" + nomeArquivo);
-                if (!arquivo.exists()) {
-                    log("[ERRO] Arquivo físico não encontrado: " + nomeArquivo + ". Enviando NACK.");
-                    sendNack(id, "Arquivo não existe no disco", remetente, porta, socket);
-                    return;
-                }
-        
-                String hashCalculado = calcularHashArquivo(arquivo);
-                if (hashCalculado.equals(hashRecebido)) {
-                    log("[END recebido] id=" + id + " hash verificado com sucesso de " + nomeRemetente + "("+ remetente.getHostAddress() + ")");
-                    sendAck(id, -1, remetente, porta, socket); // ACK do END
-                } else {
-                    log("[ERRO] Hash divergente para id=" + id + ". Esperado: " + hashRecebido + " / Calculado: " + hashCalculado );
-                    arquivo.delete(); // remove arquivo corrompido
-                    sendNack(id, "Hash inválido. Arquivo corrompido", remetente, porta, socket);
-                }
+                receberEnd(id, hashRecebido, null, nomeRemetente, origem, false, socket);
             }
         } else if (mensagem.startsWith("NACK:")) {
             String[] parts = mensagem.split(":", 4);
@@ -264,29 +856,626 @@ public class UDPNode {
                 int id = Integer.parseInt(parts[1]);
                 String motivo = parts[2];
                 String nomeRemetente = parts[3];
-                log("[NACK Recebido] END id=" + id + " motivo=" + motivo + " de " + nomeRemetente + "("+ remetente.getHostAddress() + ")");
+                receberNack(id, motivo, nomeRemetente, origem);
             }
         } else {
             log("[Mensagem desconhecida] " + mensagem);
         }
     }
 
-    private static void sendAck(int id, int seq, InetAddress ipDestino, int portaDestino, DatagramSocket socket) {
+    private void processarQuadro(ByteBuffer quadro, InetSocketAddress origem, DatagramSocket socket) {
+        Device device = deviceManager.getDeviceByAddress(origem);
+        String nomeRemetente = device != null ? device.getName() : "?";
+        int id = Protocolo.id(quadro);
+        switch (Protocolo.tipo(quadro)) {
+            case Protocolo.TIPO_CHUNK:
+                int seq = Protocolo.seq(quadro);
+                boolean ackImediato = (Protocolo.flags(quadro) & Protocolo.FLAG_ACK_IMEDIATO) != 0;
+                // delimita o próprio buffer ao payload, sem copiar
+                int inicio = Protocolo.inicioPayload(quadro);
+                quadro.limit(inicio + Protocolo.comprimento(quadro)).position(inicio);
+                receberChunk(id, seq, quadro, ackImediato, nomeRemetente, origem, true, socket);
+                break;
+            case Protocolo.TIPO_SACK:
+                receberSack(id, quadro, nomeRemetente, origem, socket);
+                break;
+            case Protocolo.TIPO_ACK:
+                receberAck(id, Protocolo.seq(quadro), Protocolo.janelaAck(quadro), nomeRemetente, origem);
+                break;
+            case Protocolo.TIPO_FILE:
+                long modificadoEm = Protocolo.retomavel(quadro) ? Protocolo.modificadoEmFile(quadro) : -1;
+                receberFile(id, Protocolo.nomeFile(quadro), Protocolo.tamanhoFile(quadro), Protocolo.tamanhoChunkFile(quadro), modificadoEm, nomeRemetente, origem, true, socket);
+                break;
+            case Protocolo.TIPO_PARIDADE:
+                receberParidade(id, quadro, origem, socket);
+                break;
+            case Protocolo.TIPO_SONDA:
+                ByteBuffer resposta = Protocolo.alocar(0);
+                Protocolo.escreverSondaAck(resposta, Protocolo.TAMANHO_CABECALHO + Protocolo.comprimento(quadro));
+                enviarQuadro(resposta, origem, socket);
+                break;
+            case Protocolo.TIPO_SONDA_ACK:
+                AtomicInteger maiorConfirmado = sondas.get(origem);
+                if (maiorConfirmado != null) maiorConfirmado.accumulateAndGet(Protocolo.seq(quadro), Math::max);
+                break;
+            case Protocolo.TIPO_FALTANTES:
+                receberFaltantes(id, quadro, nomeRemetente, origem);
+                break;
+            case Protocolo.TIPO_END:
+                receberEnd(id, paraHex(Protocolo.hashEnd(quadro)), Protocolo.raizMerkleEnd(quadro), nomeRemetente, origem, true, socket);
+                break;
+            case Protocolo.TIPO_MERKLE_PEDIDO:
+                receberPedidoMerkle(id, Protocolo.seq(quadro), Protocolo.inicioPedidoMerkle(quadro), Protocolo.quantidadePedidoMerkle(quadro), origem, socket);
+                break;
+            case Protocolo.TIPO_MERKLE:
+                receberMerkle(id, quadro, origem, socket);
+                break;
+            case Protocolo.TIPO_REPARO:
+                receberReparo(id, Protocolo.seq(quadro), Protocolo.quantidadeReparo(quadro), origem, socket);
+                break;
+            case Protocolo.TIPO_NACK:
+                receberNack(id, Protocolo.motivoNack(quadro), nomeRemetente, origem);
+                break;
+            default:
+                log("[Mensagem desconhecida] quadro tipo=" + Protocolo.tipo(quadro) + " de " + origem.getAddress().getHostAddress());
+        }
+    }
+
+    private void receberAck(int id, int seq, int janelaLivre, String senderName, InetSocketAddress origem) {
+        if (seq >= 0) { // ACK individual de CHUNK (peers de texto ou transferência já encerrada)
+            TransferenciaEnvio transferencia = transferenciasEnvio.get(id);
+            JanelaEnvio janela = transferencia != null ? transferencia.getJanela() : null;
+            if (janela != null) janela.confirmar(seq, janelaLivre);
+            if (Log.detalhado()) logDetalhe("[ACK Recebido] CHUNK id=" + id + " seq=" + seq + " de " + senderName + " (" + origem.getAddress().getHostAddress() + ")");
+            return;
+        }
+        TransferenciaEnvio transferencia = transferenciasEnvio.get(id);
+        String referencia;
+        if (transferencia != null) {
+            referencia = transferencia.confirmarControle().name();
+        } else {
+            CompletableFuture<Void> talk = talksEnviados.remove(id);
+            referencia = talk != null ? "TALK" : "DESCONHECIDO";
+            if (talk != null) talk.complete(null);
+        }
+        log("[ACK Recebido] " + referencia + " id=" + id + " seq=" + seq + " de " + senderName + " (" + origem.getAddress().getHostAddress() + ")");
+    }
+
+    private void receberSack(int id, ByteBuffer quadro, String nomeRemetente, InetSocketAddress origem, DatagramSocket socket) {
+        TransferenciaEnvio transferencia = transferenciasEnvio.get(id);
+        JanelaEnvio janela = transferencia != null ? transferencia.getJanela() : null;
+        if (janela == null) return;
+        int cumulativo = Protocolo.seq(quadro);
+        int[] lacunas = janela.confirmarSack(cumulativo, quadro, Protocolo.inicioBitmapSack(quadro), Protocolo.bytesBitmapSack(quadro), Protocolo.janelaSack(quadro));
+        if (Log.detalhado()) logDetalhe("[SACK Recebido] id=" + id + " cumulativo=" + cumulativo + " de " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + ")");
+        // só os buracos reais voltam a ser enviados, sem esperar o timeout do monitorarAcks
+        for (int seq : lacunas) {
+            long agora = System.nanoTime();
+            if (!janela.prepararRetransmissao(seq, agora)) continue;
+            agendarRetransmissao(janela, id, seq, agora);
+            try {
+                reenviarChunk(transferencia, seq, socket);
+                metricas.contarRetransmissaoRapida();
+                if (Log.detalhado()) logDetalhe("[RETRANSMISSÃO RÁPIDA] CHUNK id=" + id + " seq=" + seq + " para " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + ")");
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** modificadoEm >= 0 indica um remetente que retoma transferências (FILE com FLAG_RETOMAVEL). */
+    private void receberFile(int id, String nomeArquivo, long tamanho, int tamanhoChunk, long modificadoEm, String nomeRemetente, InetSocketAddress origem, boolean binario, DatagramSocket socket) {
+        TransferenciaRecepcao.Chave chave = new TransferenciaRecepcao.Chave(origem, id);
+        if (tamanhoChunk <= 0 || tamanhoChunk > Protocolo.TAMANHO_MAXIMO_CHUNK) {
+            logErro("[ERRO] FILE id=" + id + " de " + nomeRemetente + " com CHUNKs de " + tamanhoChunk + " bytes. Enviando NACK.");
+            sendNack(id, "Tamanho de CHUNK inválido", origem, binario, socket);
+            return;
+        }
+        boolean retomavel = modificadoEm >= 0;
+        File pasta = pastaRecebidos;
+        RegistroParcial registro = retomavel ? new RegistroParcial(pastaParciais, origem.getAddress().getHostAddress(), nomeArquivo, tamanho, modificadoEm, tamanhoChunk) : null;
+        TransferenciaRecepcao existente = transferenciasRecepcao.get(chave);
+        if (existente != null && (registro == null || mesmoRegistro(existente, registro))) {
+            // a resposta ao FILE pode ter se perdido: confirma de novo sem reiniciar a transferência
+            log("[FALHA] FILE duplicado (id:" + id + ") de " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + ")");
+            if (registro != null) {
+                enviarFaltantes(existente, socket);
+            } else {
+                sendAck(id, -1, existente.getJanela().espacoLivre(), origem, binario, socket);
+            }
+            return;
+        }
+        if (registro != null) {
+            // tentativa anterior do mesmo arquivo (o remetente reiniciou ou desistiu): salva o que ela recebeu e a encerra
+            for (TransferenciaRecepcao anterior : transferenciasRecepcao.values()) {
+                if (anterior.getChave().equals(chave) || mesmoRegistro(anterior, registro)) encerrarAnterior(anterior);
+            }
+        } else if (mensagemDuplicada(origem, "FILE", id)) {
+            log("[FALHA] FILE duplicado (id:" + id + ") de " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + ")");
+            return;
+        }
+
+        log("[FILE recebido] id=" + id + " Arquivo: " + nomeArquivo + ", Tamanho: " + tamanho + " bytes (CHUNKs de " + tamanhoChunk + ") de " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + ")");
+        if (!pasta.exists()) pasta.mkdirs();
+        File arquivoDestino = new File(pasta, nomeArquivo);
+        BitSet jaNoDisco = registro != null && arquivoDestino.exists() ? registro.carregar() : null;
+        JanelaRecepcao janela = jaNoDisco != null ? new JanelaRecepcao(JANELA_RECEPCAO, jaNoDisco) : new JanelaRecepcao(JANELA_RECEPCAO);
+        if (binario) janela.setOrigem(origem); // remetentes binários recebem SACKs agrupados
+        try {
+            // o arquivo fica aberto no cache até o END; com prealocação ele já nasce (esparso) com o tamanho final.
+            // Na retomada o tamanho anunciado é mantido, o que preserva o conteúdo já gravado.
+            arquivosAbertos.criar(chave, arquivoDestino, prealocarArquivos || jaNoDisco != null ? tamanho : -1);
+        } catch (IOException e) {
+            logErro("[ERRO] Falha ao criar " + nomeArquivo + " (id=" + id + ") de " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + "): " + e.getMessage());
+            sendNack(id, "Falha ao criar arquivo", origem, binario, socket);
+            return;
+        }
+        // o limite de CHUNKs guardados fora de ordem é em bytes: 2 janelas de CHUNKs padrão
+        HashIncremental hash = new HashIncremental(tamanho, Math.max(8, 2 * JANELA_RECEPCAO * TAMANHO_BLOCO / tamanhoChunk));
+        if (jaNoDisco != null) hash.abandonar(); // o começo do arquivo não vai passar pela rede
+        TransferenciaRecepcao transferencia = new TransferenciaRecepcao(id, origem, nomeRemetente, nomeArquivo, tamanho, tamanhoChunk, binario, arquivoDestino, janela, hash, registro);
+        transferenciasRecepcao.put(chave, transferencia);
+        if (registro == null) {
+            sendAck(id, -1, JANELA_RECEPCAO, origem, binario, socket);
+            return;
+        }
+        if (jaNoDisco != null) {
+            log("[RETOMADA] id=" + id + " " + nomeArquivo + ": " + janela.getTotalRecebidos() + " de " + transferencia.getTotalChunks() + " CHUNKs já estavam no disco");
+        }
+        enviarFaltantes(transferencia, socket);
+    }
+
+    private static boolean mesmoRegistro(TransferenciaRecepcao transferencia, RegistroParcial registro) {
+        RegistroParcial outro = transferencia.getRegistro();
+        return outro != null && outro.getArquivo().equals(registro.getArquivo());
+    }
+
+    /** Tira de cena uma transferência que vai ser substituída, guardando antes o bitmap dela. */
+    private void encerrarAnterior(TransferenciaRecepcao anterior) {
+        transferenciasRecepcao.remove(anterior.getChave());
+        persistirParcial(anterior);
         try {
-            String ack = "ACK:" + id + ":" + seq + ":" + deviceName;
-            byte[] data = ack.getBytes();
-            DatagramPacket packet = new DatagramPacket(data, data.length, ipDestino, portaDestino);
+            arquivosAbertos.fechar(anterior.getChave());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Responde a um FILE retomável com as faixas de CHUNKs que ainda faltam no disco. */
+    private void enviarFaltantes(TransferenciaRecepcao transferencia, DatagramSocket socket) {
+        JanelaRecepcao janela = transferencia.getJanela();
+        int[][] faixas = janela.faixasFaltantes(transferencia.getTotalChunks(), Protocolo.MAX_FAIXAS_FALTANTES);
+        ByteBuffer quadro = Protocolo.alocar(8 + 8 * faixas.length);
+        Protocolo.escreverFaltantes(quadro, transferencia.getId(), janela.espacoLivre(), faixas);
+        enviarQuadro(quadro, transferencia.getOrigem(), socket);
+    }
+
+    /** Lado do remetente: resposta ao FILE de um receptor que retoma transferências. */
+    private void receberFaltantes(int id, ByteBuffer quadro, String nomeRemetente, InetSocketAddress origem) {
+        TransferenciaEnvio transferencia = transferenciasEnvio.get(id);
+        if (transferencia == null) return;
+        BitSet faltantes = new BitSet();
+        for (int[] faixa : Protocolo.faixasFaltantes(quadro)) {
+            if (faixa[0] >= 0 && faixa[1] > 0) faltantes.set(faixa[0], faixa[0] + faixa[1]);
+        }
+        if (transferencia.confirmarFaltantes(faltantes)) {
+            long total = (transferencia.getArquivo().length() + transferencia.getTamanhoChunk() - 1) / transferencia.getTamanhoChunk();
+            log("[FALTANTES Recebido] id=" + id + " faltam " + faltantes.cardinality() + " de " + total + " CHUNKs em " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + ")");
+        }
+    }
+
+    /** Grava no disco o bitmap das transferências retomáveis em andamento (laço de 1 s). */
+    private void salvarParciais() {
+        for (TransferenciaRecepcao transferencia : transferenciasRecepcao.values()) {
+            if (transferencia.getRegistro() != null && transferencia.getReparo() == null) persistirParcial(transferencia);
+        }
+    }
+
+    private void persistirParcial(TransferenciaRecepcao transferencia) {
+        RegistroParcial registro = transferencia.getRegistro();
+        if (registro == null) return;
+        JanelaRecepcao janela = transferencia.getJanela();
+        BitSet recebidos;
+        int total;
+        synchronized (janela) {
+            recebidos = janela.copiarRecebidos();
+            total = janela.getTotalRecebidos();
+        }
+        try {
+            // todo CHUNK do bitmap já passou por gravar(); falta só tirar o lote da memória
+            arquivosAbertos.sincronizar(transferencia.getChave());
+            registro.salvar(recebidos, total);
+        } catch (IOException e) {
+            logErro("[ERRO] Falha ao salvar o progresso de " + transferencia.getNomeArquivo() + " (id=" + transferencia.getId() + "): " + e.getMessage());
+        }
+    }
+
+    /** dadosBytes chega com position/limit delimitando o conteúdo do CHUNK. */
+    private void receberChunk(int id, int seq, ByteBuffer dadosBytes, boolean ackImediato, String nomeRemetente, InetSocketAddress origem, boolean binario, DatagramSocket socket) {
+        TransferenciaRecepcao transferencia = transferenciasRecepcao.get(new TransferenciaRecepcao.Chave(origem, id));
+        if (transferencia == null) {
+            // transferência já encerrada (ou FILE desconhecido): só confirma para o remetente parar de retransmitir
+            sendAck(id, seq, JANELA_RECEPCAO, origem, binario, socket);
+            return;
+        }
+        // seq e tamanho vêm da rede: fora do arquivo não toca hash, disco nem janela
+        if (seq < 0 || seq >= transferencia.getTotalChunks() || dadosBytes.remaining() > transferencia.getTamanhoChunk()) {
+            log("[FALHA] CHUNK fora do arquivo descartado (id:" + id + ", seq:" + seq + ", " + dadosBytes.remaining() + " bytes) de " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + ")");
+            return;
+        }
+        ReparoMerkle reparo = transferencia.getReparo();
+        if (reparo != null) {
+            receberChunkReparo(transferencia, reparo, seq, dadosBytes, socket);
+            return;
+        }
+        JanelaRecepcao janela = transferencia.getJanela();
+        if (janela.jaRecebido(seq)) {
+            transferencia.contarDuplicado();
+            metricas.contarChunkDuplicado();
+            if (Log.detalhado()) logDetalhe("[FALHA] CHUNK duplicado (id:" + id + ", seq:" + seq + ") de " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + ")");
+            // o ACK anterior pode ter se perdido: confirma de novo para o remetente liberar a janela
+            if (janela.getOrigem() != null) {
+                enviarSack(id, janela, socket);
+            } else {
+                sendAck(id, seq, janela.espacoLivre(), origem, binario, socket);
+            }
+            return;
+        }
+
+        int tamanhoDados = dadosBytes.remaining();
+        transferencia.getHash().atualizar(seq, dadosBytes);
+        // a escrita sai na thread de disco; uma falha chega depois, e o CHUNK já conta como recebido
+        arquivosAbertos.gravar(transferencia.getChave(), transferencia.getArquivoDestino(), (long) seq * transferencia.getTamanhoChunk(), dadosBytes, e -> {
+            logErro("[ERRO] Falha ao gravar CHUNK id=" + id + " seq=" + seq + ": " + " de " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + ")" + e.getMessage());
+            sendNack(id, "Falha ao gravar CHUNK seq=" + seq, origem, binario, socket);
+        });
+
+        int esperadoAntes = janela.getProximoEsperado();
+        int janelaLivre = janela.registrar(seq);
+        transferencia.contarRecebido(tamanhoDados);
+        if (Log.detalhado()) logDetalhe("[CHUNK recebido] id=" + id + " seq=" + seq + " (" + tamanhoDados + " bytes) de " + nomeRemetente + " (" + origem.getAddress().getHostAddress() + ")");
+        if (binario) {
+            try {
+                recuperarPorFec(transferencia, transferencia.getFec().aoReceber(seq, leituraFec(transferencia)), socket);
+            } catch (IOException e) {
+                logErro("[ERRO] FEC id=" + id + ": falha ao reler CHUNKs do grupo de seq=" + seq + ": " + e.getMessage());
+            }
+        }
+        if (janela.getOrigem() == null) {
+            sendAck(id, seq, janelaLivre, origem, binario, socket);
+            return;
+        }
+        // fora de ordem ou buraco preenchido: confirma na hora para o remetente enxergar a lacuna
+        boolean foraDeOrdem = seq != esperadoAntes || janela.getProximoEsperado() != seq + 1;
+        if (ackImediato || foraDeOrdem || janela.getNaoConfirmados() >= SACK_A_CADA_CHUNKS) {
+            enviarSack(id, janela, socket);
+        }
+    }
+
+    /** PARIDADE de um grupo: refaz na hora o CHUNK que for o único faltando na sua classe. */
+    private void receberParidade(int id, ByteBuffer quadro, InetSocketAddress origem, DatagramSocket socket) {
+        TransferenciaRecepcao transferencia = transferenciasRecepcao.get(new TransferenciaRecepcao.Chave(origem, id));
+        if (transferencia == null || transferencia.getReparo() != null) return;
+        try {
+            Map<Integer, ByteBuffer> recuperados = transferencia.getFec().receberParidade(Protocolo.seq(quadro), Protocolo.nParidade(quadro), Protocolo.kParidade(quadro),
+                    Protocolo.indiceParidade(quadro), Protocolo.dadosParidade(quadro), leituraFec(transferencia));
+            recuperarPorFec(transferencia, recuperados, socket);
+        } catch (IOException e) {
+            logErro("[ERRO] FEC id=" + id + ": falha ao reler CHUNKs do grupo " + Protocolo.seq(quadro) + ": " + e.getMessage());
+        }
+    }
+
+    /** Entrega os CHUNKs refeitos pelo FEC como se tivessem chegado do remetente. */
+    private void recuperarPorFec(TransferenciaRecepcao transferencia, Map<Integer, ByteBuffer> recuperados, DatagramSocket socket) {
+        if (recuperados == null) return;
+        for (Map.Entry<Integer, ByteBuffer> entrada : recuperados.entrySet()) {
+            if (Log.detalhado()) logDetalhe("[FEC] id=" + transferencia.getId() + " seq=" + entrada.getKey() + " recuperado pela paridade");
+            receberChunk(transferencia.getId(), entrada.getKey(), entrada.getValue(), false, transferencia.getNomeRemetente(), transferencia.getOrigem(), true, socket);
+        }
+    }
+
+    private Fec.Leitura leituraFec(TransferenciaRecepcao transferencia) {
+        return new Fec.Leitura() {
+            @Override
+            public boolean recebido(int seq) {
+                return transferencia.getJanela().jaRecebido(seq);
+            }
+
+            @Override
+            public void ler(int seq, int tamanho, ByteBuffer destino) throws IOException {
+                destino.limit(destino.position() + tamanho);
+                arquivosAbertos.ler(transferencia.getChave(), transferencia.getArquivoDestino(), (long) seq * transferencia.getTamanhoChunk(), destino);
+            }
+        };
+    }
+
+    /** raizMerkle é null quando o remetente não suporta reparo (texto ou binário antigo). */
+    private void receberEnd(int id, String hashRecebido, byte[] raizMerkle, String nomeRemetente, InetSocketAddress origem, boolean binario, DatagramSocket socket) {
+        TransferenciaRecepcao.Chave chave = new TransferenciaRecepcao.Chave(origem, id);
+        TransferenciaRecepcao transferencia = transferenciasRecepcao.get(chave);
+        if (transferencia == null) {
+            logErro("[ERRO] Arquivo para id=" + id + " não encontrado. Enviando NACK.");
+            sendNack(id, "Arquivo não encontrado", origem, binario, socket);
+            return;
+        }
+        if (transferencia.getReparo() != null) return; // END repetido durante o reparo
+
+        File arquivo = transferencia.getArquivoDestino();
+        try {
+            arquivosAbertos.fechar(chave); // o hash precisa ver os lotes ainda em memória
+        } catch (IOException e) {
+            logErro("[ERRO] Falha ao gravar " + transferencia.getNomeArquivo() + ": " + e.getMessage() + ". Enviando NACK.");
+            sendNack(id, "Falha ao gravar arquivo", origem, binario, socket);
+            return;
+        }
+        if (!arquivo.exists()) {
+            logErro("[ERRO] Arquivo físico não encontrado: " + transferencia.getNomeArquivo() + ". Enviando NACK.");
+            sendNack(id, "Arquivo não existe no disco", origem, binario, socket);
+            return;
+        }
+
+        HashIncremental hash = transferencia.getHash();
+        if (hash.completo()) {
+            concluirEnd(transferencia, hashRecebido, paraHex(hash.getResultado()), raizMerkle, hash.getArvore(), socket);
+        } else {
+            // faltou CHUNK no prefixo (ou o incremental foi abandonado): relê o arquivo sem travar a recepção
+            log("[END recebido] id=" + id + " hash incremental incompleto, verificando o arquivo em disco");
+            executorVerificacao.execute(() -> concluirEnd(transferencia, hashRecebido, calcularHashArquivo(arquivo), raizMerkle, null, socket));
+        }
+    }
+
+    /** arvoreLocal null: ainda não calculada (só no caminho lento, fora da thread de recepção). */
+    private void concluirEnd(TransferenciaRecepcao transferencia, String hashRecebido, String hashCalculado, byte[] raizMerkle, ArvoreMerkle arvoreLocal, DatagramSocket socket) {
+        int id = transferencia.getId();
+        InetSocketAddress origem = transferencia.getOrigem();
+        boolean binario = transferencia.isBinario();
+        String nomeRemetente = transferencia.getNomeRemetente();
+        File arquivo = transferencia.getArquivoDestino();
+        if (hashCalculado.equals(hashRecebido)) {
+            log("[END recebido] id=" + id + " hash verificado com sucesso de " + nomeRemetente + "("+ origem.getAddress().getHostAddress() + ")");
+            long recuperados = transferencia.getFec().getRecuperados();
+            metricas.registrarRecepcaoConcluida(transferencia.getBytesRecebidos(), System.nanoTime() - transferencia.getInicioNanos());
+            log("[RESUMO] id=" + id + " " + transferencia.getNomeArquivo() + " de " + nomeRemetente + ": "
+                    + descreverVazao(transferencia.getRecebidos(), transferencia.getBytesRecebidos(), System.nanoTime() - transferencia.getInicioNanos())
+                    + ", " + transferencia.getDuplicados() + " duplicado(s)" + (recuperados > 0 ? ", " + recuperados + " refeito(s) pela FEC" : ""));
+            transferenciasRecepcao.remove(transferencia.getChave());
+            if (transferencia.getRegistro() != null) transferencia.getRegistro().apagar();
+            sendAck(id, -1, JANELA_RECEPCAO, origem, binario, socket); // ACK do END
+            ouvinte.aoReceberArquivo(nomeRemetente, arquivo);
+        } else if (raizMerkle != null) {
+            logErro("[ERRO] Hash divergente para id=" + id + ". Esperado: " + hashRecebido + " / Calculado: " + hashCalculado + ". Localizando blocos pela árvore Merkle.");
+            try {
+                iniciarReparo(transferencia, arvoreLocal != null ? arvoreLocal : ArvoreMerkle.deArquivo(arquivo), raizMerkle, socket);
+            } catch (IOException e) {
+                descartarArquivo(transferencia, "Falha ao ler arquivo para reparo", socket);
+            }
+        } else {
+            logErro("[ERRO] Hash divergente para id=" + id + ". Esperado: " + hashRecebido + " / Calculado: " + hashCalculado );
+            descartarArquivo(transferencia, "Hash inválido. Arquivo corrompido", socket);
+        }
+    }
+
+    private void descartarArquivo(TransferenciaRecepcao transferencia, String motivo, DatagramSocket socket) {
+        transferencia.getArquivoDestino().delete(); // remove arquivo corrompido
+        if (transferencia.getRegistro() != null) transferencia.getRegistro().apagar();
+        transferencia.setReparo(null);
+        sendNack(transferencia.getId(), motivo, transferencia.getOrigem(), transferencia.isBinario(), socket);
+    }
+
+    private void iniciarReparo(TransferenciaRecepcao transferencia, ArvoreMerkle arvoreLocal, byte[] raizRemota, DatagramSocket socket) {
+        if (Arrays.equals(arvoreLocal.getRaiz(), raizRemota)) {
+            // a árvore bate e o hash não: não há bloco a apontar
+            descartarArquivo(transferencia, "Hash inválido. Arquivo corrompido", socket);
+            return;
+        }
+        ReparoMerkle reparo = new ReparoMerkle(arvoreLocal, raizRemota, transferencia.getTotalChunks(), transferencia.getTamanhoChunk());
+        transferencia.setReparo(reparo);
+        log("[REPARO] id=" + transferencia.getId() + " comparando " + arvoreLocal.tamanhoNivel(0) + " blocos de " + (ArvoreMerkle.TAMANHO_FOLHA / 1024) + " KB com " + transferencia.getNomeRemetente());
+        List<int[]> pedidos = reparo.iniciar();
+        for (int[] pedido : pedidos) enviarPedidoMerkle(transferencia, pedido, socket);
+        if (reparo.descidaConcluida()) pedirChunksReparo(transferencia, reparo, socket);
+    }
+
+    /** Resposta do remetente com hashes de um nível da árvore. */
+    private void receberMerkle(int id, ByteBuffer quadro, InetSocketAddress origem, DatagramSocket socket) {
+        TransferenciaRecepcao transferencia = transferenciasRecepcao.get(new TransferenciaRecepcao.Chave(origem, id));
+        ReparoMerkle reparo = transferencia != null ? transferencia.getReparo() : null;
+        if (reparo == null) return;
+        byte[][] hashes = new byte[Protocolo.quantidadeHashesMerkle(quadro)][];
+        for (int i = 0; i < hashes.length; i++) hashes[i] = Protocolo.hashMerkle(quadro, i);
+        List<int[]> pedidos = reparo.receberHashes(Protocolo.seq(quadro), Protocolo.inicioMerkle(quadro), hashes);
+        if (pedidos == null) return;
+        for (int[] pedido : pedidos) enviarPedidoMerkle(transferencia, pedido, socket);
+        if (reparo.descidaConcluida()) {
+            log("[REPARO] id=" + id + " " + reparo.getFolhasDivergentes().cardinality() + " bloco(s) divergente(s)");
+            pedirChunksReparo(transferencia, reparo, socket);
+        }
+    }
+
+    private void pedirChunksReparo(TransferenciaRecepcao transferencia, ReparoMerkle reparo, DatagramSocket socket) {
+        if (reparo.concluido()) {
+            finalizarReparo(transferencia, reparo, socket);
+            return;
+        }
+        for (int[] faixa : reparo.proximaRodada()) {
+            ByteBuffer quadro = Protocolo.alocar(4);
+            Protocolo.escreverReparo(quadro, transferencia.getId(), faixa[0], faixa[1]);
+            enviarQuadro(quadro, transferencia.getOrigem(), socket);
+        }
+    }
+
+    private void enviarPedidoMerkle(TransferenciaRecepcao transferencia, int[] pedido, DatagramSocket socket) {
+        ByteBuffer quadro = Protocolo.alocar(8);
+        Protocolo.escreverPedidoMerkle(quadro, transferencia.getId(), pedido[0], pedido[1], pedido[2]);
+        enviarQuadro(quadro, transferencia.getOrigem(), socket);
+    }
+
+    /** CHUNK retransmitido a pedido do REPARO: grava e, na última rodada, confere a árvore. */
+    private void receberChunkReparo(TransferenciaRecepcao transferencia, ReparoMerkle reparo, int seq, ByteBuffer dadosBytes, DatagramSocket socket) {
+        if (!reparo.receberChunk(seq)) return;
+        arquivosAbertos.gravar(transferencia.getChave(), transferencia.getArquivoDestino(), (long) seq * transferencia.getTamanhoChunk(), dadosBytes, e -> {
+            logErro("[ERRO] Falha ao gravar CHUNK reparado id=" + transferencia.getId() + " seq=" + seq + ": " + e.getMessage());
+            descartarArquivo(transferencia, "Falha ao gravar CHUNK seq=" + seq, socket);
+        });
+        if (reparo.rodadaConcluida()) pedirChunksReparo(transferencia, reparo, socket);
+    }
+
+    /** Recalcula só as folhas reparadas e compara a raiz com a do remetente. */
+    private void finalizarReparo(TransferenciaRecepcao transferencia, ReparoMerkle reparo, DatagramSocket socket) {
+        int id = transferencia.getId();
+        ArvoreMerkle arvore = reparo.getArvoreLocal();
+        BitSet folhas = reparo.getFolhasDivergentes();
+        try {
+            arquivosAbertos.fechar(transferencia.getChave());
+            try (RandomAccessFile raf = new RandomAccessFile(transferencia.getArquivoDestino(), "r")) {
+                byte[] bloco = new byte[ArvoreMerkle.TAMANHO_FOLHA];
+                for (int folha = folhas.nextSetBit(0); folha >= 0; folha = folhas.nextSetBit(folha + 1)) {
+                    long inicio = (long) folha * ArvoreMerkle.TAMANHO_FOLHA;
+                    int tamanho = (int) Math.min(ArvoreMerkle.TAMANHO_FOLHA, transferencia.getTamanho() - inicio);
+                    raf.seek(inicio);
+                    raf.readFully(bloco, 0, tamanho);
+                    arvore.substituirFolha(folha, ArvoreMerkle.hashFolha(bloco, 0, tamanho));
+                }
+            }
+        } catch (IOException e) {
+            logErro("[ERRO] Falha ao verificar reparo id=" + id + ": " + e.getMessage());
+            descartarArquivo(transferencia, "Falha ao verificar reparo", socket);
+            return;
+        }
+        if (!Arrays.equals(arvore.getRaiz(), reparo.getRaizRemota())) {
+            logErro("[ERRO] Reparo id=" + id + " não reproduziu a árvore do remetente. Enviando NACK.");
+            descartarArquivo(transferencia, "Hash inválido após reparo", socket);
+            return;
+        }
+        long bytesReparados = Math.min(transferencia.getTamanho(), (long) reparo.getChunksReparados() * transferencia.getTamanhoChunk());
+        log("[END recebido] id=" + id + " arquivo reparado: " + reparo.getChunksReparados() + " CHUNKs (" + bytesReparados + " de " + transferencia.getTamanho() + " bytes) retransmitidos de " + transferencia.getNomeRemetente() + "(" + transferencia.getOrigem().getAddress().getHostAddress() + ")");
+        transferenciasRecepcao.remove(transferencia.getChave());
+        if (transferencia.getRegistro() != null) transferencia.getRegistro().apagar();
+        sendAck(id, -1, JANELA_RECEPCAO, transferencia.getOrigem(), transferencia.isBinario(), socket); // ACK do END
+        ouvinte.aoReceberArquivo(transferencia.getNomeRemetente(), transferencia.getArquivoDestino());
+    }
+
+    /** Reenvia pedidos de reparo sem resposta; desiste após MAX_TENTATIVAS. */
+    private void verificarReparos(DatagramSocket socket) {
+        long agora = System.currentTimeMillis();
+        for (TransferenciaRecepcao transferencia : transferenciasRecepcao.values()) {
+            ReparoMerkle reparo = transferencia.getReparo();
+            if (reparo == null || agora - reparo.getUltimaAtividade() < INTERVALO_REPARO_MS) continue;
+            if (reparo.registrarTentativa() > MAX_TENTATIVAS) {
+                logErro("[ERRO] Reparo id=" + transferencia.getId() + " sem resposta de " + transferencia.getNomeRemetente() + ". Enviando NACK.");
+                descartarArquivo(transferencia, "Reparo sem resposta", socket);
+            } else if (!reparo.descidaConcluida()) {
+                for (int[] pedido : reparo.getPedidosMerkle()) enviarPedidoMerkle(transferencia, pedido, socket);
+            } else {
+                pedirChunksReparo(transferencia, reparo, socket);
+            }
+        }
+    }
+
+    /** Lado do remetente: devolve hashes de um nível da árvore do arquivo enviado. */
+    private void receberPedidoMerkle(int id, int nivel, int inicio, int quantidade, InetSocketAddress origem, DatagramSocket socket) {
+        TransferenciaEnvio transferencia = transferenciasEnvio.get(id);
+        ArvoreMerkle arvore = transferencia != null ? transferencia.getArvore() : null;
+        if (arvore == null || nivel < 0 || nivel >= arvore.getAltura() || inicio < 0 || inicio >= arvore.tamanhoNivel(nivel)) return;
+        transferencia.registrarAtividade();
+        quantidade = Math.min(Math.min(quantidade, ReparoMerkle.MAX_HASHES_POR_PEDIDO), arvore.tamanhoNivel(nivel) - inicio);
+        ByteBuffer quadro = Protocolo.alocar(4 + quantidade * ArvoreMerkle.TAMANHO_HASH);
+        Protocolo.escreverMerkle(quadro, id, arvore, nivel, inicio, quantidade);
+        enviarQuadro(quadro, origem, socket);
+    }
+
+    /** Lado do remetente: reenvia os CHUNKs pedidos, lidos de novo do arquivo. */
+    private void receberReparo(int id, int primeiroChunk, int quantidade, InetSocketAddress origem, DatagramSocket socket) {
+        TransferenciaEnvio transferencia = transferenciasEnvio.get(id);
+        if (transferencia == null || transferencia.getArvore() == null || primeiroChunk < 0 || quantidade <= 0) return;
+        transferencia.registrarAtividade();
+        executorReparos.execute(() -> {
+            try {
+                int ultimo = Math.min(primeiroChunk + Math.min(quantidade, MAX_CHUNKS_REPARO), transferencia.getLeitor().getTotalChunks());
+                for (int seq = primeiroChunk; seq < ultimo; seq++) {
+                    reenviarChunk(transferencia, seq, socket);
+                }
+                log("[REPARO] id=" + id + " reenviados " + Math.max(0, ultimo - primeiroChunk) + " CHUNKs a partir de seq=" + primeiroChunk + " para " + transferencia.getNomeDestino());
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void enviarQuadro(ByteBuffer quadro, InetSocketAddress destino, DatagramSocket socket) {
+        try {
+            metricas.contarEnvio(quadro.array(), quadro.position());
+            socket.send(new DatagramPacket(quadro.array(), quadro.position(), destino));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void receberNack(int id, String motivo, String nomeRemetente, InetSocketAddress origem) {
+        log("[NACK Recebido] id=" + id + " motivo=" + motivo + " de " + nomeRemetente + "("+ origem.getAddress().getHostAddress() + ")");
+        TransferenciaEnvio transferencia = transferenciasEnvio.get(id);
+        // o receptor desistiu do arquivo: o envio para ele termina, os outros destinos seguem
+        if (transferencia != null && transferencia.getEnderecoDestino().equals(origem)) abortarEnvio(transferencia, "NACK (" + motivo + ")");
+    }
+
+    private void sendAck(int id, int seq, int janelaLivre, InetSocketAddress destino, boolean binario, DatagramSocket socket) {
+        try {
+            if (binario && socket.getChannel() != null) {
+                ByteBuffer quadro = bufferAck.get();
+                quadro.clear();
+                Protocolo.escreverAck(quadro, id, seq, janelaLivre);
+                quadro.flip();
+                metricas.contarEnvio(quadro);
+                socket.getChannel().send(quadro, destino);
+                return;
+            }
+            byte[] data;
+            if (binario) {
+                ByteBuffer quadro = Protocolo.alocar(4);
+                Protocolo.escreverAck(quadro, id, seq, janelaLivre);
+                data = quadro.array();
+            } else {
+                String ack = "ACK:" + id + ":" + seq + ":" + deviceName + ":" + janelaLivre;
+                data = ack.getBytes();
+            }
+            metricas.contarEnvio(data, data.length);
+            DatagramPacket packet = new DatagramPacket(data, data.length, destino);
             socket.send(packet);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private static void sendNack(int id, String motivo, InetAddress destino, int porta, DatagramSocket socket) {
+    private void enviarSack(int id, JanelaRecepcao janela, DatagramSocket socket) {
+        try {
+            ByteBuffer quadro = bufferSack.get();
+            byte[] bitmap = bitmapSack.get();
+            quadro.clear();
+            synchronized (janela) {
+                int bytesBitmap = janela.prepararSack(bitmap, System.currentTimeMillis());
+                Protocolo.escreverSack(quadro, id, janela.getProximoEsperado(), janela.espacoLivre(), bitmap, bytesBitmap);
+            }
+            quadro.flip();
+            metricas.contarEnvio(quadro);
+            socket.getChannel().send(quadro, janela.getOrigem());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void sendNack(int id, String motivo, InetSocketAddress destino, boolean binario, DatagramSocket socket) {
         try {
-            String nack = "NACK:" + id + ":" + motivo + ":" + deviceName;
-            byte[] data = nack.getBytes();
-            DatagramPacket packet = new DatagramPacket(data, data.length, destino, porta);
+            byte[] data;
+            if (binario) {
+                ByteBuffer quadro = Protocolo.alocar(motivo.getBytes(StandardCharsets.UTF_8).length);
+                Protocolo.escreverNack(quadro, id, motivo);
+                data = quadro.array();
+            } else {
+                String nack = "NACK:" + id + ":" + motivo + ":" + deviceName;
+                data = nack.getBytes();
+            }
+            metricas.contarEnvio(data, data.length);
+            DatagramPacket packet = new DatagramPacket(data, data.length, destino);
             socket.send(packet);
             //log("[NACK enviado] id=" + id + " motivo=" + motivo + " para " + " (" + destino.getHostAddress() + ")");
         } catch (Exception e) {
@@ -294,149 +1483,526 @@ public class UDPNode {
         }
     }
 
-    private static void tratarComando(String linha, DatagramSocket socket) {
+    /** Linha de comando do nó: cada comando vira uma chamada da API. */
+    public void tratarComando(String linha) {
         String[] partes = linha.split(" ", 3);
         if (partes[0].equalsIgnoreCase("devices")) {
             deviceManager.listDevices(deviceName);
         } else if (partes[0].equalsIgnoreCase("talk") && partes.length >= 3) {
             String destino = partes[1];
             String mensagem = partes[2];
-            enviarMensagem(destino, mensagem, socket);
+            enviarMensagem(destino, mensagem);
         } else if (partes[0].equalsIgnoreCase("sendfile") && partes.length >= 3) {
-            String destino = partes[1];
             String nomeArquivo = partes[2];
-            iniciarEnvioArquivo(destino, nomeArquivo, socket);
+            if (resolverDestinos(partes[1]).isEmpty()) {
+                logErro("[ERRO] Nenhum destino para " + partes[1]);
+                return;
+            }
+            try {
+                enviarArquivo(partes[1], nomeArquivo);
+            } catch (RejectedExecutionException e) {
+                logErro("[ERRO] Fila de envios cheia (" + MAX_ENVIOS_SIMULTANEOS + " em andamento, " + FILA_ENVIOS + " aguardando). Tente novamente depois.");
+            }
+        } else if (partes[0].equalsIgnoreCase("janela") && partes.length >= 2) {
+            configurarJanela(partes[1], partes.length >= 3 ? partes[2] : "chunks");
+        } else if (partes[0].equalsIgnoreCase("detalhes") && partes.length >= 2) {
+            Log.setNivel(partes[1].equalsIgnoreCase("on") ? Log.Nivel.DETALHE : Log.Nivel.INFO);
+        } else if (partes[0].equalsIgnoreCase("stats")) {
+            configurarStats(linha.trim().split("\\s+"));
+        } else if (partes[0].equalsIgnoreCase("recepcao")) {
+            log("[RECEPÇÃO] " + descreverRecepcao());
+        } else if (partes[0].equalsIgnoreCase("log") && partes.length >= 2) {
+            configurarLog(partes[1]);
+        } else if (partes[0].equalsIgnoreCase("prealocar") && partes.length >= 2) {
+            setPrealocarArquivos(partes[1].equalsIgnoreCase("on"));
+        } else if (partes[0].equalsIgnoreCase("chunk") && partes.length >= 2) {
+            configurarChunk(partes[1]);
+        } else if (partes[0].equalsIgnoreCase("fec") && partes.length >= 2) {
+            configurarFec(partes[1], partes.length >= 3 ? partes[2] : null);
+        } else if (partes[0].equalsIgnoreCase("congestionamento") && partes.length >= 2) {
+            configurarCongestionamento(partes[1].toLowerCase());
+        } else if (partes[0].equalsIgnoreCase("protocolo") && partes.length >= 2) {
+            setProtocoloBinario(partes[1].equalsIgnoreCase("binario"));
+            log("[PROTOCOLO] Transferências usando protocolo " + (protocoloBinarioHabilitado ? "binário (com peers compatíveis)" : "de texto"));
         } else {
             System.out.println("Comandos disponíveis:");
             System.out.println("  devices                    (listar dispositivos)");
             System.out.println("  talk <destino> <mensagem>   (enviar mensagem)");
-            System.out.println("  sendfile <destino> <arquivo> (enviar arquivo)");
+            System.out.println("  sendfile <destino> <arquivo> (enviar arquivo; destino pode ser D1,D2,... ou *)");
+            System.out.println("  janela <n> [chunks|bytes]   (tamanho da janela de envio)");
+            System.out.println("  congestionamento <aimd|ritmo|fixo> (controle de congestionamento)");
+            System.out.println("  protocolo <binario|texto>   (formato das transferências)");
+            System.out.println("  detalhes <on|off>           (log por CHUNK/ACK)");
+            System.out.println("  log <erro|info|detalhe>     (nível do log; info resume cada transferência)");
+            System.out.println("  recepcao                    (filas da recepção e do disco)");
+            System.out.println("  stats [arquivo <caminho|off> [segundos]] (métricas do nó; snapshot JSON periódico)");
+            System.out.println("  prealocar <on|off>          (reserva o tamanho do arquivo recebido no FILE)");
+            System.out.println("  chunk <bytes|auto>          (tamanho dos CHUNKs binários; auto sonda o maior datagrama)");
+            System.out.println("  fec <off|auto|n k>          (k paridades a cada n CHUNKs; auto segue as perdas)");
         }
     }
 
-    private static void enviarMensagem(String destino, String mensagem, DatagramSocket socket) {
+    private void configurarJanela(String valor, String unidade) {
+        try {
+            long n = Long.parseLong(valor);
+            int tamanhoChunk = tamanhoChunkConfigurado > 0 ? tamanhoChunkConfigurado : TAMANHO_BLOCO;
+            int chunks = unidade.equalsIgnoreCase("bytes") ? (int) Math.max(1, n / tamanhoChunk) : (int) Math.max(1, n);
+            setJanelaEnvio(chunks);
+            log("[JANELA] Janela de envio: " + chunks + " CHUNKs (" + ((long) chunks * tamanhoChunk) + " bytes)");
+        } catch (NumberFormatException e) {
+            logErro("[ERRO] Valor de janela inválido: " + valor);
+        }
+    }
+
+    /** "stats", "stats arquivo <caminho> [segundos]" ou "stats arquivo off". */
+    private void configurarStats(String[] partes) {
+        if (partes.length == 1) {
+            log("[STATS] " + metricas.descrever());
+            return;
+        }
+        if (!partes[1].equalsIgnoreCase("arquivo") || partes.length < 3) {
+            logErro("[ERRO] Uso: stats [arquivo <caminho|off> [segundos]]");
+            return;
+        }
+        if (partes[2].equalsIgnoreCase("off")) {
+            setArquivoMetricas(null, 0);
+            log("[STATS] Snapshot de métricas desligado");
+            return;
+        }
+        try {
+            long segundos = partes.length >= 4 ? Long.parseLong(partes[3]) : 10;
+            setArquivoMetricas(new File(partes[2]), segundos * 1000);
+            log("[STATS] Métricas gravadas em " + partes[2] + " a cada " + Math.max(1, segundos) + " s");
+        } catch (NumberFormatException e) {
+            logErro("[ERRO] Intervalo inválido: " + partes[3]);
+        }
+    }
+
+    private void configurarLog(String valor) {
+        try {
+            Log.setNivel(Log.Nivel.valueOf(valor.toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            logErro("[ERRO] Nível de log inválido: " + valor);
+        }
+    }
+
+    private void configurarChunk(String valor) {
+        if (valor.equalsIgnoreCase("auto")) {
+            setTamanhoChunk(0);
+            log("[CHUNK] Tamanho dos CHUNKs definido pela sonda de cada peer");
+            return;
+        }
+        try {
+            int tamanho = Integer.parseInt(valor);
+            if (tamanho == 0) {
+                logErro("[ERRO] Tamanho de CHUNK fora de 1.." + Protocolo.TAMANHO_MAXIMO_CHUNK + ": " + valor);
+                return;
+            }
+            setTamanhoChunk(tamanho);
+            log("[CHUNK] CHUNKs binários de até " + tamanho + " bytes (limitados ao que o peer aceita)");
+        } catch (NumberFormatException e) {
+            logErro("[ERRO] Valor de CHUNK inválido: " + valor);
+        } catch (IllegalArgumentException e) {
+            logErro("[ERRO] " + e.getMessage());
+        }
+    }
+
+    private void configurarFec(String valor, String paridades) {
+        if (valor.equalsIgnoreCase("off")) {
+            setFec(0, 0);
+            log("[FEC] Desligado nas próximas transferências");
+            return;
+        }
+        if (valor.equalsIgnoreCase("auto")) {
+            setFec(-1, 0);
+            log("[FEC] Paridade ajustada pelas perdas de cada transferência");
+            return;
+        }
+        try {
+            int n = Integer.parseInt(valor);
+            int k = paridades != null ? Integer.parseInt(paridades.trim()) : 1;
+            if (n < 1) {
+                logErro("[ERRO] FEC fora de 1.." + Fec.MAX_N + " CHUNKs e 1.." + Fec.MAX_K + " paridades: " + valor + " " + k);
+                return;
+            }
+            setFec(n, k);
+            log("[FEC] " + k + " paridade(s) a cada " + n + " CHUNKs (peers com a capacidade " + Protocolo.CAPACIDADE_FEC + ")");
+        } catch (NumberFormatException e) {
+            logErro("[ERRO] Valor de FEC inválido: " + valor);
+        } catch (IllegalArgumentException e) {
+            logErro("[ERRO] " + e.getMessage());
+        }
+    }
+
+    /** algumDestinoComFec: algum destino binário anunciou CAPACIDADE_FEC. */
+    private Fec.Codificador criarCodificadorFec(boolean algumDestinoComFec, int tamanhoChunk) {
+        int n = fecN;
+        if (!algumDestinoComFec || n == 0) return null;
+        return n < 0 ? Fec.Codificador.automatico(tamanhoChunk) : new Fec.Codificador(tamanhoChunk, n, fecK);
+    }
+
+    private void ajustarGrupoFec(Fec.Codificador fec, List<TransferenciaEnvio> comFec) {
+        for (TransferenciaEnvio transferencia : comFec) {
+            transferencia.getJanela().setGrupoFec(fec.getK() > 0 ? fec.getN() + fec.getK() : 0);
+        }
+    }
+
+    /** Manda as paridades do grupo que fechou, no ritmo do controle, sem ocupar a janela. */
+    private void enviarParidades(Fec.Codificador fec, TransferenciaEnvio transferencia, JanelaEnvio janela, ByteBuffer datagrama, DatagramSocket socket) throws IOException {
+        for (int j = 0; j < fec.getParidadesDoGrupo(); j++) {
+            janela.aguardarRitmo();
+            fec.escreverParidade(datagrama, transferencia.getId(), j);
+            enviarBuffer(datagrama, transferencia.getEnderecoDestino(), socket);
+        }
+    }
+
+    /** Tamanho dos CHUNKs binários para o peer: o configurado ou o da sonda, nunca acima do que ele aceita. */
+    private int escolherTamanhoChunk(Device device, InetSocketAddress destino, DatagramSocket socket) {
+        int limite = device.getTamanhoMaximoChunk();
+        if (tamanhoChunkConfigurado > 0) return Math.min(tamanhoChunkConfigurado, limite);
+        if (limite <= TAMANHO_BLOCO) return limite; // peer sem a capacidade não responde à sonda
+        if (device.getDatagramaSondado() == 0) {
+            int maior = sondarDatagrama(destino, limite + Protocolo.TAMANHO_CABECALHO, socket);
+            device.setDatagramaSondado(maior > 0 ? maior : TAMANHO_BLOCO + Protocolo.TAMANHO_CABECALHO);
+            log("[SONDA] Maior datagrama até " + device.getName() + ": " + device.getDatagramaSondado() + " bytes");
+        }
+        return Math.min(limite, device.getDatagramaSondado() - Protocolo.TAMANHO_CABECALHO);
+    }
+
+    /**
+     * Envia uma SONDA de cada tamanho candidato e devolve o maior que o peer
+     * confirmou em TEMPO_SONDA_MS (0 se nenhum). Datagramas acima da MTU podem
+     * chegar fragmentados: o Java não expõe o bit DF, então a sonda mede o que
+     * atravessa o caminho, não a MTU.
+     */
+    private int sondarDatagrama(InetSocketAddress destino, int maximo, DatagramSocket socket) {
+        AtomicInteger maior = new AtomicInteger(0);
+        sondas.put(destino, maior);
+        try {
+            int maiorEnviado = 0;
+            for (int tamanho : TAMANHOS_SONDA) {
+                if (tamanho > maximo) continue;
+                ByteBuffer quadro = Protocolo.alocar(tamanho - Protocolo.TAMANHO_CABECALHO);
+                Protocolo.escreverSonda(quadro, tamanho);
+                try {
+                    metricas.contarEnvio(quadro.array(), quadro.position());
+                    socket.send(new DatagramPacket(quadro.array(), quadro.position(), destino));
+                    maiorEnviado = Math.max(maiorEnviado, tamanho);
+                } catch (IOException e) {
+                    // "Message too long": maior que a MTU da interface local
+                }
+            }
+            long prazo = System.currentTimeMillis() + TEMPO_SONDA_MS;
+            while (maior.get() < maiorEnviado && System.currentTimeMillis() < prazo) {
+                Thread.sleep(5);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            sondas.remove(destino);
+        }
+        return maior.get();
+    }
+
+    private static int lerTamanhoMaximoChunk(List<String> capacidades) {
+        for (String capacidade : capacidades) {
+            if (!capacidade.startsWith(Protocolo.CAPACIDADE_CHUNK)) continue;
+            try {
+                return Math.max(1, Math.min(Protocolo.TAMANHO_MAXIMO_CHUNK, Integer.parseInt(capacidade.substring(1))));
+            } catch (NumberFormatException e) {
+                break;
+            }
+        }
+        return TAMANHO_BLOCO;
+    }
+
+    private void configurarCongestionamento(String modo) {
+        try {
+            setCongestionamento(modo);
+        } catch (IllegalArgumentException e) {
+            logErro("[ERRO] " + e.getMessage());
+            return;
+        }
+        log("[CONGESTIONAMENTO] Novas transferências usando controle " + modo);
+    }
+
+    private CompletableFuture<Void> enviarMensagem(String destino, String mensagem, DatagramSocket socket) {
+        CompletableFuture<Void> confirmacao = new CompletableFuture<>();
         try {
             Device device = deviceManager.getDevice(destino);
             if (device == null) {
                 log("Destino não encontrado.");
-                return;
+                confirmacao.completeExceptionally(new IllegalArgumentException("Destino não encontrado: " + destino));
+                return confirmacao;
             }
             int id = messageId.getAndIncrement();
             String mensagemCompleta = "TALK:" + id + ":" + deviceName + ":" + mensagem;
-            tipoMensagemEnviada.put(id + ":-1", "TALK");
+            talksEnviados.put(id, confirmacao);
+            // sem ACK no prazo o futuro falha com TimeoutException e a entrada sai do mapa
+            confirmacao.orTimeout(TIMEOUT_ACK_CONTROLE_MS, TimeUnit.MILLISECONDS).whenComplete((r, e) -> talksEnviados.remove(id));
             byte[] data = mensagemCompleta.getBytes();
+            metricas.contarEnvio(data, data.length);
             DatagramPacket packet = new DatagramPacket(data, data.length, device.getIpAddress(), device.getPort());
             socket.send(packet);
             log("[TALK Enviado] id=" + id + " para " + device.getName() + " (" + device.getIpAddress() + ")");
         } catch (Exception e) {
             e.printStackTrace();
+            confirmacao.completeExceptionally(e);
+        }
+        return confirmacao;
+    }
+
+    /** "*" são todos os dispositivos conhecidos menos este; senão, nomes separados por vírgula. */
+    private List<String> resolverDestinos(String destinos) {
+        if (destinos.equals("*")) {
+            List<String> todos = deviceManager.getDeviceNames();
+            todos.remove(deviceName);
+            return todos;
         }
+        Set<String> nomes = new LinkedHashSet<>();
+        for (String nome : destinos.split(",")) {
+            if (!nome.isBlank()) nomes.add(nome.trim());
+        }
+        return new ArrayList<>(nomes);
     }
 
-    private static void iniciarEnvioArquivo(String destino, String nomeArquivo, DatagramSocket socket) {
+    /**
+     * Envia o arquivo a um ou mais destinos. Cada destino tem a sua
+     * TransferenciaEnvio (id, janela, retransmissões, retomada e reparo), mas
+     * cada CHUNK é lido, entra no hash e na paridade uma vez só: o mesmo buffer
+     * sai para todos, reescrevendo só o cabeçalho. Os destinos andam juntos,
+     * no ritmo do mais lento; quem não confirma o FILE fica de fora.
+     */
+    private Map<String, Boolean> iniciarEnvioArquivo(List<String> destinos, String nomeArquivo, DatagramSocket socket) {
+        Map<String, Boolean> resultado = new LinkedHashMap<>();
+        for (String destino : destinos) resultado.put(destino, false);
         try {
-            File file = new File("arquivos/" + nomeArquivo);
+            File file = new File(pastaArquivos, nomeArquivo);
             if (!file.exists()) {
-                log("[ERRO] Arquivo não encontrado: " + nomeArquivo);
-                return;
+                logErro("[ERRO] Arquivo não encontrado: " + nomeArquivo);
+                return resultado;
             }
-
-            Device device = deviceManager.getDevice(destino);
-            if (device == null) {
-                log("[ERRO] Destino não encontrado.");
-                return;
+            List<Device> devices = new ArrayList<>();
+            for (String destino : destinos) {
+                Device device = deviceManager.getDevice(destino);
+                if (device == null) {
+                    logErro("[ERRO] Destino não encontrado: " + destino);
+                } else {
+                    devices.add(device);
+                }
             }
+            if (devices.isEmpty()) return resultado;
 
-            int id = messageId.getAndIncrement();
             long tamanho = file.length();
-            String mensagemFile = "FILE:" + id + ":" + nomeArquivo + ":" + tamanho + ":" + deviceName;
-            tipoMensagemEnviada.put(id + ":-1", "FILE");
-            byte[] data = mensagemFile.getBytes();
-            DatagramPacket packet = new DatagramPacket(data, data.length, device.getIpAddress(), device.getPort());
-            socket.send(packet);
-
-            log("[FILE enviado] id=" + id + " -> " + nomeArquivo + " (" + tamanho + " bytes) para " + device.getName() + "(" + device.getIpAddress() + ")");
-            
-            int tentativas = 0;
-            while (!acksRecebidos.getOrDefault("ACK-FILE-" + id + "-" + "-1", false) && tentativas < 35) {
-                Thread.sleep(100); 
-                tentativas++;
-            }
-            if (!acksRecebidos.getOrDefault("ACK-FILE-" + id + "-" + "-1", false)) {
-                log("[ERRO] ACK do FILE id=" + id + " não recebido de " + device.getName() + "(" + device.getIpAddress() + "). Abortando envio.");
-                return;
+            // um só tamanho de CHUNK para todos: o menor que algum destino aceita
+            int tamBloco = Integer.MAX_VALUE;
+            for (Device device : devices) {
+                boolean binario = protocoloBinarioHabilitado && device.isProtocoloBinario();
+                InetSocketAddress endereco = new InetSocketAddress(device.getIpAddress(), device.getPort());
+                tamBloco = Math.min(tamBloco, binario ? escolherTamanhoChunk(device, endereco, socket) : TAMANHO_BLOCO);
             }
+            LeitorArquivo leitor = new LeitorArquivo(file, tamBloco);
+            List<TransferenciaEnvio> transferencias = new ArrayList<>();
+            List<TransferenciaEnvio> comFec = new ArrayList<>();
+            ByteBuffer datagrama = null;
+            try {
+                List<byte[]> files = new ArrayList<>();
+                for (Device device : devices) {
+                    int id = messageId.getAndIncrement();
+                    boolean binario = protocoloBinarioHabilitado && device.isProtocoloBinario();
+                    InetSocketAddress enderecoDestino = new InetSocketAddress(device.getIpAddress(), device.getPort());
+                    TransferenciaEnvio transferencia = new TransferenciaEnvio(id, device.getName(), enderecoDestino, binario, leitor);
+                    transferenciasEnvio.put(id, transferencia);
+                    transferencias.add(transferencia);
+                    files.add(montarFile(transferencia, device.isRetomavel(), file, nomeArquivo, tamanho, tamBloco));
+                    if (binario && device.isFec()) comFec.add(transferencia);
+                }
+                List<TransferenciaEnvio> ativos = enviarFiles(transferencias, files, nomeArquivo, tamanho, tamBloco, socket);
+                comFec.retainAll(ativos);
+                if (ativos.isEmpty()) return resultado;
 
-            int seq = 0;
-            int tamBloco = 1024;
-            try (InputStream in = new FileInputStream(file)) {
-                byte[] buffer = new byte[tamBloco];
-                int lido;
+                for (TransferenciaEnvio transferencia : ativos) {
+                    EstimadorRtt rtt = estimadoresRtt.computeIfAbsent(transferencia.getNomeDestino(), k -> new EstimadorRtt(metricas.getRtt()));
+                    ControleCongestionamento controle = ControleCongestionamento.criar(modoCongestionamento, rtt);
+                    JanelaEnvio janela = new JanelaEnvio(janelaEnvioChunks, rtt, transferencia.getNomeDestino(), transferencia.getEnderecoDestino(), controle);
+                    if (transferencia.getFaltantes() != null) janela.pularRecebidos(transferencia.getFaltantes(), leitor.getTotalChunks());
+                    transferencia.iniciarChunks(janela);
+                }
+                // um buffer direto do pool para a transferência inteira: o CHUNK vai do arquivo ao socket sem passar pelo heap
+                datagrama = buffersEnvio.obter();
                 long totalLido = 0;
-                while ((lido = in.read(buffer)) != -1) {
-                    byte[] chunkData = (lido == tamBloco) ? buffer : Arrays.copyOf(buffer, lido);
-                    String dadosBase64 = Base64.getEncoder().encodeToString(chunkData);
-                    String mensagemChunk = "CHUNK:" + id + ":" + seq + ":" + dadosBase64 + ":" + deviceName;
-
-                    byte[] dados = mensagemChunk.getBytes();
-                    DatagramPacket packetChunk = new DatagramPacket(dados, dados.length, device.getIpAddress(), device.getPort());
-                    tipoMensagemEnviada.put(id + ":" + seq, "CHUNK");
-                    String referencia = tipoMensagemEnviada.getOrDefault(id + ":" + seq, "DESCONHECIDO");
-                    String chaveAck = "ACK-" + referencia + "-" + id + "-" + seq;
-                    chunksPendentes.put("CHUNK-" + id + "-" + seq + "-" + destino, dados);
-                    tentativasEnvioChunk.put("CHUNK-" + id + "-" + seq + "-" + destino, 0);
-                    acksRecebidos.put(chaveAck, false);
-                    tempoEnvioChunk.put("CHUNK-" + id + "-" + seq + "-" + destino, System.currentTimeMillis());
-                    socket.send(packetChunk);
+                long inicio = System.nanoTime();
+                // hash calculado na mesma leitura dos CHUNKs, sem reler o arquivo antes do END
+                java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-256");
+                ArvoreMerkle.Acumulador folhas = new ArvoreMerkle.Acumulador();
+                Fec.Codificador fec = criarCodificadorFec(!comFec.isEmpty(), tamBloco);
+                Set<TransferenciaEnvio> grupoComEnvio = new HashSet<>();
+                if (fec != null) ajustarGrupoFec(fec, comFec);
+                // destinos que falharam (desistência, NACK ou expiração) saem do laço e não seguram os outros
+                List<TransferenciaEnvio> emEnvio = new ArrayList<>(ativos);
+                for (int seq = 0; seq < leitor.getTotalChunks(); seq++) {
+                    if (emEnvio.removeIf(TransferenciaEnvio::isAbortada)) {
+                        comFec.removeIf(TransferenciaEnvio::isAbortada);
+                        if (emEnvio.isEmpty()) break;
+                    }
+                    int lido = lerChunk(ativos.get(0), seq, datagrama);
+                    ByteBuffer conteudo = datagrama.duplicate();
+                    conteudo.flip().position(Protocolo.TAMANHO_CABECALHO);
+                    digest.update(conteudo.duplicate());
+                    // CHUNKs pulados também entram na paridade: o receptor os tem no disco
+                    boolean fechaGrupo = fec != null && fec.adicionar(seq, conteudo.duplicate(), seq == leitor.getTotalChunks() - 1);
+                    String base64 = null; // só para destinos de texto, codificado uma vez
+                    for (TransferenciaEnvio transferencia : emEnvio) {
+                        JanelaEnvio janela = transferencia.getJanela();
+                        BitSet faltantes = transferencia.getFaltantes();
+                        if (faltantes != null && !faltantes.get(seq)) {
+                            // o receptor já tem este CHUNK de uma tentativa anterior (pularRecebidos): só entra no hash
+                            continue;
+                        }
+                        if (!janela.aguardarEspaco()) continue; // abortado: não segura os outros destinos
+                        janela.aguardarRitmo();
+                        // janela cheia ou último CHUNK: o receptor não deve segurar o SACK
+                        byte flags = (janela.cheia() || totalLido + lido >= tamanho) ? Protocolo.FLAG_ACK_IMEDIATO : 0;
+                        long agora = System.nanoTime();
+                        janela.registrarEnvio(seq, agora);
+                        agendarRetransmissao(janela, transferencia.getId(), seq, agora);
+                        if (transferencia.isBinario()) {
+                            montarChunk(transferencia, seq, flags, lido, datagrama);
+                            enviarBuffer(datagrama, transferencia.getEnderecoDestino(), socket);
+                        } else {
+                            if (base64 == null) base64 = StandardCharsets.US_ASCII.decode(Base64.getEncoder().encode(conteudo.duplicate())).toString();
+                            enviarBuffer(ByteBuffer.wrap(mensagemChunkTexto(transferencia, seq, base64)), transferencia.getEnderecoDestino(), socket);
+                        }
+                        grupoComEnvio.add(transferencia);
+                        if (Log.detalhado()) {
+                            int percentual = (int) ((100.0 * (totalLido + lido)) / tamanho);
+                            logDetalhe("[CHUNK enviado] id=" + transferencia.getId() + " seq=" + seq + " (" + percentual + "% enviado) para " + transferencia.getNomeDestino() + "(" + transferencia.getEnderecoDestino().getAddress() + ")");
+                        }
+                    }
+                    folhas.atualizar(conteudo);
                     totalLido += lido;
-                    int percentual = (int) ((100.0 * totalLido) / tamanho);
-                    log("[CHUNK enviado] id=" + id + " seq=" + seq + " (" + percentual + "% enviado) para " + device.getName() + "(" + device.getIpAddress() + ")");
-                    seq++;
-                    Thread.sleep(50);
+                    if (fechaGrupo) {
+                        for (TransferenciaEnvio transferencia : comFec) {
+                            if (grupoComEnvio.contains(transferencia) && !transferencia.isAbortada()) enviarParidades(fec, transferencia, transferencia.getJanela(), datagrama, socket);
+                        }
+                        grupoComEnvio.clear();
+                        long perdas = 0; // o nível automático segue o destino com mais perdas
+                        for (TransferenciaEnvio transferencia : comFec) perdas = Math.max(perdas, transferencia.getJanela().getPerdas());
+                        fec.proximoGrupo(perdas);
+                        ajustarGrupoFec(fec, comFec);
+                    }
                 }
-                
-                while (true) {
-                    // Verifica se ainda há CHUNKs pendentes desse ID que estão ativos
-                    boolean aindaTemChunkAtivo = chunksPendentes.keySet().stream()
-                        .filter(k -> k.startsWith("CHUNK-" + id + "-"))
-                        .anyMatch(k -> {
-                            int tent = tentativasEnvioChunk.getOrDefault(k, 0);
-                            return tent < MAX_TENTATIVAS;
-                        });
-                
-                    if (!aindaTemChunkAtivo) break;
-                
-                    Thread.sleep(100); // espera antes de checar novamente
+                buffersEnvio.devolver(datagrama);
+                datagrama = null;
+
+                // espera cada CHUNK ser confirmado; um destino abortado fica sem END e com false no resultado
+                List<TransferenciaEnvio> concluidos = new ArrayList<>();
+                for (TransferenciaEnvio transferencia : ativos) {
+                    JanelaEnvio janela = transferencia.getJanela();
+                    janela.aguardarConclusao();
+                    log("[CONGESTIONAMENTO] " + descreverCongestionamento(transferencia));
+                    if (transferencia.isAbortada()) continue;
+                    concluidos.add(transferencia);
+                    BitSet faltantes = transferencia.getFaltantes();
+                    int enviados = faltantes != null ? faltantes.cardinality() : leitor.getTotalChunks();
+                    long bytes = faltantes != null ? Math.min((long) enviados * tamBloco, tamanho) : tamanho;
+                    metricas.registrarEnvioConcluido(bytes, System.nanoTime() - inicio);
+                    log("[RESUMO] id=" + transferencia.getId() + " " + nomeArquivo + " para " + transferencia.getNomeDestino() + ": " + descreverVazao(enviados, bytes, System.nanoTime() - inicio)
+                            + ", " + janela.getRetransmissoes() + " retransmissão(ões), " + janela.getPerdas() + " perda(s)");
                 }
-                boolean falhou = chunksPendentes.keySet().stream().anyMatch(k -> k.startsWith("CHUNK-" + id + "-"));
-                if (falhou) log("[ERRO] Não foi possível enviar todos os CHUNKs (id=" + id + ") ");
-        
-
-                String hash = calcularHashArquivo(file); 
-                String mensagemEnd = "END:" + id + ":" + hash + ":" + deviceName;
-                tipoMensagemEnviada.put(id + ":-1", "END");
-                byte[] dadosEnd = mensagemEnd.getBytes();
-                DatagramPacket packetEnd = new DatagramPacket(dadosEnd, dadosEnd.length, device.getIpAddress(), device.getPort());
-                socket.send(packetEnd);
-                log("[END enviado] id=" + id + " hash=" + hash + " para " + device.getName() + "(" + device.getIpAddress() + ")");
-
-                // Aguarda ACK do END
-                int tentativa = 0;
-                while (!acksRecebidos.getOrDefault("ACK-END-" + id + "-" + "-1", false) && tentativa < 35) {
-                    Thread.sleep(100); 
-                    tentativa++;
+                if (fec != null) log("[FEC] " + fec.getParidadesEnviadas() + " paridade(s) montadas para " + nomeArquivo + (fec.isAutomatico() ? ", nível final " + fec.getK() + "/" + fec.getN() : ""));
+                if (ativos.size() > 1) {
+                    log("[DISTRIBUIÇÃO] " + nomeArquivo + " lido uma vez para " + ativos.size() + " destinos em " + (System.nanoTime() - inicio) / 1_000_000 + " ms");
                 }
-                if (!acksRecebidos.getOrDefault("ACK-END-" + id + "-" + "-1", false)) {
-                    log("[AVISO] Não foi possível confirmar se " + destino + "(" + deviceManager.getDevice(destino).getIpAddress() + ") validou o arquivo (ACK de END não recebido)");
-                    return;
+
+                String hash = paraHex(digest.digest());
+                ArvoreMerkle arvore = new ArvoreMerkle(folhas.concluir());
+                for (TransferenciaEnvio transferencia : concluidos) {
+                    int id = transferencia.getId();
+                    byte[] dadosEnd;
+                    if (transferencia.isBinario()) {
+                        // a raiz da árvore permite ao receptor reparar só os blocos divergentes
+                        ByteBuffer quadro = Protocolo.alocar(2 * ArvoreMerkle.TAMANHO_HASH);
+                        Protocolo.escreverEnd(quadro, id, deHex(hash), arvore.getRaiz());
+                        dadosEnd = quadro.array();
+                    } else {
+                        String mensagemEnd = "END:" + id + ":" + hash + ":" + deviceName;
+                        dadosEnd = mensagemEnd.getBytes();
+                    }
+                    transferencia.iniciarEnd(arvore);
+                    metricas.contarEnvio(dadosEnd, dadosEnd.length);
+                    socket.send(new DatagramPacket(dadosEnd, dadosEnd.length, transferencia.getEnderecoDestino()));
+                    log("[END enviado] id=" + id + " hash=" + hash + " para " + transferencia.getNomeDestino() + "(" + transferencia.getEnderecoDestino().getAddress() + ")");
                 }
-            } catch (IOException | InterruptedException e) {
-                e.printStackTrace();
+
+                // Aguarda ACK do END; pedidos de reparo do receptor prolongam a espera
+                for (TransferenciaEnvio transferencia : concluidos) {
+                    boolean confirmado;
+                    while (!(confirmado = transferencia.aguardarAckEnd(TIMEOUT_ACK_CONTROLE_MS))) {
+                        if (System.currentTimeMillis() - transferencia.getUltimaAtividade() < TIMEOUT_ACK_CONTROLE_MS) continue;
+                        log("[AVISO] Não foi possível confirmar se " + transferencia.getNomeDestino() + "(" + transferencia.getEnderecoDestino().getAddress() + ") validou o arquivo (ACK de END não recebido)");
+                        break;
+                    }
+                    resultado.put(transferencia.getNomeDestino(), confirmado && !transferencia.isAbortada());
+                }
+            } finally {
+                for (TransferenciaEnvio transferencia : transferencias) transferenciasEnvio.remove(transferencia.getId());
+                if (datagrama != null) buffersEnvio.devolver(datagrama);
+                leitor.fechar();
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            if (ativo) e.printStackTrace();
         }
+        return resultado;
+    }
+
+    private byte[] montarFile(TransferenciaEnvio transferencia, boolean retomavel, File file, String nomeArquivo, long tamanho, int tamBloco) {
+        if (transferencia.isBinario() && retomavel) {
+            // o mtime identifica a versão do arquivo para o receptor aproveitar uma tentativa anterior
+            ByteBuffer quadro = Protocolo.alocar(Protocolo.tamanhoPayloadFile(true, tamBloco, nomeArquivo));
+            Protocolo.escreverFile(quadro, transferencia.getId(), tamanho, file.lastModified(), tamBloco, nomeArquivo);
+            return quadro.array();
+        } else if (transferencia.isBinario()) {
+            ByteBuffer quadro = Protocolo.alocar(Protocolo.tamanhoPayloadFile(false, tamBloco, nomeArquivo));
+            Protocolo.escreverFile(quadro, transferencia.getId(), tamanho, -1, tamBloco, nomeArquivo);
+            return quadro.array();
+        }
+        String mensagemFile = "FILE:" + transferencia.getId() + ":" + nomeArquivo + ":" + tamanho + ":" + deviceName;
+        return mensagemFile.getBytes();
+    }
+
+    /** Envia o FILE a cada destino até MAX_TENTATIVAS vezes e devolve os que confirmaram. */
+    private List<TransferenciaEnvio> enviarFiles(List<TransferenciaEnvio> transferencias, List<byte[]> files, String nomeArquivo, long tamanho, int tamBloco, DatagramSocket socket) throws IOException, InterruptedException {
+        List<TransferenciaEnvio> pendentes = new ArrayList<>(transferencias);
+        List<TransferenciaEnvio> confirmados = new ArrayList<>();
+        // o receptor responde de novo a um FILE repetido, então perder a resposta não custa a transferência
+        for (int tentativa = 1; tentativa <= MAX_TENTATIVAS && !pendentes.isEmpty(); tentativa++) {
+            for (TransferenciaEnvio transferencia : pendentes) {
+                byte[] data = files.get(transferencias.indexOf(transferencia));
+                metricas.contarEnvio(data, data.length);
+                socket.send(new DatagramPacket(data, data.length, transferencia.getEnderecoDestino()));
+                log("[FILE enviado] id=" + transferencia.getId() + " -> " + nomeArquivo + " (" + tamanho + " bytes, CHUNKs de " + tamBloco + ") para " + transferencia.getNomeDestino() + "(" + transferencia.getEnderecoDestino().getAddress() + ")" + (tentativa > 1 ? " tentativa " + tentativa : ""));
+            }
+            long prazo = System.currentTimeMillis() + INTERVALO_REENVIO_FILE_MS;
+            Iterator<TransferenciaEnvio> it = pendentes.iterator();
+            while (it.hasNext()) {
+                TransferenciaEnvio transferencia = it.next();
+                if (transferencia.aguardarAckFile(Math.max(1, prazo - System.currentTimeMillis()))) {
+                    it.remove();
+                    if (!transferencia.isAbortada()) confirmados.add(transferencia);
+                }
+            }
+        }
+        for (TransferenciaEnvio transferencia : pendentes) {
+            logErro("[ERRO] ACK do FILE id=" + transferencia.getId() + " não recebido de " + transferencia.getNomeDestino() + "(" + transferencia.getEnderecoDestino().getAddress() + "). Abortando envio.");
+        }
+        confirmados.sort(Comparator.comparingInt(transferencias::indexOf));
+        return confirmados;
+    }
+
+    private static long chaveRetransmissao(int id, int seq) {
+        return ((long) id << 32) | (seq & 0xFFFFFFFFL);
     }
 
     private static String calcularHashArquivo(File file) {
@@ -447,32 +2013,44 @@ public class UDPNode {
             while ((bytesRead = in.read(buffer)) != -1) {
                 digest.update(buffer, 0, bytesRead);
             }
-            byte[] hashBytes = digest.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hashBytes) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
+            return paraHex(digest.digest());
         } catch (Exception e) {
             e.printStackTrace();
             return "erro";
         }
     }
 
-    private static boolean mensagemDuplicada(String chave) {
-        long agora = System.currentTimeMillis();
-        idsRecebidos.entrySet().removeIf(entry -> (agora - entry.getValue()) > TEMPO_EXPIRACAO_IDS_MS);
+    private static String paraHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
 
-        if (idsRecebidos.containsKey(chave)) {
-            return true;
-        } else {
-            idsRecebidos.put(chave, agora);
-            return false;
+    private static byte[] deHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
         }
+        return bytes;
+    }
+
+    private boolean mensagemDuplicada(InetSocketAddress origem, String tipo, int id) {
+        boolean duplicada = idsRecebidos.registrar(origem, tipo, id, System.currentTimeMillis());
+        if (duplicada) metricas.contarMensagemDuplicada();
+        return duplicada;
+    }
+
+    private void log(String mensagem) {
+        Log.info(prefixoLog + mensagem);
+    }
+
+    private void logErro(String mensagem) {
+        Log.erro(prefixoLog + mensagem);
     }
 
-    private static void log(String mensagem) {
-        String timestamp = java.time.LocalTime.now().format(FORMATTER);
-        System.out.println("[" + timestamp + "] " + mensagem);
+    private void logDetalhe(String mensagem) {
+        Log.detalhe(prefixoLog + mensagem);
     }
 }